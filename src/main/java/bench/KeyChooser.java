@@ -0,0 +1,127 @@
+package bench;
+
+import java.util.SplittableRandom;
+
+/**
+ * Picks the number of the record an operation touches among the records
+ * [0, count). Choosers are shared by all threads; each thread brings its own
+ * random source.
+ */
+abstract class KeyChooser {
+
+	abstract long next(SplittableRandom random, long count);
+
+	static KeyChooser of(Workload.Distribution distribution) {
+		switch (distribution) {
+		case UNIFORM:
+			return new Uniform();
+		case LATEST:
+			return new Latest();
+		default:
+			return new ScrambledZipfian();
+		}
+	}
+
+	/** 64-bit FNV-1a of the bytes of v, made non-negative */
+	static long fnv(long v) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < 8; i++) {
+			h ^= v & 0xFF;
+			h *= 0x100000001B3L;
+			v >>>= 8;
+		}
+		return h & Long.MAX_VALUE;
+	}
+
+	static final class Uniform extends KeyChooser {
+		@Override
+		long next(SplittableRandom random, long count) {
+			return random.nextLong(count);
+		}
+	}
+
+	/**
+	 * Zipfian ranks over a fixed, very large item count, hashed and folded
+	 * onto the records. The popular ranks land on unrelated keys, and the
+	 * skew stays the same as inserts add records, without recomputing the
+	 * zeta constant over the whole count.
+	 */
+	static final class ScrambledZipfian extends KeyChooser {
+		private static final long ITEMS = 10_000_000_000L;
+		/** zeta(ITEMS) for the Zipf constant 0.99 */
+		private static final double ZETA_ITEMS = 26.46902820178302;
+
+		private final Zipfian.Table table = new Zipfian.Table(ITEMS, ZETA_ITEMS);
+
+		@Override
+		long next(SplittableRandom random, long count) {
+			return fnv(table.next(random)) % count;
+		}
+	}
+
+	/** The newest record is the most popular, then the one before, and so on */
+	static final class Latest extends KeyChooser {
+		private final Zipfian zipfian = new Zipfian();
+
+		@Override
+		long next(SplittableRandom random, long count) {
+			return count - 1 - zipfian.next(random, count);
+		}
+	}
+
+	/**
+	 * Zipfian ranks over a count that may grow, as described by Gray et al.
+	 * in "Quickly Generating Billion-Record Synthetic Databases". Rank 0 is
+	 * the most popular.
+	 */
+	static final class Zipfian {
+		static final double THETA = 0.99;
+		private static final double ZETA_2 = 1 + Math.pow(0.5, THETA);
+
+		/** Constants for one item count */
+		static final class Table {
+			final long items;
+			final double zeta;
+			private final double alpha = 1 / (1 - THETA);
+			private final double eta;
+
+			Table(long items, double zeta) {
+				this.items = items;
+				this.zeta = zeta;
+				this.eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - ZETA_2 / zeta);
+			}
+
+			long next(SplittableRandom random) {
+				double u = random.nextDouble();
+				double uz = u * zeta;
+				if (uz < 1)
+					return 0;
+				if (uz < ZETA_2)
+					return Math.min(1, items - 1);
+				return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+			}
+		}
+
+		/** Replaced as the count grows; zeta is extended rather than recomputed */
+		private volatile Table table = new Table(1, 1);
+
+		long next(SplittableRandom random, long count) {
+			Table t = table;
+			if (t.items < count)
+				t = grow(count);
+			// a thread that read the count before another grew the table may
+			// get a rank past its own count
+			return Math.min(count - 1, t.next(random));
+		}
+
+		private synchronized Table grow(long count) {
+			Table t = table;
+			if (t.items >= count)
+				return t;
+			double zeta = t.zeta;
+			for (long i = t.items + 1; i <= count; i++)
+				zeta += 1 / Math.pow(i, THETA);
+			return table = new Table(count, zeta);
+		}
+	}
+}
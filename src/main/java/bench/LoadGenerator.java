@@ -0,0 +1,304 @@
+package bench;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import core.KeyValue;
+import core.LatencyHistogram;
+import core.ShardedKV;
+import core.SimpleKV;
+import core.StoreOptions;
+
+/**
+ * Drives a {@link KeyValue} with a YCSB-style {@link Workload} from several
+ * threads and reports throughput and latency percentiles for each kind of
+ * operation, so that engines and options can be compared on the same
+ * hardware.
+ *
+ * A run has two phases, as in YCSB: {@link #load()} inserts the initial
+ * records, then {@link #run(long)} performs the workload over them. Record
+ * n is stored under "user" followed by a hash of n, so that consecutive
+ * records are not neighbours in key order.
+ */
+public final class LoadGenerator {
+
+	public enum Operation {
+		READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE
+	}
+
+	private final KeyValue store;
+	private final Workload workload;
+	private final KeyChooser chooser;
+	private final long records;
+	private final int threads;
+	private final int keyLength;
+	private final int valueLength;
+	/** Number of the next record to insert */
+	private final AtomicLong nextRecord = new AtomicLong();
+	/**
+	 * Records that reads may pick. Raised as inserts complete; with several
+	 * threads inserting, a slower insert may still be running below it.
+	 */
+	private final AtomicLong visible = new AtomicLong();
+
+	/**
+	 * keyLength pads keys with zeros up to that many chars; valueLength is
+	 * the length of every value written.
+	 */
+	public LoadGenerator(KeyValue store, Workload workload, long records, int threads, int keyLength,
+			int valueLength) {
+		if (records < 1 || threads < 1)
+			throw new IllegalArgumentException("Need at least one record and one thread");
+		this.store = store;
+		this.workload = workload;
+		this.chooser = KeyChooser.of(workload.distribution);
+		this.records = records;
+		this.threads = threads;
+		this.keyLength = keyLength;
+		this.valueLength = valueLength;
+	}
+
+	/** Inserts records 0 to records - 1, split between the threads */
+	public Report load() throws InterruptedException {
+		final Map<Operation, LatencyHistogram> latencies = histograms();
+		final LatencyHistogram inserts = latencies.get(Operation.INSERT);
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final long from = records * t / threads;
+			final long to = records * (t + 1) / threads;
+			final SplittableRandom random = new SplittableRandom(t);
+			workers[t] = new Thread(() -> {
+				for (long n = from; n < to; n++) {
+					char[] key = key(n);
+					char[] value = value(random);
+					long t0 = System.nanoTime();
+					store.write(key, value);
+					inserts.recordSince(t0);
+				}
+			}, "rkv-load-" + t);
+			workers[t].start();
+		}
+		join(workers);
+		long elapsed = System.nanoTime() - start;
+		nextRecord.set(records);
+		visible.set(records);
+		return new Report(elapsed, latencies);
+	}
+
+	/**
+	 * Performs operations operations of the workload, split between the
+	 * threads, over the records loaded and inserted so far.
+	 */
+	public Report run(long operations) throws InterruptedException {
+		if (visible.get() == 0) {
+			// the records were loaded by an earlier process
+			nextRecord.set(records);
+			visible.set(records);
+		}
+		final Map<Operation, LatencyHistogram> latencies = histograms();
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final long count = operations * (t + 1) / threads - operations * t / threads;
+			final SplittableRandom random = new SplittableRandom(1000 + t);
+			workers[t] = new Thread(() -> {
+				for (long i = 0; i < count; i++)
+					perform(workload.choose(random.nextDouble()), random, latencies);
+			}, "rkv-run-" + t);
+			workers[t].start();
+		}
+		join(workers);
+		return new Report(System.nanoTime() - start, latencies);
+	}
+
+	private void perform(Operation op, SplittableRandom random, Map<Operation, LatencyHistogram> latencies) {
+		long t0;
+		switch (op) {
+		case READ: {
+			char[] key = key(chooser.next(random, visible.get()));
+			t0 = System.nanoTime();
+			store.read(key);
+			break;
+		}
+		case UPDATE: {
+			char[] key = key(chooser.next(random, visible.get()));
+			char[] value = value(random);
+			t0 = System.nanoTime();
+			store.write(key, value);
+			break;
+		}
+		case INSERT: {
+			long n = nextRecord.getAndIncrement();
+			char[] key = key(n);
+			char[] value = value(random);
+			t0 = System.nanoTime();
+			store.write(key, value);
+			latencies.get(op).recordSince(t0);
+			visible.accumulateAndGet(n + 1, Math::max);
+			return;
+		}
+		case SCAN: {
+			char[] key = key(chooser.next(random, visible.get()));
+			int length = 1 + random.nextInt(workload.maxScanLength);
+			t0 = System.nanoTime();
+			Iterator<?> it = store.readRange(key, null);
+			for (int i = 0; i < length && it.hasNext(); i++)
+				it.next();
+			break;
+		}
+		default: {
+			char[] key = key(chooser.next(random, visible.get()));
+			char[] value = value(random);
+			t0 = System.nanoTime();
+			store.read(key);
+			store.write(key, value);
+			break;
+		}
+		}
+		latencies.get(op).recordSince(t0);
+	}
+
+	/** "user" and the hash of record n, padded with zeros to keyLength */
+	char[] key(long n) {
+		String digits = Long.toString(KeyChooser.fnv(n));
+		StringBuilder b = new StringBuilder(Math.max(keyLength, 4 + digits.length())).append("user");
+		for (int i = 4 + digits.length(); i < keyLength; i++)
+			b.append('0');
+		return b.append(digits).toString().toCharArray();
+	}
+
+	private char[] value(SplittableRandom random) {
+		char[] value = new char[valueLength];
+		for (int i = 0; i < value.length; i++)
+			value[i] = (char) (' ' + random.nextInt(95));
+		return value;
+	}
+
+	private static Map<Operation, LatencyHistogram> histograms() {
+		Map<Operation, LatencyHistogram> m = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+		for (Operation op : Operation.values())
+			m.put(op, new LatencyHistogram());
+		return m;
+	}
+
+	private static void join(Thread[] workers) throws InterruptedException {
+		for (Thread w : workers)
+			w.join();
+	}
+
+	/** Outcome of one phase */
+	public static final class Report {
+		private final long elapsedNanos;
+		private final Map<Operation, LatencyHistogram.Snapshot> latencies = new EnumMap<Operation, LatencyHistogram.Snapshot>(
+				Operation.class);
+		private final long operations;
+
+		Report(long elapsedNanos, Map<Operation, LatencyHistogram> histograms) {
+			this.elapsedNanos = elapsedNanos;
+			long n = 0;
+			for (Map.Entry<Operation, LatencyHistogram> e : histograms.entrySet()) {
+				LatencyHistogram.Snapshot s = e.getValue().snapshot();
+				if (s.count() > 0) {
+					latencies.put(e.getKey(), s);
+					n += s.count();
+				}
+			}
+			this.operations = n;
+		}
+
+		public long operations() {
+			return operations;
+		}
+
+		public long elapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/** Operations per second over the whole phase */
+		public double throughput() {
+			return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+		}
+
+		/** Latencies of one kind of operation, or null if the phase did none */
+		public LatencyHistogram.Snapshot latencies(Operation op) {
+			return latencies.get(op);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder(String.format("%d ops in %.2fs, %.0f ops/s", operations,
+					elapsedNanos / 1e9, throughput()));
+			for (Map.Entry<Operation, LatencyHistogram.Snapshot> e : latencies.entrySet())
+				b.append(String.format("%n  %-17s %s", e.getKey(), e.getValue()));
+			return b.toString();
+		}
+	}
+
+	/**
+	 * Usage: LoadGenerator dataDir [name=value ...], with the settings
+	 * <ul>
+	 * <li>workload: A to F, default A</li>
+	 * <li>distribution: zipfian, uniform or latest; defaults to that of the
+	 * workload</li>
+	 * <li>records: default 100000; operations: default 1000000</li>
+	 * <li>threads: default 4</li>
+	 * <li>keyLength: default 23; valueLength: default 100</li>
+	 * <li>engine: an {@link StoreOptions.Engine}, for a new store</li>
+	 * <li>shards: open a {@link ShardedKV} with that many shards; default 0,
+	 * a single {@link SimpleKV}</li>
+	 * <li>load: false to skip loading, when dataDir was loaded before</li>
+	 * </ul>
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: LoadGenerator dataDir [workload=A] [distribution=zipfian] [records=100000]"
+					+ " [operations=1000000] [threads=4] [keyLength=23] [valueLength=100] [engine=LSM] [shards=0]"
+					+ " [load=true]");
+			System.exit(2);
+		}
+		Map<String, String> settings = new HashMap<String, String>();
+		for (int i = 1; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected name=value: " + args[i]);
+			settings.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		Workload workload = Workload.standard(settings.getOrDefault("workload", "A").charAt(0));
+		if (settings.containsKey("distribution"))
+			workload.distribution = Workload.Distribution.valueOf(settings.get("distribution").toUpperCase());
+		long records = Long.parseLong(settings.getOrDefault("records", "100000"));
+		long operations = Long.parseLong(settings.getOrDefault("operations", "1000000"));
+		int threads = Integer.parseInt(settings.getOrDefault("threads", "4"));
+		int keyLength = Integer.parseInt(settings.getOrDefault("keyLength", "23"));
+		int valueLength = Integer.parseInt(settings.getOrDefault("valueLength", "100"));
+		int shards = Integer.parseInt(settings.getOrDefault("shards", "0"));
+
+		StoreOptions options = new StoreOptions();
+		if (settings.containsKey("engine"))
+			options.engine = StoreOptions.Engine.valueOf(settings.get("engine").toUpperCase());
+		KeyValue store;
+		Runnable close;
+		if (shards > 0) {
+			options.shards = shards;
+			ShardedKV sharded = new ShardedKV(options).initAndMakeStore(args[0]);
+			store = sharded;
+			close = sharded::close;
+		} else {
+			SimpleKV simple = new SimpleKV().initAndMakeStore(args[0], options);
+			store = simple;
+			close = simple::close;
+		}
+
+		LoadGenerator generator = new LoadGenerator(store, workload, records, threads, keyLength, valueLength);
+		if (Boolean.parseBoolean(settings.getOrDefault("load", "true")))
+			System.out.println("Load: " + generator.load());
+		System.out.println("Run:  " + generator.run(operations));
+		store.commit();
+		close.run();
+	}
+}
@@ -0,0 +1,102 @@
+package bench;
+
+/**
+ * Mix of operations a {@link LoadGenerator} runs, and how it picks the keys
+ * they touch. The proportions are relative weights and need not add up to
+ * one. {@link #standard} gives the six core workloads of YCSB.
+ */
+public final class Workload {
+
+	/** How the key of each operation is picked among the records */
+	public enum Distribution {
+		/**
+		 * A few keys are far more popular than the rest (Zipf constant 0.99),
+		 * and the popular keys are scattered over the key space.
+		 */
+		ZIPFIAN,
+		/** Every record is equally likely */
+		UNIFORM,
+		/** Recently inserted records are the most popular, with a Zipfian tail */
+		LATEST
+	}
+
+	/** Point reads */
+	public double readProportion;
+
+	/** Overwrites of an existing record */
+	public double updateProportion;
+
+	/** Writes of a new record past the last one */
+	public double insertProportion;
+
+	/** Range reads of up to {@link #maxScanLength} records from a chosen key */
+	public double scanProportion;
+
+	/** A read and a write of the same record, timed as one operation */
+	public double readModifyWriteProportion;
+
+	public Distribution distribution = Distribution.ZIPFIAN;
+
+	/** Scans read a uniformly chosen number of records between 1 and this */
+	public int maxScanLength = 100;
+
+	/**
+	 * The YCSB core workload with the given letter:
+	 * <ul>
+	 * <li>A: 50% reads, 50% updates</li>
+	 * <li>B: 95% reads, 5% updates</li>
+	 * <li>C: reads only</li>
+	 * <li>D: 95% reads, 5% inserts, favouring the latest records</li>
+	 * <li>E: 95% short scans, 5% inserts</li>
+	 * <li>F: 50% reads, 50% read-modify-writes</li>
+	 * </ul>
+	 */
+	public static Workload standard(char letter) {
+		Workload w = new Workload();
+		switch (Character.toUpperCase(letter)) {
+		case 'A':
+			w.readProportion = 0.5;
+			w.updateProportion = 0.5;
+			break;
+		case 'B':
+			w.readProportion = 0.95;
+			w.updateProportion = 0.05;
+			break;
+		case 'C':
+			w.readProportion = 1;
+			break;
+		case 'D':
+			w.readProportion = 0.95;
+			w.insertProportion = 0.05;
+			w.distribution = Distribution.LATEST;
+			break;
+		case 'E':
+			w.scanProportion = 0.95;
+			w.insertProportion = 0.05;
+			break;
+		case 'F':
+			w.readProportion = 0.5;
+			w.readModifyWriteProportion = 0.5;
+			break;
+		default:
+			throw new IllegalArgumentException("No standard workload " + letter);
+		}
+		return w;
+	}
+
+	/** Picks an operation with the weights of this mix, given u uniform in [0, 1) */
+	LoadGenerator.Operation choose(double u) {
+		double total = readProportion + updateProportion + insertProportion + scanProportion
+				+ readModifyWriteProportion;
+		double x = u * total;
+		if ((x -= readProportion) < 0)
+			return LoadGenerator.Operation.READ;
+		if ((x -= updateProportion) < 0)
+			return LoadGenerator.Operation.UPDATE;
+		if ((x -= insertProportion) < 0)
+			return LoadGenerator.Operation.INSERT;
+		if ((x -= scanProportion) < 0)
+			return LoadGenerator.Operation.SCAN;
+		return LoadGenerator.Operation.READ_MODIFY_WRITE;
+	}
+}
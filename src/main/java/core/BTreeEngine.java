@@ -0,0 +1,973 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Copy-on-write B+tree over the fixed-size pages of a single file, read and
+ * written through a {@link BufferPool}. A point read visits one page per
+ * level, mostly without leaving the pool, and a range scan walks the leaves
+ * in key order, which suits read-mostly, scan-heavy data better than an LSM
+ * tree at the price of slower writes. The pool takes the place of the
+ * object cache of the {@link SimpleKV} above it.
+ *
+ * A page reachable from the last committed root is never overwritten: the
+ * first change to it after a commit or a snapshot goes to a copy, and so do
+ * the changes to its ancestors up to a new root, while pages created since
+ * are changed in place. {@link #sync()} writes the dirty pages back and then
+ * records the root in one of two alternating meta slots, so a crash leaves
+ * the tree as of the last sync. A snapshot is an old root whose pages stay
+ * as they are until it is closed; a page dropped from the tree is reused
+ * once neither the committed tree nor any open snapshot can reach it.
+ *
+ * Leaves keep a value inline up to a quarter of a page and put a longer one
+ * in a chain of overflow pages; keys must fit in a quarter of a page. A leaf
+ * is dropped once it is empty, but leaves are not rebalanced. Leaves do not
+ * link to their neighbours, since copying one would then mean copying its
+ * neighbours too; a scan keeps the path from the root instead.
+ */
+final class BTreeEngine implements StorageEngine {
+
+	private static final String FILE = "pages.db";
+	/** Free pages as of the last commit, saving a walk of the tree on open */
+	private static final String FREE = "FREE";
+	private static final int MAGIC = 0x52425431;
+	/** Offset of the second meta slot in page 0 */
+	private static final int META_SLOT = 256;
+	private static final int MIN_PAGE_BYTES = 512;
+	private static final int MIN_POOL_PAGES = 64;
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private static final byte LEAF = 1;
+	private static final byte BRANCH = 2;
+	private static final byte OVERFLOW = 3;
+	/** Type byte and entry count of leaves and branches */
+	private static final int HEADER = 5;
+	/** Type byte, next page and char count of overflow pages */
+	private static final int OVERFLOW_HEADER = 9;
+
+	/** A value kept in a chain of overflow pages */
+	private static final class Overflow {
+		final int page;
+		final int chars;
+
+		Overflow(int page, int chars) {
+			this.page = page;
+			this.chars = chars;
+		}
+	}
+
+	/** A decoded page */
+	static final class Page {
+		final int id;
+		final byte type;
+		final ArrayList<String> keys = new ArrayList<String>();
+		/** Leaf only: a String or an Overflow per key */
+		final ArrayList<Object> values = new ArrayList<Object>();
+		/** Branch only: child i holds the keys in [keys[i-1], keys[i]) */
+		final ArrayList<Integer> children = new ArrayList<Integer>();
+		/** Overflow only: the next page of the chain, 0 at its end */
+		int next;
+		char[] chars;
+		/** Encoded size of a leaf */
+		int bytes;
+
+		Page(int id, byte type) {
+			this.id = id;
+			this.type = type;
+			this.bytes = HEADER;
+		}
+	}
+
+	private final Path dir;
+	private final StoreMetrics metrics;
+	private final FileChannel channel;
+	private final int pageBytes;
+	private final BufferPool<Page> pool;
+	/** Readers of the current tree share it; writers, commits and snapshots take it exclusively */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private int root;
+	/** Pages in the file, meta page included */
+	private int pageCount;
+	/** Generation of the changes being made; every commit and snapshot starts a new one */
+	private long gen;
+	private long committedGen;
+	/** Commits made; they alternate between the meta slots, so the newest is never overwritten */
+	private long commits;
+	private boolean changed;
+	/** Pages created in this generation, which may be changed in place */
+	private final Set<Integer> fresh = new HashSet<Integer>();
+	private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+	/** Dropped pages that may still be reachable: generation dropped in, and page */
+	private final ArrayDeque<long[]> pending = new ArrayDeque<long[]>();
+	/** Open snapshots and iterators by generation; guarded by itself */
+	private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+	/** Separator and new right sibling left by the last split */
+	private String splitKey;
+	private int splitPage;
+	private boolean closed;
+
+	private BTreeEngine(Path dir, StoreOptions options, StoreMetrics metrics, FileChannel channel, int pageBytes) {
+		this.dir = dir;
+		this.metrics = metrics;
+		this.channel = channel;
+		this.pageBytes = pageBytes;
+		int pages = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_POOL_PAGES, options.blockCacheBytes / pageBytes));
+		this.pool = new BufferPool<Page>(pages, new BufferPool.Backing<Page>() {
+			@Override
+			public Page load(int id) throws IOException {
+				return read(id);
+			}
+
+			@Override
+			public void store(int id, Page page) throws IOException {
+				write(page);
+			}
+		}, metrics);
+	}
+
+	/**
+	 * Opens the tree stored in dir, creating an empty one if needed. The page
+	 * size is fixed when the file is created.
+	 */
+	static BTreeEngine open(Path dir, StoreOptions options, StoreMetrics metrics) throws IOException {
+		Files.createDirectories(dir);
+		FileChannel channel = FileChannel.open(dir.resolve(FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			ByteBuffer meta = null;
+			int newest = 0;
+			for (int slot = 0; slot < 2; slot++) {
+				ByteBuffer m = readMeta(channel, slot);
+				if (m != null && (meta == null || m.getLong(8) > meta.getLong(8))) {
+					meta = m;
+					newest = slot;
+				}
+			}
+			if (meta == null) {
+				BTreeEngine t = new BTreeEngine(dir, options, metrics, channel,
+						Math.max(MIN_PAGE_BYTES, options.blockBytes));
+				t.pageCount = 1;
+				Page leaf = t.newPage(LEAF);
+				t.pool.unpin(leaf.id, true);
+				t.root = leaf.id;
+				t.changed = true;
+				t.commit();
+				return t;
+			}
+			BTreeEngine t = new BTreeEngine(dir, options, metrics, channel, meta.getInt(4));
+			t.committedGen = meta.getLong(8);
+			t.gen = t.committedGen + 1;
+			// the next commit goes to the other slot
+			t.commits = newest + 1;
+			t.root = meta.getInt(16);
+			t.pageCount = meta.getInt(20);
+			t.loadFreePages();
+			return t;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** The meta slot, positioned at its start, or null if it is blank or torn */
+	private static ByteBuffer readMeta(FileChannel channel, int slot) throws IOException {
+		ByteBuffer m = ByteBuffer.allocate(28);
+		while (m.hasRemaining()) {
+			if (channel.read(m, slot * META_SLOT + m.position()) < 0)
+				return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(m.array(), 0, 24);
+		if (m.getInt(0) != MAGIC || m.getInt(24) != (int) crc.getValue())
+			return null;
+		return m;
+	}
+
+	private void writeMeta() throws IOException {
+		ByteBuffer m = ByteBuffer.allocate(28);
+		m.putInt(MAGIC).putInt(pageBytes).putLong(gen).putInt(root).putInt(pageCount);
+		CRC32 crc = new CRC32();
+		crc.update(m.array(), 0, 24);
+		m.putInt((int) crc.getValue());
+		m.flip();
+		long at = (commits & 1) * META_SLOT;
+		while (m.hasRemaining())
+			channel.write(m, at + m.position());
+		commits++;
+	}
+
+	/**
+	 * Takes the free pages saved by the last commit, or finds them by walking
+	 * the tree if the file is from another commit.
+	 */
+	private void loadFreePages() throws IOException {
+		Path file = dir.resolve(FREE);
+		if (Files.exists(file)) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				if (in.readLong() == committedGen) {
+					int n = in.readInt();
+					for (int i = 0; i < n; i++)
+						free.add(in.readInt());
+					return;
+				}
+			} catch (EOFException e) {
+				free.clear();
+			}
+		}
+		BitSet used = new BitSet(pageCount);
+		used.set(0);
+		ArrayDeque<Integer> todo = new ArrayDeque<Integer>();
+		todo.add(root);
+		while (!todo.isEmpty()) {
+			int id = todo.poll();
+			used.set(id);
+			Page p = pool.pin(id, false);
+			try {
+				todo.addAll(p.children);
+				for (Object v : p.values) {
+					if (v instanceof Overflow)
+						todo.add(((Overflow) v).page);
+				}
+				if (p.next != 0)
+					todo.add(p.next);
+			} finally {
+				pool.unpin(id, false);
+			}
+		}
+		for (int id = used.nextClearBit(1); id < pageCount; id = used.nextClearBit(id + 1))
+			free.add(id);
+	}
+
+	private void saveFreePages() throws IOException {
+		Path tmp = dir.resolve(FREE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			int n = free.size();
+			for (long[] p : pending) {
+				if (p[0] <= committedGen)
+					n++;
+			}
+			out.writeLong(committedGen);
+			out.writeInt(n);
+			for (int id : free)
+				out.writeInt(id);
+			// a reopened store has no snapshots to keep these for
+			for (long[] p : pending) {
+				if (p[0] <= committedGen)
+					out.writeInt((int) p[1]);
+			}
+		}
+		FileSync.replace(tmp, dir.resolve(FREE));
+	}
+
+	private Page read(int id) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(pageBytes);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, (long) id * pageBytes + buf.position()) < 0)
+				throw new EOFException("Page " + id + " past the end of " + FILE);
+		}
+		metrics.bytesRead.add(pageBytes);
+		buf.flip();
+		Page p = new Page(id, buf.get());
+		int n = buf.getInt();
+		if (p.type == OVERFLOW) {
+			p.next = n;
+			p.chars = new char[buf.getInt()];
+			buf.asCharBuffer().get(p.chars);
+			return p;
+		}
+		if (p.type == BRANCH)
+			p.children.add(buf.getInt());
+		for (int i = 0; i < n; i++) {
+			p.keys.add(CharCodec.decode(buf));
+			if (p.type == BRANCH) {
+				p.children.add(buf.getInt());
+			} else if (buf.get() == 0) {
+				p.values.add(CharCodec.decode(buf));
+			} else {
+				p.values.add(new Overflow(buf.getInt(), buf.getInt()));
+			}
+		}
+		if (p.type == LEAF)
+			p.bytes = pageBytes - buf.remaining();
+		return p;
+	}
+
+	private void write(Page p) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(pageBytes);
+		buf.put(p.type);
+		if (p.type == OVERFLOW) {
+			buf.putInt(p.next);
+			buf.putInt(p.chars.length);
+			buf.asCharBuffer().put(p.chars);
+		} else {
+			buf.putInt(p.keys.size());
+			if (p.type == BRANCH)
+				buf.putInt(p.children.get(0));
+			for (int i = 0; i < p.keys.size(); i++) {
+				CharCodec.encode(buf, p.keys.get(i));
+				if (p.type == BRANCH) {
+					buf.putInt(p.children.get(i + 1));
+				} else if (p.values.get(i) instanceof String) {
+					buf.put((byte) 0);
+					CharCodec.encode(buf, (String) p.values.get(i));
+				} else {
+					Overflow o = (Overflow) p.values.get(i);
+					buf.put((byte) 1);
+					buf.putInt(o.page);
+					buf.putInt(o.chars);
+				}
+			}
+		}
+		buf.clear();
+		while (buf.hasRemaining())
+			channel.write(buf, (long) p.id * pageBytes + buf.position());
+		metrics.bytesWritten.add(pageBytes);
+	}
+
+	private static int valueBytes(Object v) {
+		return 1 + (v instanceof String ? CharCodec.encodedLength((String) v) : 8);
+	}
+
+	private static int branchBytes(Page p) {
+		int bytes = HEADER + 4 * p.children.size();
+		for (String k : p.keys)
+			bytes += CharCodec.encodedLength(k);
+		return bytes;
+	}
+
+	/** Index of the child of a branch whose keys include key */
+	private static int childIndex(Page p, String key) {
+		int i = Collections.binarySearch(p.keys, key);
+		return i >= 0 ? i + 1 : -i - 1;
+	}
+
+	@Override
+	public boolean cachesData() {
+		return true;
+	}
+
+	@Override
+	public void memoryUsage(Map<String, Long> usage) {
+		usage.merge("bufferPool", pool.retainedBytes(BTreeEngine::pageBytes), Long::sum);
+	}
+
+	/** Estimated heap held by a decoded page */
+	private static long pageBytes(Page p) {
+		long list = Footprint.object(1, 8);
+		long bytes = Footprint.object(4, 13) + 3 * list + Footprint.array(p.keys.size(), Footprint.REFERENCE)
+				+ Footprint.array(p.values.size(), Footprint.REFERENCE)
+				+ Footprint.array(p.children.size(), Footprint.REFERENCE);
+		for (String k : p.keys)
+			bytes += Footprint.string(k);
+		for (Object v : p.values)
+			bytes += v instanceof String ? Footprint.string((String) v) : Footprint.object(0, 8);
+		bytes += p.children.size() * Footprint.object(0, 4);
+		if (p.chars != null)
+			bytes += Footprint.array(p.chars.length, 2);
+		return bytes;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("Store closed");
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			return find(root, key, true);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void getMany(String[] keys, String[] out) throws IOException {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			for (int i = 0; i < keys.length; i++)
+				out[i] = find(root, keys[i], true);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** The value of key in the tree under id, or null */
+	private String find(int id, String key, boolean fillCache) throws IOException {
+		while (true) {
+			Page p = pool.pin(id, fillCache);
+			try {
+				if (p.type == LEAF) {
+					int i = Collections.binarySearch(p.keys, key);
+					return i < 0 ? null : value(p.values.get(i), fillCache);
+				}
+				id = p.children.get(childIndex(p, key));
+			} finally {
+				pool.unpin(p.id, false);
+			}
+		}
+	}
+
+	private String value(Object v, boolean fillCache) throws IOException {
+		if (v instanceof String)
+			return (String) v;
+		Overflow o = (Overflow) v;
+		char[] chars = new char[o.chars];
+		int n = 0;
+		for (int id = o.page; id != 0;) {
+			Page p = pool.pin(id, fillCache);
+			System.arraycopy(p.chars, 0, chars, n, p.chars.length);
+			n += p.chars.length;
+			pool.unpin(id, false);
+			id = p.next;
+		}
+		return new String(chars);
+	}
+
+	@Override
+	public void put(String key, String value) throws IOException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			insert(key, value);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void putMany(String[] keys, String[] values) throws IOException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			for (int i = 0; i < keys.length; i++)
+				insert(keys[i], values[i]);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			remove(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteMany(String[] keys) throws IOException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			for (String key : keys)
+				remove(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void insert(String key, String value) throws IOException {
+		if (CharCodec.encodedLength(key) > pageBytes / 4)
+			throw new IllegalArgumentException("Key of " + key.length() + " chars does not fit in a page");
+		Object v = CharCodec.encodedLength(value) > pageBytes / 4 ? writeOverflow(value) : value;
+		int r = insert(root, key, v);
+		if (splitKey != null) {
+			Page top = newPage(BRANCH);
+			top.children.add(r);
+			top.keys.add(splitKey);
+			top.children.add(splitPage);
+			pool.unpin(top.id, true);
+			splitKey = null;
+			r = top.id;
+		}
+		root = r;
+		changed = true;
+	}
+
+	/**
+	 * Puts key into the subtree under id and returns the page now holding
+	 * it. A split of that page is left in splitKey and splitPage.
+	 */
+	private int insert(int id, String key, Object v) throws IOException {
+		Page p = writable(id);
+		try {
+			if (p.type == LEAF) {
+				int i = Collections.binarySearch(p.keys, key);
+				if (i >= 0) {
+					p.bytes -= valueBytes(p.values.get(i));
+					drop(p.values.get(i));
+					p.values.set(i, v);
+				} else {
+					i = -i - 1;
+					p.keys.add(i, key);
+					p.values.add(i, v);
+					p.bytes += CharCodec.encodedLength(key);
+				}
+				p.bytes += valueBytes(v);
+				if (p.bytes > pageBytes)
+					splitLeaf(p);
+			} else {
+				int c = childIndex(p, key);
+				p.children.set(c, insert(p.children.get(c), key, v));
+				if (splitKey != null) {
+					p.keys.add(c, splitKey);
+					p.children.add(c + 1, splitPage);
+					splitKey = null;
+					if (branchBytes(p) > pageBytes)
+						splitBranch(p);
+				}
+			}
+			return p.id;
+		} finally {
+			pool.unpin(p.id, true);
+		}
+	}
+
+	/** Moves the upper half of a full leaf, by size, to a new right sibling */
+	private void splitLeaf(Page p) throws IOException {
+		int half = p.bytes / 2;
+		int bytes = HEADER;
+		int m = 0;
+		while (m < p.keys.size() - 1 && bytes < half) {
+			bytes += CharCodec.encodedLength(p.keys.get(m)) + valueBytes(p.values.get(m));
+			m++;
+		}
+		m = Math.max(1, m);
+		Page right = newPage(LEAF);
+		List<String> movedKeys = p.keys.subList(m, p.keys.size());
+		List<Object> movedValues = p.values.subList(m, p.values.size());
+		right.keys.addAll(movedKeys);
+		right.values.addAll(movedValues);
+		movedKeys.clear();
+		movedValues.clear();
+		p.bytes = HEADER;
+		for (int i = 0; i < p.keys.size(); i++)
+			p.bytes += CharCodec.encodedLength(p.keys.get(i)) + valueBytes(p.values.get(i));
+		for (int i = 0; i < right.keys.size(); i++)
+			right.bytes += CharCodec.encodedLength(right.keys.get(i)) + valueBytes(right.values.get(i));
+		pool.unpin(right.id, true);
+		splitKey = right.keys.get(0);
+		splitPage = right.id;
+	}
+
+	/** Moves the upper half of a full branch to a new right sibling; the middle key goes up */
+	private void splitBranch(Page p) throws IOException {
+		int m = p.keys.size() / 2;
+		Page right = newPage(BRANCH);
+		right.keys.addAll(p.keys.subList(m + 1, p.keys.size()));
+		right.children.addAll(p.children.subList(m + 1, p.children.size()));
+		splitKey = p.keys.get(m);
+		splitPage = right.id;
+		p.keys.subList(m, p.keys.size()).clear();
+		p.children.subList(m + 1, p.children.size()).clear();
+		pool.unpin(right.id, true);
+	}
+
+	private void remove(String key) throws IOException {
+		if (find(root, key, true) == null)
+			return; // nothing to copy pages for
+		int r = remove(root, key);
+		if (r < 0) {
+			Page leaf = newPage(LEAF);
+			pool.unpin(leaf.id, true);
+			r = leaf.id;
+		}
+		// a root left with a single child hands over to it
+		while (true) {
+			Page p = pool.pin(r);
+			int only = p.type == BRANCH && p.children.size() == 1 ? p.children.get(0) : -1;
+			pool.unpin(r, false);
+			if (only < 0)
+				break;
+			free(r);
+			r = only;
+		}
+		root = r;
+		changed = true;
+	}
+
+	/**
+	 * Removes key from the subtree under id and returns the page now holding
+	 * it, or -1 if the subtree became empty and was dropped.
+	 */
+	private int remove(int id, String key) throws IOException {
+		Page p = writable(id);
+		boolean empty;
+		try {
+			if (p.type == LEAF) {
+				int i = Collections.binarySearch(p.keys, key);
+				if (i >= 0) {
+					p.bytes -= CharCodec.encodedLength(key) + valueBytes(p.values.get(i));
+					drop(p.values.get(i));
+					p.keys.remove(i);
+					p.values.remove(i);
+				}
+				empty = p.keys.isEmpty();
+			} else {
+				int c = childIndex(p, key);
+				int child = remove(p.children.get(c), key);
+				if (child >= 0) {
+					p.children.set(c, child);
+				} else {
+					p.children.remove(c);
+					if (!p.keys.isEmpty())
+						p.keys.remove(c == 0 ? 0 : c - 1);
+				}
+				empty = p.children.isEmpty();
+			}
+		} finally {
+			pool.unpin(p.id, true);
+		}
+		if (!empty)
+			return p.id;
+		free(p.id);
+		return -1;
+	}
+
+	/** The page with the given id if it may be changed in place, or a new copy of it */
+	private Page writable(int id) throws IOException {
+		Page p = pool.pin(id);
+		if (fresh.contains(id))
+			return p;
+		Page copy = newPage(p.type);
+		copy.keys.addAll(p.keys);
+		copy.values.addAll(p.values);
+		copy.children.addAll(p.children);
+		copy.bytes = p.bytes;
+		pool.unpin(id, false);
+		free(id);
+		return copy;
+	}
+
+	/** Allocates and pins an empty page */
+	private Page newPage(byte type) throws IOException {
+		Integer id = free.poll();
+		if (id == null) {
+			reclaim();
+			id = free.poll();
+		}
+		if (id == null)
+			id = pageCount++;
+		Page p = new Page(id, type);
+		fresh.add(id);
+		pool.create(id, p);
+		return p;
+	}
+
+	/**
+	 * Gives a page dropped from the tree back for reuse: at once if it was
+	 * created in this generation, otherwise once nothing can reach it.
+	 */
+	private void free(int id) {
+		if (fresh.remove(id)) {
+			pool.discard(id);
+			free.add(id);
+		} else {
+			pending.add(new long[] { gen, id });
+		}
+	}
+
+	/** Moves the pending pages that no committed tree or open snapshot can reach to the free list */
+	private void reclaim() {
+		long oldest;
+		synchronized (snapshots) {
+			oldest = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+		}
+		while (!pending.isEmpty() && pending.peek()[0] <= Math.min(committedGen, oldest))
+			free.add((int) pending.poll()[1]);
+	}
+
+	private Overflow writeOverflow(String value) throws IOException {
+		int per = (pageBytes - OVERFLOW_HEADER) / 2;
+		int next = 0;
+		// written back to front, so that each page knows its successor
+		for (int start = (value.length() - 1) / per * per; start >= 0; start -= per) {
+			Page p = newPage(OVERFLOW);
+			p.chars = value.substring(start, Math.min(value.length(), start + per)).toCharArray();
+			p.next = next;
+			pool.unpin(p.id, true);
+			next = p.id;
+		}
+		return new Overflow(next, value.length());
+	}
+
+	/** Frees the overflow chain of a value that is no longer in the tree */
+	private void drop(Object v) throws IOException {
+		if (!(v instanceof Overflow))
+			return;
+		for (int id = ((Overflow) v).page; id != 0;) {
+			Page p = pool.pin(id, false);
+			pool.unpin(id, false);
+			free(id);
+			id = p.next;
+		}
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+		try (Snapshot s = snapshot()) {
+			return s.iterator(from, to, fillCache);
+		}
+	}
+
+	/** Seals the current tree, so that its pages stay as they are while the snapshot is open */
+	@Override
+	public Snapshot snapshot() {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			long g = gen++;
+			fresh.clear();
+			retain(g);
+			return new TreeSnapshot(root, g);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void retain(long g) {
+		synchronized (snapshots) {
+			snapshots.merge(g, 1, Integer::sum);
+		}
+	}
+
+	/** Returns a snapshot's hold on its pages; they are reclaimed by a later allocation or commit */
+	private Runnable releaser(final long g) {
+		return () -> {
+			synchronized (snapshots) {
+				if (snapshots.merge(g, -1, Integer::sum) == 0)
+					snapshots.remove(g);
+			}
+		};
+	}
+
+	private final class TreeSnapshot implements Snapshot {
+		private final int root;
+		private final long gen;
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private final Cleaner.Cleanable cleanable;
+
+		TreeSnapshot(int root, long gen) {
+			this.root = root;
+			this.gen = gen;
+			this.cleanable = CLEANER.register(this, releaser(gen));
+		}
+
+		@Override
+		public String get(String key) throws IOException {
+			checkOpen();
+			return find(root, key, true);
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+			checkOpen();
+			// the iterator holds its own reference, so it outlives the snapshot
+			retain(gen);
+			try {
+				return new Cursor(root, gen, from, to, fillCache);
+			} catch (IOException e) {
+				releaser(gen).run();
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void checkOpen() {
+			if (closed.get())
+				throw new IllegalStateException("Snapshot closed");
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true))
+				cleanable.clean();
+		}
+	}
+
+	/**
+	 * Walks the leaves of a sealed tree in key order, one leaf at a time,
+	 * keeping the path of branches that led to the current leaf. Releases its
+	 * pages once hasNext() reports the end, or when it is collected without
+	 * being drained.
+	 */
+	private final class Cursor implements Iterator<Map.Entry<String, String>> {
+		/** Branches on the path to the current leaf, and the child taken in each */
+		private final ArrayDeque<int[]> path = new ArrayDeque<int[]>();
+		private final String to;
+		private final boolean fillCache;
+		private final Cleaner.Cleanable cleanable;
+		private List<String> keys = Collections.emptyList();
+		private List<Object> values = Collections.emptyList();
+		private int pos;
+		private boolean done;
+
+		Cursor(int root, long gen, String from, String to, boolean fillCache) throws IOException {
+			this.to = to;
+			this.fillCache = fillCache;
+			this.cleanable = CLEANER.register(this, releaser(gen));
+			descend(root, from);
+			if (from != null) {
+				int i = Collections.binarySearch(keys, from);
+				pos = i >= 0 ? i : -i - 1;
+			}
+		}
+
+		/** Goes down to the leaf that would hold from, or the leftmost one */
+		private void descend(int id, String from) throws IOException {
+			while (true) {
+				Page p = pool.pin(id, fillCache);
+				try {
+					if (p.type == LEAF) {
+						keys = p.keys;
+						values = p.values;
+						pos = 0;
+						return;
+					}
+					int c = from == null ? 0 : childIndex(p, from);
+					path.push(new int[] { id, c });
+					id = p.children.get(c);
+				} finally {
+					pool.unpin(p.id, false);
+				}
+			}
+		}
+
+		/** Moves to the next leaf; false at the end of the tree */
+		private boolean nextLeaf() throws IOException {
+			while (!path.isEmpty()) {
+				int[] top = path.peek();
+				Page p = pool.pin(top[0], fillCache);
+				int child;
+				try {
+					child = ++top[1] < p.children.size() ? p.children.get(top[1]) : -1;
+				} finally {
+					pool.unpin(top[0], false);
+				}
+				if (child >= 0) {
+					descend(child, null);
+					return true;
+				}
+				path.pop();
+			}
+			return false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (done)
+				return false;
+			try {
+				while (pos == keys.size()) {
+					if (!nextLeaf()) {
+						done = true;
+						break;
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (!done && to != null && keys.get(pos).compareTo(to) >= 0)
+				done = true;
+			if (done)
+				cleanable.clean();
+			return !done;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			try {
+				String value = value(values.get(pos), fillCache);
+				return new AbstractMap.SimpleImmutableEntry<String, String>(keys.get(pos++), value);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/** Commits every change so far */
+	@Override
+	public void sync() throws IOException {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			commit();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the dirty pages back and makes them durable before the meta slot
+	 * pointing at the new root, so that the slot never refers to pages that
+	 * did not make it to disk.
+	 */
+	private void commit() throws IOException {
+		if (!changed)
+			return;
+		StoreEvents.Fsync event = new StoreEvents.Fsync();
+		event.begin();
+		long start = System.nanoTime();
+		pool.flush();
+		channel.force(false);
+		writeMeta();
+		channel.force(false);
+		metrics.fsyncs.recordSince(start);
+		event.finish(dir.resolve(FILE), (long) pageCount * pageBytes);
+		committedGen = gen++;
+		fresh.clear();
+		changed = false;
+		reclaim();
+		saveFreePages();
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (closed)
+				return;
+			commit();
+			closed = true;
+			channel.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A large value stored outside the tree in its own file, NNNNNN.blob, as
+ * raw UTF-16 chars. The tree holds a short reference in its place, so logs,
+ * tables, compactions and the object cache never carry the value itself,
+ * and the value is written and read through a fixed-size buffer.
+ *
+ * Stored values that start with {@link #REF} are references. The Unicode
+ * noncharacters from {@link #REF} to {@link #RESERVED_END} are kept for such
+ * markers, the tree's tombstone among them, so a value that really starts
+ * with one of them is stored with an extra {@link #ESCAPE} in front.
+ */
+final class BlobFile {
+
+	static final char REF = '\uFDD0';
+	static final char ESCAPE = '\uFDD1';
+	/** Last char reserved for markers; see {@link StorageEngine#TOMBSTONE} */
+	static final char RESERVED_END = '\uFDEF';
+
+	/** Bytes buffered per open reader or writer */
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	private BlobFile() {
+	}
+
+	static String fileName(long id) {
+		return String.format("%06d.blob", id);
+	}
+
+	static boolean isRef(String stored) {
+		return !stored.isEmpty() && stored.charAt(0) == REF;
+	}
+
+	static String ref(long id, long length) {
+		return REF + Long.toString(id) + ':' + length;
+	}
+
+	static long id(String ref) {
+		return Long.parseLong(ref.substring(1, ref.indexOf(':')));
+	}
+
+	static long length(String ref) {
+		return Long.parseLong(ref.substring(ref.indexOf(':') + 1));
+	}
+
+	/** The stored form of a value kept inline in the tree */
+	static String escape(String value) {
+		if (value.isEmpty())
+			return value;
+		char c = value.charAt(0);
+		return c >= REF && c <= RESERVED_END ? ESCAPE + value : value;
+	}
+
+	/** The value of a stored form that is not a reference */
+	static String unescape(String stored) {
+		return !stored.isEmpty() && stored.charAt(0) == ESCAPE ? stored.substring(1) : stored;
+	}
+
+	/** Reads a whole blob into memory */
+	static char[] readAll(Path path, long length, StoreMetrics metrics) throws IOException {
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Value of " + length + " chars is too large for an array; use a reader");
+		char[] chars = new char[(int) length];
+		try (In in = new In(path, length, metrics)) {
+			int n = 0;
+			while (n < chars.length) {
+				int r = in.read(chars, n, chars.length - n);
+				if (r < 0)
+					throw new IOException("Truncated blob " + path);
+				n += r;
+			}
+		}
+		return chars;
+	}
+
+	/**
+	 * Streams chars into a new blob file. {@link #close()} forces the file to
+	 * disk, so the reference can be logged as soon as it returns.
+	 */
+	static final class Out extends Writer {
+		final long id;
+		final Path path;
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+		private final StoreMetrics metrics;
+		private long length;
+		private boolean closed;
+
+		Out(long id, Path path, StoreMetrics metrics) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.metrics = metrics;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		}
+
+		long length() {
+			return length;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			for (int i = 0; i < len; i++) {
+				if (buf.remaining() < 2)
+					drain();
+				buf.putChar(cbuf[off + i]);
+			}
+			length += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			for (int i = 0; i < len; i++) {
+				if (buf.remaining() < 2)
+					drain();
+				buf.putChar(str.charAt(off + i));
+			}
+			length += len;
+		}
+
+		private void drain() throws IOException {
+			buf.flip();
+			metrics.bytesWritten.add(buf.remaining());
+			while (buf.hasRemaining())
+				channel.write(buf);
+			buf.clear();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				drain();
+				StoreEvents.Fsync event = new StoreEvents.Fsync();
+				event.begin();
+				long start = System.nanoTime();
+				channel.force(true);
+				metrics.fsyncs.recordSince(start);
+				event.finish(path, 2 * length);
+			} finally {
+				channel.close();
+			}
+		}
+
+		/** Closes and deletes the file after a failed write */
+		void abandon() {
+			closed = true;
+			try {
+				channel.close();
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Streams the chars of a blob. The file is opened up front, so that it
+	 * stays readable even if it is collected while being read.
+	 */
+	static final class In extends Reader {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+		private final StoreMetrics metrics;
+		private long remaining;
+
+		In(Path path, long length, StoreMetrics metrics) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			this.remaining = length;
+			this.metrics = metrics;
+			buf.flip();
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			if (buf.remaining() < 2) {
+				buf.compact();
+				int r = channel.read(buf);
+				buf.flip();
+				if (r < 0 && buf.remaining() < 2)
+					throw new IOException("Truncated blob");
+				if (r > 0)
+					metrics.bytesRead.add(r);
+			}
+			int n = (int) Math.min(Math.min(len, buf.remaining() / 2), remaining);
+			for (int i = 0; i < n; i++)
+				cbuf[off + i] = buf.getChar();
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Second-tier cache of table data blocks, shared by every table of a store.
+ * Blocks are kept deflated and the memory budget is charged in compressed
+ * bytes, so far more of the data set stays in memory than the decoded value
+ * cache could hold; a hit costs an inflate instead of a disk read.
+ */
+final class BlockCache {
+
+	/** Bookkeeping charged per cached block on top of its compressed bytes: map entry, key, array header */
+	private static final int ENTRY_OVERHEAD = 80;
+
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+	private final long capacity;
+	private long used;
+	private final LinkedHashMap<Key, byte[]> blocks = new LinkedHashMap<Key, byte[]>(256, 0.75f, true);
+
+	BlockCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	static Key key(long tableId, int block) {
+		return new Key(tableId, block);
+	}
+
+	/**
+	 * A block of one table. Both parts are kept whole, since no split of a
+	 * single long fits every table id together with every block index.
+	 */
+	static final class Key {
+		final long table;
+		final int block;
+
+		Key(long table, int block) {
+			this.table = table;
+			this.block = block;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return table == k.table && block == k.block;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(table) * 31 + block;
+		}
+
+		@Override
+		public String toString() {
+			return table + ":" + block;
+		}
+	}
+
+	/**
+	 * Inflates the cached block into a new array of the given length, or
+	 * returns null on a miss.
+	 */
+	byte[] get(Key key, int length) {
+		byte[] compressed;
+		synchronized (this) {
+			compressed = blocks.get(key);
+		}
+		if (compressed == null)
+			return null;
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+		byte[] block = new byte[length];
+		try {
+			int n = 0;
+			while (n < length && !inflater.finished())
+				n += inflater.inflate(block, n, length - n);
+			if (n != length)
+				return null;
+		} catch (DataFormatException e) {
+			return null;
+		}
+		return block;
+	}
+
+	void put(Key key, byte[] block, int length) {
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setInput(block, 0, length);
+		deflater.finish();
+		byte[] buf = new byte[length + 64];
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == buf.length)
+				return; // incompressible; not worth caching deflated
+			n += deflater.deflate(buf, n, buf.length - n);
+		}
+		byte[] compressed = new byte[n];
+		System.arraycopy(buf, 0, compressed, 0, n);
+
+		synchronized (this) {
+			byte[] old = blocks.put(key, compressed);
+			if (old != null)
+				used -= old.length + ENTRY_OVERHEAD;
+			used += n + ENTRY_OVERHEAD;
+			Iterator<Map.Entry<Key, byte[]>> it = blocks.entrySet().iterator();
+			while (used > capacity && it.hasNext()) {
+				used -= it.next().getValue().length + ENTRY_OVERHEAD;
+				it.remove();
+			}
+		}
+	}
+
+	/** Compressed bytes currently held, including bookkeeping */
+	synchronized long used() {
+		return used;
+	}
+}
@@ -0,0 +1,118 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Bloom filter over the keys of one table, used to skip tables that cannot
+ * hold a key without reading any of their blocks. Probes are derived from a
+ * single 64-bit hash by double hashing.
+ */
+final class BloomFilter {
+
+	private final int probes;
+	private final long[] bits;
+	private final long numBits;
+
+	private BloomFilter(int probes, long[] bits) {
+		this.probes = probes;
+		this.bits = bits;
+		this.numBits = (long) bits.length * 64;
+	}
+
+	long retainedBytes() {
+		return Footprint.object(1, 12) + Footprint.array(bits.length, 8);
+	}
+
+	/** Builds a filter over the given key hashes, see {@link #hash(String)} */
+	static BloomFilter build(long[] hashes, int count, int bitsPerKey) {
+		int probes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+		long nbits = Math.max(64, (long) count * bitsPerKey);
+		BloomFilter f = new BloomFilter(probes, new long[(int) ((nbits + 63) / 64)]);
+		for (int i = 0; i < count; i++)
+			f.add(hashes[i]);
+		return f;
+	}
+
+	/** 64-bit hash of a key, mixing every char */
+	static long hash(String key) {
+		long h = 0x9E3779B97F4A7C15L ^ key.length();
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+		}
+		h ^= h >>> 33;
+		h *= 0x94D049BB133111EBL;
+		return h ^ (h >>> 29);
+	}
+
+	private void add(long hash) {
+		long h1 = hash, h2 = (hash >>> 32) | 1;
+		for (int i = 0; i < probes; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/** False only if key was certainly not added */
+	boolean mightContain(String key) {
+		return mightContain(hash(key));
+	}
+
+	boolean mightContain(long hash) {
+		long h1 = hash, h2 = (hash >>> 32) | 1;
+		for (int i = 0; i < probes; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Saves the filter to path and forces it to disk. The file ends with the
+	 * CRC32 of the rest, since a damaged filter would hide keys.
+	 */
+	void writeTo(Path path) throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(path.toFile())) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(probes);
+			out.writeInt(bits.length);
+			for (long w : bits)
+				out.writeLong(w);
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			fos.getChannel().force(true);
+		}
+	}
+
+	/** Loads a filter saved by {@link #writeTo}; throws IOException if the file is truncated or damaged */
+	static BloomFilter readFrom(Path path) throws IOException {
+		long size = Files.size(path);
+		try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path)), new CRC32())) {
+			DataInputStream in = new DataInputStream(checked);
+			int probes = in.readInt();
+			int words = in.readInt();
+			if (probes < 1 || probes > 30 || words < 1 || size != 12 + 8L * words)
+				throw new IOException("Damaged filter " + path);
+			long[] bits = new long[words];
+			for (int i = 0; i < bits.length; i++)
+				bits[i] = in.readLong();
+			int expected = (int) checked.getChecksum().getValue();
+			if (in.readInt() != expected)
+				throw new IOException("Checksum mismatch in filter " + path);
+			return new BloomFilter(probes, bits);
+		}
+	}
+}
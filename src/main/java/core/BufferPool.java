@@ -0,0 +1,230 @@
+package core;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * Fixed set of frames caching the pages of one file, evicted by the CLOCK
+ * algorithm. A page is pinned while it is in use and cannot be evicted
+ * until every pin is released; a page unpinned as dirty is written back
+ * when it is evicted or on {@link #flush()}, not before.
+ *
+ * Every sweep of the clock hand clears the reference bit of the frames it
+ * passes and evicts the first unpinned frame whose bit was already clear, so
+ * a page survives as long as it is used at least once per sweep. Pages read
+ * without filling the cache enter with the bit clear and are the first to
+ * go.
+ *
+ * A missing page is read in outside the pool's lock: the frame is reserved
+ * for it first, and other threads pinning the same page wait for that read
+ * instead of starting their own.
+ */
+final class BufferPool<P> {
+
+	/** Where pages come from and go back to */
+	interface Backing<P> {
+		P load(int id) throws IOException;
+
+		void store(int id, P page) throws IOException;
+	}
+
+	private final Backing<P> backing;
+	private final StoreMetrics metrics;
+	private final int[] ids;
+	private final Object[] pages;
+	private final int[] pins;
+	private final boolean[] referenced;
+	private final boolean[] dirty;
+	/** Read in progress into each reserved frame, null once the page is there */
+	private final CompletableFuture<P>[] loading;
+	/** Frame of every cached page */
+	private final Map<Integer, Integer> frames = new HashMap<Integer, Integer>();
+	private int hand;
+
+	@SuppressWarnings("unchecked")
+	BufferPool(int capacity, Backing<P> backing, StoreMetrics metrics) {
+		this.backing = backing;
+		this.metrics = metrics;
+		this.ids = new int[capacity];
+		this.pages = new Object[capacity];
+		this.pins = new int[capacity];
+		this.referenced = new boolean[capacity];
+		this.dirty = new boolean[capacity];
+		this.loading = (CompletableFuture<P>[]) new CompletableFuture<?>[capacity];
+	}
+
+	int capacity() {
+		return pages.length;
+	}
+
+	/** Pins the page with the given id, reading it in if it is not cached */
+	P pin(int id) throws IOException {
+		return pin(id, true);
+	}
+
+	/**
+	 * As {@link #pin(int)}; a page read in without fillCache is evicted
+	 * before any other unless it is used again.
+	 */
+	@SuppressWarnings("unchecked")
+	P pin(int id, boolean fillCache) throws IOException {
+		CompletableFuture<P> load;
+		int v;
+		synchronized (this) {
+			Integer f = frames.get(id);
+			if (f != null) {
+				metrics.blockCacheHits.increment();
+				pins[f]++;
+				if (loading[f] == null) {
+					referenced[f] = true;
+					return (P) pages[f];
+				}
+				// another thread is reading it in; share that read
+				referenced[f] |= fillCache;
+				load = loading[f];
+				v = -1;
+			} else {
+				metrics.blockCacheMisses.increment();
+				v = victim();
+				ids[v] = id;
+				pins[v] = 1;
+				dirty[v] = false;
+				referenced[v] = fillCache;
+				frames.put(id, v);
+				load = loading[v] = new CompletableFuture<P>();
+			}
+		}
+		if (v < 0) {
+			// pinned already; a failed read takes the frame and the pin with it
+			try {
+				return load.join();
+			} catch (CompletionException e) {
+				throw new IOException("Reading page " + id + " failed", e.getCause());
+			}
+		}
+		P page;
+		try {
+			page = backing.load(id);
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				frames.remove(id);
+				pins[v] = 0;
+				loading[v] = null;
+			}
+			load.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (this) {
+			pages[v] = page;
+			loading[v] = null;
+		}
+		load.complete(page);
+		return page;
+	}
+
+	/**
+	 * Caches a page that was just created, pinned and dirty, in place of any
+	 * stale copy of a page that had the same id.
+	 */
+	synchronized void create(int id, P page) throws IOException {
+		Integer f = frames.get(id);
+		int v = f != null ? f : victim();
+		install(v, id, page, true);
+		referenced[v] = true;
+	}
+
+	private void install(int frame, int id, P page, boolean isDirty) {
+		if (pages[frame] != null)
+			frames.remove(ids[frame]);
+		ids[frame] = id;
+		pages[frame] = page;
+		pins[frame] = 1;
+		dirty[frame] = isDirty;
+		frames.put(id, frame);
+	}
+
+	/** Releases a pin; changed says whether the page was modified while pinned */
+	synchronized void unpin(int id, boolean changed) {
+		int f = frames.get(id);
+		if (pins[f] <= 0)
+			throw new IllegalStateException("Page " + id + " is not pinned");
+		pins[f]--;
+		dirty[f] |= changed;
+	}
+
+	/** Forgets a page that was freed before it was ever written, without writing it */
+	synchronized void discard(int id) {
+		Integer f = frames.remove(id);
+		if (f != null) {
+			pages[f] = null;
+			pins[f] = 0;
+			dirty[f] = false;
+			referenced[f] = false;
+		}
+	}
+
+	/** Writes every dirty page back; they stay cached */
+	synchronized void flush() throws IOException {
+		for (int f = 0; f < pages.length; f++) {
+			if (pages[f] != null && dirty[f])
+				writeBack(f);
+		}
+	}
+
+	/**
+	 * Estimated heap held by the pool: its frames and bookkeeping, and every
+	 * cached page as sized by pageBytes
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized long retainedBytes(ToLongFunction<? super P> pageBytes) {
+		long bytes = Footprint.array(pages.length, Footprint.REFERENCE) + 2 * Footprint.array(pages.length, 4)
+				+ 2 * Footprint.array(pages.length, 1) + Footprint.hashTable(frames.size(), 16)
+				+ frames.size() * (Footprint.HASH_NODE + 2 * Footprint.object(0, 4));
+		for (Object page : pages) {
+			if (page != null)
+				bytes += pageBytes.applyAsLong((P) page);
+		}
+		return bytes;
+	}
+
+	/** Number of pages now cached */
+	synchronized int size() {
+		return frames.size();
+	}
+
+	/**
+	 * Finds a frame to reuse, writing its page back first if it is dirty.
+	 * Two full sweeps suffice unless every frame is pinned.
+	 */
+	private int victim() throws IOException {
+		for (int step = 0; step < 2 * pages.length + 1; step++) {
+			int f = hand;
+			hand = (hand + 1) % pages.length;
+			// a frame being read into is pinned, though its page is not there yet
+			if (pins[f] > 0)
+				continue;
+			if (pages[f] == null)
+				return f;
+			if (referenced[f]) {
+				referenced[f] = false;
+				continue;
+			}
+			if (dirty[f])
+				writeBack(f);
+			frames.remove(ids[f]);
+			pages[f] = null;
+			return f;
+		}
+		throw new IllegalStateException("All " + pages.length + " pages of the buffer pool are pinned");
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeBack(int f) throws IOException {
+		backing.store(ids[f], (P) pages[f]);
+		dirty[f] = false;
+	}
+}
@@ -0,0 +1,63 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The keys of the object cache, least recently used first, saved as the
+ * CACHE file of a store so that the next open can load the same values
+ * before traffic asks for them. Only keys are kept; values are read back
+ * from the tree.
+ */
+final class CacheOrder {
+
+	static final String FILE = "CACHE";
+
+	private static final int MAGIC = 0x524b5643; // "RKVC"
+
+	private CacheOrder() {
+	}
+
+	/** Replaces the saved order atomically */
+	static void save(Path dir, Collection<String> keys) throws IOException {
+		Path tmp = dir.resolve(FILE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(keys.size());
+			for (String k : keys)
+				CharCodec.write(out, k);
+		}
+		Files.move(tmp, dir.resolve(FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the saved order, least recently used first. A missing or foreign
+	 * file yields no keys and a truncated one the keys before the damage.
+	 */
+	static List<String> load(Path dir) throws IOException {
+		Path file = dir.resolve(FILE);
+		List<String> keys = new ArrayList<String>();
+		if (!Files.exists(file))
+			return keys;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				return keys;
+			int n = in.readInt();
+			for (int i = 0; i < n; i++)
+				keys.add(CharCodec.read(in));
+		} catch (EOFException e) {
+			// keep what was read
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,171 @@
+package core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lossless encoding of strings for tables, logs and hints.
+ * 
+ * A string is a varint header holding (length << 1 | wide) followed by its
+ * chars: one byte each when every char is below 256, the common case of
+ * ASCII keys and values, otherwise two bytes each in big-endian UTF-16. Any
+ * char sequence round-trips exactly, unpaired surrogates included.
+ */
+final class CharCodec {
+
+	/** Bound on a decoded length, guarding against torn or corrupt data */
+	private static final int MAX_CHARS = Integer.MAX_VALUE >> 2;
+
+	private CharCodec() {
+	}
+
+	static boolean isLatin1(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 0xff)
+				return false;
+		}
+		return true;
+	}
+
+	static int encodedLength(String s) {
+		int len = s.length();
+		return isLatin1(s) ? varintLength(len << 1) + len : varintLength((len << 1) | 1) + 2 * len;
+	}
+
+	/** Upper bound on the encoded size of a string of the given length */
+	static int maxEncodedLength(int chars) {
+		return 5 + 2 * chars;
+	}
+
+	/** Appends s to buf, which must have room for it; returns bytes written */
+	static int encode(ByteBuffer buf, String s) {
+		int start = buf.position();
+		int len = s.length();
+		if (isLatin1(s)) {
+			putVarint(buf, len << 1);
+			for (int i = 0; i < len; i++)
+				buf.put((byte) s.charAt(i));
+		} else {
+			putVarint(buf, (len << 1) | 1);
+			for (int i = 0; i < len; i++)
+				buf.putChar(s.charAt(i));
+		}
+		return buf.position() - start;
+	}
+
+	static String decode(ByteBuffer buf) {
+		int header = getVarint(buf);
+		int len = header >>> 1;
+		if ((header & 1) == 0 && buf.hasArray()) {
+			String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.ISO_8859_1);
+			buf.position(buf.position() + len);
+			return s;
+		}
+		char[] chars = new char[len];
+		if ((header & 1) == 0) {
+			for (int i = 0; i < len; i++)
+				chars[i] = (char) (buf.get() & 0xff);
+		} else {
+			for (int i = 0; i < len; i++)
+				chars[i] = buf.getChar();
+		}
+		return new String(chars);
+	}
+
+	/** Steps over the string at the buffer position */
+	static void skip(ByteBuffer buf) {
+		int header = getVarint(buf);
+		buf.position(buf.position() + payloadBytes(header));
+	}
+
+	/**
+	 * Consumes the string at the buffer position and compares it to key
+	 * without materializing it.
+	 */
+	static int compare(ByteBuffer buf, String key) {
+		int header = getVarint(buf);
+		int len = header >>> 1;
+		int end = buf.position() + payloadBytes(header);
+		int n = Math.min(len, key.length());
+		int cmp = 0;
+		boolean wide = (header & 1) != 0;
+		for (int i = 0; i < n && cmp == 0; i++)
+			cmp = (wide ? buf.getChar() : (char) (buf.get() & 0xff)) - key.charAt(i);
+		buf.position(end);
+		return cmp != 0 ? cmp : len - key.length();
+	}
+
+	static void write(DataOutput out, String s) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(maxEncodedLength(s.length()));
+		int n = encode(buf, s);
+		out.write(buf.array(), 0, n);
+	}
+
+	static String read(DataInput in) throws IOException {
+		int header = readVarint(in);
+		byte[] bytes = new byte[payloadBytes(header)];
+		in.readFully(bytes);
+		if ((header & 1) == 0)
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		char[] chars = new char[header >>> 1];
+		ByteBuffer.wrap(bytes).asCharBuffer().get(chars);
+		return new String(chars);
+	}
+
+	/** Steps over a string in the stream, returning its encoded size */
+	static int skip(DataInput in) throws IOException {
+		int header = readVarint(in);
+		int payload = payloadBytes(header);
+		in.skipBytes(payload);
+		return varintLength(header) + payload;
+	}
+
+	private static int payloadBytes(int header) {
+		return (header & 1) == 0 ? header >>> 1 : header & ~1;
+	}
+
+	private static void putVarint(ByteBuffer buf, int v) {
+		while ((v & ~0x7f) != 0) {
+			buf.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	private static int getVarint(ByteBuffer buf) {
+		int v = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = buf.get();
+			v |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return v;
+		}
+	}
+
+	private static int readVarint(DataInput in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			v |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				if ((v >>> 1) > MAX_CHARS || v < 0)
+					throw new EOFException("Corrupt string length");
+				return v;
+			}
+		}
+		throw new EOFException("Corrupt string length");
+	}
+
+	private static int varintLength(int v) {
+		int n = 1;
+		while ((v & ~0x7f) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,50 @@
+package core;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Durable file replacement. A rename is atomic but not durable: after a
+ * power loss the directory may still point at the old file, or at a new one
+ * whose data never reached the disk. The data is forced before the rename,
+ * and the directory after it.
+ */
+final class FileSync {
+
+	/** Directories cannot be opened for fsync on Windows, nor need to be */
+	private static final boolean SYNC_DIRECTORIES = !System.getProperty("os.name", "").startsWith("Windows");
+
+	private FileSync() {
+	}
+
+	/** Forces the contents of a closed file to disk */
+	static void sync(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/** Forces the entries of dir, the files created, renamed and deleted in it, to disk */
+	static void syncDirectory(Path dir) throws IOException {
+		if (!SYNC_DIRECTORIES)
+			return;
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Replaces target with tmp, a closed file in the same directory, so that
+	 * once this returns the new contents survive a crash and a crash before
+	 * leaves target either old or new.
+	 */
+	static void replace(Path tmp, Path target) throws IOException {
+		sync(tmp);
+		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(target.toAbsolutePath().getParent());
+	}
+}
@@ -0,0 +1,83 @@
+package core;
+
+/**
+ * Estimates of the heap taken by objects, for the retained-bytes figures
+ * that the structures of a store report. The sizes are those of a 64-bit
+ * JVM with compressed references and compact strings: a 12-byte object
+ * header, a 16-byte array header, 4-byte references, everything rounded up
+ * to 8 bytes.
+ *
+ * The figures are meant to tell which structure holds the memory and to
+ * catch regressions in bytes per entry; they are not exact, and objects
+ * shared with other structures are charged to each of them.
+ */
+public final class Footprint {
+
+	public static final int OBJECT_HEADER = 12;
+	public static final int ARRAY_HEADER = 16;
+	public static final int REFERENCE = 4;
+
+	/** Shallow size of a String, without its array */
+	private static final int STRING = 24;
+	/** A HashMap.Node, or a LinkedHashMap.Entry with its two extra links */
+	static final int HASH_NODE = 32;
+	static final int LINKED_HASH_ENTRY = 40;
+
+	private Footprint() {
+	}
+
+	public static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/** Size of an object with the given number of references and primitive bytes */
+	public static long object(int references, int primitiveBytes) {
+		return align(OBJECT_HEADER + (long) references * REFERENCE + primitiveBytes);
+	}
+
+	public static long array(long length, int elementBytes) {
+		return align(ARRAY_HEADER + length * elementBytes);
+	}
+
+	/** A String with its array, one byte per char when every char is Latin-1 */
+	public static long string(String s) {
+		if (s == null)
+			return 0;
+		int perChar = 1;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 0xFF) {
+				perChar = 2;
+				break;
+			}
+		}
+		return STRING + array(s.length(), perChar);
+	}
+
+	/**
+	 * Strings and primitive arrays, and boxed numbers, by their size; any
+	 * other object by its header alone.
+	 */
+	public static long of(Object o) {
+		if (o == null)
+			return 0;
+		if (o instanceof String)
+			return string((String) o);
+		if (o instanceof char[])
+			return array(((char[]) o).length, 2);
+		if (o instanceof byte[])
+			return array(((byte[]) o).length, 1);
+		if (o instanceof long[])
+			return array(((long[]) o).length, 8);
+		if (o instanceof int[])
+			return array(((int[]) o).length, 4);
+		if (o instanceof Long || o instanceof Double)
+			return object(0, 8);
+		return object(0, 4);
+	}
+
+	/** Bucket array of a HashMap holding size entries at the default load factor */
+	static long hashTable(int size, int minCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(minCapacity, (int) Math.ceil(size / 0.75)) - 1) << 1;
+		return array(Math.max(capacity, minCapacity), REFERENCE);
+	}
+}
@@ -0,0 +1,107 @@
+package core;
+
+/**
+ * Approximate access counts of recent keys for TinyLFU cache admission.
+ * 
+ * A count-min sketch of 4-bit counters estimates how often each key was
+ * accessed, and a doorkeeper bitmap in front of it absorbs the first access
+ * of every key, so that the many keys seen only once never reach the
+ * counters. After a sample of ten accesses per cache entry all counters are
+ * halved and the doorkeeper cleared, so estimates follow recent popularity
+ * rather than all-time totals.
+ * 
+ * Not thread-safe; guarded by the owner's lock like the map it serves.
+ */
+final class FrequencySketch {
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	/** 16 counters of 4 bits per long */
+	private final long[] table;
+	private final int counterMask;
+	private final long[] doorkeeper;
+	private final int doorkeeperMask;
+	private final int sampleSize;
+	private int additions;
+
+	FrequencySketch(int maximumEntries) {
+		int entries = Math.max(16, maximumEntries);
+		table = new long[ceilingPowerOfTwo(entries) / 4];
+		counterMask = table.length * 16 - 1;
+		doorkeeper = new long[Math.max(1, ceilingPowerOfTwo(entries) / 8)];
+		doorkeeperMask = doorkeeper.length * 64 - 1;
+		sampleSize = 10 * entries;
+	}
+
+	/** Heap taken by the sketch and its counters */
+	long retainedBytes() {
+		return Footprint.object(2, 16) + Footprint.array(table.length, 8) + Footprint.array(doorkeeper.length, 8);
+	}
+
+	private static int ceilingPowerOfTwo(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	private static int spread(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/** Records one access of key */
+	void increment(Object key) {
+		int h1 = spread(key.hashCode());
+		int h2 = spread(h1) | 1;
+		if (passDoorkeeper(h1, h2)) {
+			for (int i = 0; i < 4; i++) {
+				int c = (h1 + i * h2) & counterMask;
+				int shift = (c & 15) << 2;
+				if (((table[c >>> 4] >>> shift) & 0xf) < 15)
+					table[c >>> 4] += 1L << shift;
+			}
+		}
+		if (++additions >= sampleSize)
+			reset();
+	}
+
+	/** Estimated recent accesses of key, at most 16 */
+	int frequency(Object key) {
+		int h1 = spread(key.hashCode());
+		int h2 = spread(h1) | 1;
+		int min = 15;
+		for (int i = 0; i < 4; i++) {
+			int c = (h1 + i * h2) & counterMask;
+			min = Math.min(min, (int) ((table[c >>> 4] >>> ((c & 15) << 2)) & 0xf));
+		}
+		return min + (inDoorkeeper(h1, h2) ? 1 : 0);
+	}
+
+	/** Sets the key's doorkeeper bits; true if they were all set already */
+	private boolean passDoorkeeper(int h1, int h2) {
+		boolean seen = true;
+		for (int i = 0; i < 2; i++) {
+			int b = (h1 + i * (h2 >>> 8)) & doorkeeperMask;
+			long bit = 1L << b;
+			if ((doorkeeper[b >>> 6] & bit) == 0) {
+				doorkeeper[b >>> 6] |= bit;
+				seen = false;
+			}
+		}
+		return seen;
+	}
+
+	private boolean inDoorkeeper(int h1, int h2) {
+		for (int i = 0; i < 2; i++) {
+			int b = (h1 + i * (h2 >>> 8)) & doorkeeperMask;
+			if ((doorkeeper[b >>> 6] & (1L << b)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		java.util.Arrays.fill(doorkeeper, 0);
+		additions >>>= 1;
+	}
+}
@@ -0,0 +1,139 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable prefix table built from a {@link Trie}.
+ * 
+ * Nodes are numbered in breadth-first order and stored in flat arrays: the
+ * outgoing edges of node n are edgeLabels[firstEdge[n] .. firstEdge[n + 1]),
+ * sorted by label, and edge e always leads to node e + 1. The upper levels
+ * that every lookup walks therefore sit next to each other in memory, and a
+ * lookup touches nothing but three primitive arrays.
+ */
+public final class FrozenTrie<V> {
+
+	/** Edges with at most this many siblings are scanned instead of bisected */
+	private static final int LINEAR_SCAN = 8;
+
+	final int[] firstEdge;
+	final char[] edgeLabels;
+	final Object[] values;
+
+	FrozenTrie(int[] firstEdge, char[] edgeLabels, Object[] values) {
+		this.firstEdge = firstEdge;
+		this.edgeLabels = edgeLabels;
+		this.values = values;
+	}
+
+	static <V> FrozenTrie<V> of(Trie<V> root) {
+		List<Trie<V>> order = new ArrayList<Trie<V>>();
+		ArrayDeque<Trie<V>> queue = new ArrayDeque<Trie<V>>();
+		queue.add(root);
+		while (!queue.isEmpty()) {
+			Trie<V> t = queue.poll();
+			order.add(t);
+			// children are kept in label order
+			for (int c = 0; c < t.size; c++)
+				queue.add(t.children[c]);
+		}
+
+		int n = order.size();
+		int[] firstEdge = new int[n + 1];
+		char[] edgeLabels = new char[n - 1];
+		Object[] values = new Object[n];
+		int edge = 0;
+		for (int i = 0; i < n; i++) {
+			Trie<V> t = order.get(i);
+			firstEdge[i] = edge;
+			values[i] = t.entry.value;
+			// children were enqueued in label order, so their labels follow suit
+			int children = t.size;
+			for (int c = 0; c < children; c++) {
+				edgeLabels[edge + c] = order.get(edge + c + 1).key;
+			}
+			edge += children;
+		}
+		firstEdge[n] = edge;
+		return new FrozenTrie<V>(firstEdge, edgeLabels, values);
+	}
+
+	/** Number of nodes, including the root */
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * Estimated heap retained by the table's arrays. Values are charged as
+	 * references only, since prefix tables usually share a handful of them.
+	 */
+	public long retainedBytes() {
+		return Footprint.object(3, 0) + Footprint.array(firstEdge.length, 4) + Footprint.array(edgeLabels.length, 2)
+				+ Footprint.array(values.length, Footprint.REFERENCE);
+	}
+
+	/**
+	 * Returns the value of the longest stored prefix of key[off, off + len), or
+	 * null if no stored prefix matches.
+	 */
+	@SuppressWarnings("unchecked")
+	public V longestPrefix(char[] key, int off, int len) {
+		int node = 0;
+		Object best = values[0];
+		for (int i = off, end = off + len; i < end; i++) {
+			int e = findEdge(node, key[i]);
+			if (e < 0)
+				break;
+			node = e + 1;
+			if (values[node] != null)
+				best = values[node];
+		}
+		return (V) best;
+	}
+
+	/**
+	 * Resolves every key in one call, writing the match for keys[i] to out[i].
+	 * 
+	 * @return the number of keys that matched some prefix
+	 */
+	public int longestPrefix(char[][] keys, V[] out) {
+		if (out.length < keys.length)
+			throw new IllegalArgumentException("Output array is shorter than the key batch");
+		int matched = 0;
+		for (int i = 0; i < keys.length; i++) {
+			V v = longestPrefix(keys[i], 0, keys[i].length);
+			out[i] = v;
+			if (v != null)
+				matched++;
+		}
+		return matched;
+	}
+
+	int findEdge(int node, char c) {
+		int lo = firstEdge[node];
+		int hi = firstEdge[node + 1] - 1;
+		if (hi - lo < LINEAR_SCAN) {
+			for (int e = lo; e <= hi; e++) {
+				char l = edgeLabels[e];
+				if (l == c)
+					return e;
+				if (l > c)
+					return -1;
+			}
+			return -1;
+		}
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char l = edgeLabels[mid];
+			if (l < c)
+				lo = mid + 1;
+			else if (l > c)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,753 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import rkv.TrieMap;
+
+/**
+ * Log-structured hash engine in the manner of Bitcask. Every write is
+ * appended to the active data file, and a {@link TrieMap} index in memory
+ * maps each key to the position of its newest record, so that a read costs
+ * one hash lookup and one positioned read however large the store grows.
+ * Range scans have to sort the keys of the index and are the slow path; the
+ * index must fit in memory.
+ *
+ * Records are framed as in the {@link WriteAheadLog}: the length of the
+ * body, its complement and the CRC32 of the body, followed by the body, a
+ * key and value as encoded by {@link SSTable#encode}. Replay stops at the
+ * first record that is torn or fails a check, and reads verify the record
+ * they return.
+ *
+ * The data files are listed, in the order they are replayed, in a FILES
+ * manifest that is replaced atomically on every change, and opening the
+ * store replays them all to rebuild the index. A file that was closed
+ * whole, by rotation, merge or shutdown, has a hint file NNNNNN.hint
+ * holding the key, record length and tombstone flag of each of its
+ * records, the length of the data file and a CRC32 of the rest; the index
+ * is rebuilt from the hint instead of the data when the checksum and the
+ * length match. The active file is closed at
+ * {@link StoreOptions#targetTableBytes}. Once overwritten and deleted records
+ * make up {@link StoreOptions#garbageRatio} of the closed files, a background
+ * merge copies their live records into new files and drops the rest,
+ * tombstones included, at the rate allowed by
+ * {@link StoreOptions#garbageBytesPerSecond}.
+ */
+final class HashEngine implements StorageEngine {
+
+	private static final String MANIFEST = "FILES";
+	/** Length, its complement and the CRC32 of the body */
+	private static final int HEADER = 12;
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	/** One data file; its channel is closed, and the file and its hint deleted if merged away, with its last reference */
+	private static final class DataFile {
+		final long id;
+		final Path path;
+		final Path hint;
+		final FileChannel channel;
+		private final AtomicInteger refs = new AtomicInteger(1);
+		/** Bytes appended; guarded by the engine */
+		long size;
+		/** Bytes of records no longer reachable from the index; guarded by the engine */
+		long dead;
+		/** Bytes that have reached the file, and can be read back through the channel */
+		volatile long flushed;
+		volatile boolean obsolete;
+
+		DataFile(long id, Path path) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.hint = path.resolveSibling(hintName(id));
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		}
+
+		void retain() {
+			refs.incrementAndGet();
+		}
+
+		void release() {
+			if (refs.decrementAndGet() == 0) {
+				try {
+					channel.close();
+					if (obsolete) {
+						Files.deleteIfExists(path);
+						Files.deleteIfExists(hint);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/** Where the newest record of a key lives */
+	private static final class Location {
+		final DataFile file;
+		final long offset;
+		/** Of the whole record, header included */
+		final int length;
+
+		Location(DataFile file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Appends records to a new data file, and their entries to its hint */
+	private final class Appender {
+		final DataFile file;
+		private final FileOutputStream fos;
+		private final BufferedOutputStream out;
+		private ByteBuffer scratch;
+		private final byte[] header = new byte[HEADER];
+		private final CRC32 crc = new CRC32();
+		private final Path hintTmp;
+		private final BufferedOutputStream hintOut;
+		private final CRC32 hintCrc = new CRC32();
+		private final DataOutputStream hint;
+
+		Appender() throws IOException {
+			long id;
+			synchronized (HashEngine.this) {
+				id = nextFileId++;
+			}
+			Path path = dir.resolve(fileName(id));
+			this.fos = new FileOutputStream(path.toFile());
+			this.out = new BufferedOutputStream(fos, 64 * 1024);
+			this.file = new DataFile(id, path);
+			this.hintTmp = dir.resolve(hintName(id) + ".tmp");
+			this.hintOut = new BufferedOutputStream(new FileOutputStream(hintTmp.toFile()), 64 * 1024);
+			this.hint = new DataOutputStream(new CheckedOutputStream(hintOut, hintCrc));
+		}
+
+		Location append(String key, String value) throws IOException {
+			scratch = SSTable.encode(scratch, key, value);
+			int n = scratch.limit();
+			crc.reset();
+			crc.update(scratch.array(), 0, n);
+			ByteBuffer.wrap(header).putInt(n).putInt(~n).putInt((int) crc.getValue());
+			out.write(header);
+			out.write(scratch.array(), 0, n);
+			metrics.bytesWritten.add(HEADER + n);
+			Location loc = new Location(file, file.size, HEADER + n);
+			file.size += loc.length;
+			// the encoded key heads the record
+			CharCodec.skip(scratch);
+			hint.write(scratch.array(), 0, scratch.position());
+			hint.writeInt(loc.length);
+			hint.writeBoolean(value.equals(TOMBSTONE));
+			return loc;
+		}
+
+		void flush() throws IOException {
+			out.flush();
+			file.flushed = file.size;
+		}
+
+		void sync() throws IOException {
+			flush();
+			StoreEvents.Fsync event = new StoreEvents.Fsync();
+			event.begin();
+			long start = System.nanoTime();
+			fos.getChannel().force(false);
+			metrics.fsyncs.recordSince(start);
+			event.finish(file.path, file.size);
+		}
+
+		/** Closes the file and publishes its hint, once the data is on disk */
+		void close() throws IOException {
+			sync();
+			out.close();
+			hint.writeLong(file.size);
+			hintOut.write(ByteBuffer.allocate(4).putInt((int) hintCrc.getValue()).array());
+			hintOut.close();
+			FileSync.replace(hintTmp, file.hint);
+		}
+
+		/** Closes and deletes a file that was never published */
+		void abandon() {
+			try {
+				out.close();
+				hintOut.close();
+				Files.deleteIfExists(hintTmp);
+			} catch (IOException e) {
+				// deleted below or on the next open anyway
+			}
+			file.obsolete = true;
+			file.release();
+		}
+	}
+
+	private final Path dir;
+	private final StoreOptions options;
+	private final StoreMetrics metrics;
+
+	private final TrieMap<String, Location> index = new TrieMap<String, Location>();
+	/** Every data file in replay order, the active one last */
+	private final List<DataFile> files = new ArrayList<DataFile>();
+	private Appender active;
+	private long nextFileId = 1;
+	private boolean mergeScheduled;
+	private volatile boolean closed;
+
+	private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "rkv-merge");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private HashEngine(Path dir, StoreOptions options, StoreMetrics metrics) {
+		this.dir = dir;
+		this.options = options;
+		this.metrics = metrics;
+	}
+
+	static String fileName(long id) {
+		return String.format("%06d.data", id);
+	}
+
+	static String hintName(long id) {
+		return String.format("%06d.hint", id);
+	}
+
+	/** Opens the store in dir, replaying its data files into a new index */
+	static HashEngine open(Path dir, StoreOptions options, StoreMetrics metrics) throws IOException {
+		Files.createDirectories(dir);
+		HashEngine engine = new HashEngine(dir, options, metrics);
+		engine.recover();
+		return engine;
+	}
+
+	private void recover() throws IOException {
+		List<Long> ids = new ArrayList<Long>();
+		Path manifest = dir.resolve(MANIFEST);
+		if (Files.exists(manifest)) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+				nextFileId = in.readLong();
+				int n = in.readInt();
+				for (int i = 0; i < n; i++)
+					ids.add(in.readLong());
+			}
+		}
+		// files not in the manifest are the output of an interrupted merge, and .tmp hints of unfinished files
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "[0-9]*.{data,hint,tmp}")) {
+			for (Path p : stream) {
+				String name = p.getFileName().toString();
+				if (name.endsWith(".tmp") || !ids.contains(Long.parseLong(name.substring(0, name.indexOf('.')))))
+					Files.delete(p);
+			}
+		}
+		for (long id : ids) {
+			DataFile f = new DataFile(id, dir.resolve(fileName(id)));
+			if (!loadHint(f))
+				replay(f);
+			if (f.size > 0) {
+				files.add(f);
+			} else {
+				// the active file of a run that wrote nothing
+				f.obsolete = true;
+				f.release();
+			}
+		}
+		startActive();
+	}
+
+	/**
+	 * Applies every intact record of f to the index. The first record that
+	 * runs past the end of the file or fails a check ends it, the zeros of a
+	 * preallocated tail included: nothing after a bad length can be framed.
+	 */
+	private void replay(DataFile f) throws IOException {
+		long fileSize = Files.size(f.path);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(f.path), 64 * 1024))) {
+			CRC32 crc = new CRC32();
+			byte[] body = new byte[1024];
+			while (f.size + HEADER <= fileSize) {
+				int length = in.readInt();
+				int check = in.readInt();
+				int sum = in.readInt();
+				if (length <= 0 || check != ~length || length > fileSize - f.size - HEADER)
+					break;
+				if (body.length < length)
+					body = new byte[Math.max(length, 2 * body.length)];
+				in.readFully(body, 0, length);
+				crc.reset();
+				crc.update(body, 0, length);
+				if ((int) crc.getValue() != sum)
+					break;
+				ByteBuffer buf = ByteBuffer.wrap(body, 0, length);
+				String key = CharCodec.decode(buf);
+				apply(f, key, HEADER + length, CharCodec.decode(buf).equals(TOMBSTONE));
+			}
+		}
+		f.flushed = f.size;
+	}
+
+	/**
+	 * Applies the records of f to the index from its hint, without reading
+	 * the data. Returns false, having changed nothing, if the hint is
+	 * missing, torn or damaged, or was written for a file of another length.
+	 */
+	private boolean loadHint(DataFile f) throws IOException {
+		if (!Files.exists(f.hint))
+			return false;
+		byte[] hint = Files.readAllBytes(f.hint);
+		if (hint.length < 12)
+			return false;
+		CRC32 crc = new CRC32();
+		crc.update(hint, 0, hint.length - 4);
+		ByteBuffer buf = ByteBuffer.wrap(hint, 0, hint.length - 12);
+		long size = ByteBuffer.wrap(hint).getLong(hint.length - 12);
+		if ((int) crc.getValue() != ByteBuffer.wrap(hint).getInt(hint.length - 4) || size != Files.size(f.path))
+			return false;
+		List<String> keys = new ArrayList<String>();
+		// record lengths, negated for tombstones
+		int[] lengths = new int[64];
+		long total = 0;
+		try {
+			while (buf.hasRemaining()) {
+				String key = CharCodec.decode(buf);
+				int length = buf.getInt();
+				boolean tombstone = buf.get() != 0;
+				if (length <= HEADER)
+					return false;
+				if (keys.size() == lengths.length)
+					lengths = Arrays.copyOf(lengths, 2 * lengths.length);
+				lengths[keys.size()] = tombstone ? -length : length;
+				keys.add(key);
+				total += length;
+			}
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			return false;
+		}
+		if (total != size)
+			return false;
+		for (int i = 0; i < keys.size(); i++)
+			apply(f, keys.get(i), Math.abs(lengths[i]), lengths[i] < 0);
+		f.flushed = f.size;
+		return true;
+	}
+
+	/** Indexes the record of key at the end of what is known of f */
+	private void apply(DataFile f, String key, int length, boolean tombstone) {
+		Location loc = new Location(f, f.size, length);
+		f.size += length;
+		if (tombstone) {
+			dropped(index.remove(key));
+			f.dead += length;
+		} else {
+			dropped(index.put(key, loc));
+		}
+	}
+
+	/** Counts the record at old as garbage */
+	private static void dropped(Location old) {
+		if (old != null)
+			old.file.dead += old.length;
+	}
+
+	/** Starts a new active file and records it in the manifest */
+	private void startActive() throws IOException {
+		Appender next = new Appender();
+		files.add(next.file);
+		try {
+			writeManifest();
+		} catch (IOException e) {
+			files.remove(next.file);
+			next.abandon();
+			throw e;
+		}
+		active = next;
+	}
+
+	private void writeManifest() throws IOException {
+		Path tmp = dir.resolve(MANIFEST + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeLong(nextFileId);
+			out.writeInt(files.size());
+			for (DataFile f : files)
+				out.writeLong(f.id);
+		}
+		FileSync.replace(tmp, dir.resolve(MANIFEST));
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		while (true) {
+			Location loc = index.get(key);
+			if (loc == null)
+				return null;
+			try {
+				return read(loc);
+			} catch (ClosedChannelException e) {
+				// merged away meanwhile; the index already points at the copy
+				if (closed || index.get(key) == loc)
+					throw e;
+			}
+		}
+	}
+
+	@Override
+	public void getMany(String[] keys, String[] out) throws IOException {
+		for (int i = 0; i < keys.length; i++)
+			out[i] = get(keys[i]);
+	}
+
+	private String read(Location loc) throws IOException {
+		if (loc.offset + loc.length > loc.file.flushed)
+			flushActive(loc.file);
+		ByteBuffer buf = ByteBuffer.allocate(loc.length);
+		while (buf.hasRemaining()) {
+			if (loc.file.channel.read(buf, loc.offset + buf.position()) < 0)
+				throw new EOFException("Record past the end of " + loc.file.path);
+		}
+		metrics.bytesRead.add(loc.length);
+		buf.flip();
+		int length = buf.getInt();
+		int check = buf.getInt();
+		int sum = buf.getInt();
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), HEADER, buf.remaining());
+		if (length != loc.length - HEADER || check != ~length || (int) crc.getValue() != sum)
+			throw new IOException("Corrupt record at offset " + loc.offset + " of " + loc.file.path);
+		CharCodec.skip(buf);
+		return CharCodec.decode(buf);
+	}
+
+	/** Pushes the buffered tail of the active file to the OS, so that it can be read back */
+	private synchronized void flushActive(DataFile f) throws IOException {
+		if (active != null && active.file == f)
+			active.flush();
+	}
+
+	@Override
+	public synchronized void put(String key, String value) throws IOException {
+		dropped(index.put(key, active.append(key, value)));
+		maybeRoll();
+	}
+
+	@Override
+	public synchronized void putMany(String[] keys, String[] values) throws IOException {
+		for (int i = 0; i < keys.length; i++)
+			put(keys[i], values[i]);
+	}
+
+	@Override
+	public synchronized void delete(String key) throws IOException {
+		Location old = index.remove(key);
+		if (old == null)
+			return; // no record of the key is reachable, so none needs hiding
+		dropped(old);
+		// the tombstone only has to outlive the records it hides
+		dropped(active.append(key, TOMBSTONE));
+		maybeRoll();
+	}
+
+	@Override
+	public synchronized void deleteMany(String[] keys) throws IOException {
+		for (String key : keys)
+			delete(key);
+	}
+
+	private void maybeRoll() throws IOException {
+		if (active.file.size < options.targetTableBytes)
+			return;
+		active.close();
+		startActive();
+		maybeScheduleMerge();
+	}
+
+	@Override
+	public synchronized void sync() throws IOException {
+		active.sync();
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+		try (Snapshot s = snapshot()) {
+			return s.iterator(from, to, fillCache);
+		}
+	}
+
+	/**
+	 * Captures the index and retains every data file, so that a merge cannot
+	 * delete what the snapshot still points to.
+	 */
+	@Override
+	public synchronized Snapshot snapshot() {
+		if (closed)
+			throw new IllegalStateException("Store closed");
+		return new HashSnapshot(index.readOnlySnapshot(), retainFiles());
+	}
+
+	@Override
+	public void memoryUsage(Map<String, Long> usage) {
+		final long location = Footprint.object(1, 12);
+		usage.merge("index", index.retainedBytes(Footprint::string, l -> location), Long::sum);
+	}
+
+	private List<DataFile> retainFiles() {
+		List<DataFile> held = new ArrayList<DataFile>(files);
+		for (DataFile f : held)
+			f.retain();
+		return held;
+	}
+
+	private static Runnable releaser(final List<DataFile> held) {
+		return () -> {
+			for (DataFile f : held)
+				f.release();
+		};
+	}
+
+	private final class HashSnapshot implements Snapshot {
+		private final TrieMap<String, Location> index;
+		private final List<DataFile> held;
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private final Cleaner.Cleanable cleanable;
+
+		HashSnapshot(TrieMap<String, Location> index, List<DataFile> held) {
+			this.index = index;
+			this.held = held;
+			this.cleanable = CLEANER.register(this, releaser(held));
+		}
+
+		@Override
+		public String get(String key) throws IOException {
+			checkOpen();
+			Location loc = index.get(key);
+			return loc == null ? null : read(loc);
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+			checkOpen();
+			// the iterator holds its own references, so it outlives the snapshot
+			List<DataFile> mine = new ArrayList<DataFile>(held);
+			for (DataFile f : mine)
+				f.retain();
+			return new ValueIterator(MemoryEngine.slice(index, from, to), mine);
+		}
+
+		private void checkOpen() {
+			if (closed.get())
+				throw new IllegalStateException("Snapshot closed");
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true))
+				cleanable.clean();
+		}
+	}
+
+	/**
+	 * Reads the value behind each location as it is reached, and releases
+	 * its files once hasNext() reports the end, or when it is collected
+	 * without being drained.
+	 */
+	private final class ValueIterator implements Iterator<Map.Entry<String, String>> {
+		private final Iterator<Map.Entry<String, Location>> locations;
+		private final Cleaner.Cleanable cleanable;
+
+		ValueIterator(Iterator<Map.Entry<String, Location>> locations, List<DataFile> held) {
+			this.locations = locations;
+			this.cleanable = CLEANER.register(this, releaser(held));
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (locations.hasNext())
+				return true;
+			cleanable.clean();
+			return false;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (!locations.hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, Location> e = locations.next();
+			try {
+				return new AbstractMap.SimpleImmutableEntry<String, String>(e.getKey(), read(e.getValue()));
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	private void maybeScheduleMerge() {
+		assert Thread.holdsLock(this);
+		if (mergeScheduled || closed || options.garbageRatio <= 0)
+			return;
+		long size = 0, dead = 0;
+		for (DataFile f : files) {
+			if (f != active.file) {
+				size += f.size;
+				dead += f.dead;
+			}
+		}
+		if (size == 0 || dead < options.garbageRatio * size)
+			return;
+		mergeScheduled = true;
+		merger.execute(() -> {
+			try {
+				merge();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				synchronized (this) {
+					mergeScheduled = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Rewrites the live records of every closed file into new files that
+	 * take their place at the head of the replay order. Records are only
+	 * dropped together with every older file, so a tombstone can go as soon
+	 * as it is no longer reachable.
+	 */
+	private void merge() throws IOException {
+		List<DataFile> victims;
+		TrieMap<String, Location> frozen;
+		synchronized (this) {
+			victims = new ArrayList<DataFile>(files.subList(0, files.size() - 1));
+			frozen = index.readOnlySnapshot();
+		}
+		Set<DataFile> merging = new HashSet<DataFile>(victims);
+		List<Appender> outputs = new ArrayList<Appender>();
+		Map<String, Location[]> moved = new HashMap<String, Location[]>();
+		long started = System.nanoTime();
+		long written = 0;
+		try {
+			Appender out = null;
+			for (Map.Entry<String, Location> e : frozen.entrySet()) {
+				Location old = e.getValue();
+				if (!merging.contains(old.file))
+					continue;
+				if (out == null || out.file.size >= options.targetTableBytes) {
+					out = new Appender();
+					outputs.add(out);
+				}
+				Location copy = out.append(e.getKey(), read(old));
+				moved.put(e.getKey(), new Location[] { old, copy });
+				written += copy.length;
+				if (!throttle(started, written)) {
+					// closing; the victims stay as they are
+					for (Appender a : outputs)
+						a.abandon();
+					return;
+				}
+			}
+			for (Appender a : outputs)
+				a.close();
+		} catch (IOException | RuntimeException e) {
+			for (Appender a : outputs)
+				a.abandon();
+			throw e;
+		}
+
+		synchronized (this) {
+			List<DataFile> next = new ArrayList<DataFile>();
+			for (Appender a : outputs)
+				next.add(a.file);
+			next.addAll(files.subList(victims.size(), files.size()));
+			List<DataFile> previous = new ArrayList<DataFile>(files);
+			files.clear();
+			files.addAll(next);
+			try {
+				writeManifest();
+			} catch (IOException e) {
+				files.clear();
+				files.addAll(previous);
+				for (Appender a : outputs)
+					a.abandon();
+				throw e;
+			}
+			for (Map.Entry<String, Location[]> e : moved.entrySet()) {
+				Location[] m = e.getValue();
+				// a key written or deleted during the merge keeps its newer record
+				if (index.get(e.getKey()) == m[0])
+					index.put(e.getKey(), m[1]);
+				else
+					dropped(m[1]);
+			}
+			for (DataFile f : victims) {
+				f.obsolete = true;
+				f.release();
+			}
+		}
+	}
+
+	private boolean throttle(long started, long bytes) {
+		if (options.garbageBytesPerSecond > 0) {
+			long ahead = (long) (bytes * 1e9 / options.garbageBytesPerSecond) - (System.nanoTime() - started);
+			if (ahead >= 1_000_000) {
+				try {
+					Thread.sleep(ahead / 1_000_000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return !closed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			active.sync();
+			closed = true;
+		}
+		merger.shutdown();
+		try {
+			merger.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			active.close();
+			for (DataFile f : files)
+				f.release();
+		}
+	}
+}
@@ -1,17 +1,119 @@
 package core;
 
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 public interface KeyValue {
 
-	SimpleKV initAndMakeStore(String path);
+	KeyValue initAndMakeStore(String path);
 
 	void write(char[] key, char[] value);
 
 	char[] read(char[] key);
 
+	/**
+	 * Copies the value of key into dst at its position and advances it.
+	 * Returns the length of the value in chars, or -1 if the key is missing.
+	 * If dst has less room than the value, nothing is copied and the caller
+	 * may retry with a buffer of the returned length.
+	 */
+	default int readInto(char[] key, CharBuffer dst) {
+		char[] value = read(key);
+		if (value == null)
+			return -1;
+		if (value.length <= dst.remaining())
+			dst.put(value);
+		return value.length;
+	}
+
+	/**
+	 * As {@link #readInto(char[], CharBuffer)}, storing the value as UTF-16
+	 * chars in the byte order of dst. The value takes twice the returned
+	 * length in bytes.
+	 */
+	default int readInto(char[] key, ByteBuffer dst) {
+		char[] value = read(key);
+		if (value == null)
+			return -1;
+		if (2L * value.length <= dst.remaining()) {
+			for (char c : value)
+				dst.putChar(c);
+		}
+		return value.length;
+	}
+
+	/**
+	 * Opens the value of key for reading as a stream, or returns null if the
+	 * key is missing.
+	 */
+	default Reader openValueReader(char[] key) {
+		char[] value = read(key);
+		return value == null ? null : new CharArrayReader(value);
+	}
+
+	/**
+	 * Opens a stream that writes a new value for key. The value replaces the
+	 * old one when the writer is closed.
+	 */
+	default Writer openValueWriter(final char[] key) {
+		return new CharArrayWriter() {
+			@Override
+			public void close() {
+				KeyValue.this.write(key, toCharArray());
+			}
+		};
+	}
+
+	/** Reads every key; the result holds null where a key is missing */
+	default char[][] readMany(char[][] keys) {
+		char[][] values = new char[keys.length][];
+		for (int i = 0; i < keys.length; i++)
+			values[i] = read(keys[i]);
+		return values;
+	}
+
+	/** Writes every pair; later pairs win over earlier ones for the same key */
+	default void writeMany(KVPair[] pairs) {
+		for (KVPair p : pairs)
+			write(p.element1, p.element2);
+	}
+
+	/**
+	 * Removes key, so that reads no longer find it until it is written again.
+	 * Deleting a missing key does nothing.
+	 */
+	void delete(char[] key);
+
+	/**
+	 * Deletes every key with startKey <= key < endKey; a null endKey leaves
+	 * the range open. Keys written into the range while it is being deleted
+	 * may survive.
+	 */
+	default void deleteRange(char[] startKey, char[] endKey) {
+		List<char[]> keys = new ArrayList<char[]>();
+		for (Iterator<KVPair> it = readRange(startKey, endKey); it.hasNext();)
+			keys.add(it.next().element1);
+		for (char[] key : keys)
+			delete(key);
+	}
+
 	Iterator<KVPair> readRange(char[] startKey, char[] endKey);
 
+	Iterator<KVPair> readPrefix(char[] prefix);
+
+	/**
+	 * Captures the store as it is now, for consistent reads and scans while
+	 * writes go on. The caller must close it.
+	 */
+	Snapshot snapshot();
+
 	void beginTx();
 
 	public void commit();
@@ -0,0 +1,988 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Leveled log-structured merge tree.
+ * 
+ * Writes go to a write-ahead log and a {@link Memtable}. A full
+ * memtable is frozen and flushed in the background to a new level 0 table,
+ * and a second background thread compacts level 0 into level 1 and each
+ * level into the next whenever it outgrows its budget, so that a read probes
+ * at most every level 0 table plus one table per deeper level.
+ * 
+ * The tables making up the tree are recorded in a MANIFEST file that is
+ * replaced atomically after every flush and compaction. Opening the tree
+ * loads the hint and filter files of all tables in parallel, without
+ * reading any table data.
+ * 
+ * Large values live in {@link BlobFile}s that the tree only refers to. A
+ * blob is deleted once its reference has been overwritten in the memtable or
+ * dropped by a compaction, and every version that was current at the time
+ * has been released, since readers of those versions may still follow it.
+ * 
+ * A delete writes a {@link #TOMBSTONE} that hides every older value of the
+ * key. Compaction drops a tombstone, together with what it hides, once no
+ * deeper level may still hold the key. A table whose records are mostly
+ * tombstones is compacted even when its level is within budget, at a rate
+ * capped by {@link StoreOptions#garbageBytesPerSecond}.
+ * 
+ * With {@link StoreOptions#replicationLogBytes} set, every write made after
+ * opening is also kept in a {@link ReplicationLog} until followers had a
+ * chance to read it.
+ */
+final class LSMTree implements StorageEngine {
+
+	private static final String MANIFEST = "MANIFEST";
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private final Path dir;
+	private final StoreOptions options;
+	/** Null when disabled */
+	private final BlockCache cache;
+	private final StoreMetrics metrics;
+
+	private volatile Memtable mem = new Memtable();
+	private volatile Memtable imm;
+	private long memBytes;
+	private WriteAheadLog wal;
+	private WriteAheadLog immWal;
+	/** Null unless replication is enabled */
+	private ReplicationLog log;
+
+	private volatile Version current;
+	/** Versions that readers may still hold, oldest first */
+	private final ArrayDeque<Version> versions = new ArrayDeque<Version>();
+	/** Blobs whose reference was dropped: seq of the version current then, and blob id */
+	private final ArrayDeque<long[]> garbageBlobs = new ArrayDeque<long[]>();
+	private long nextFileId = 1;
+	/** Largest key of the last compaction out of each level */
+	private final String[] compactPointer;
+	private boolean compactionScheduled;
+	/** The first failure of a background flush or compaction; writes fail from then on */
+	private IOException backgroundError;
+	private volatile boolean closed;
+
+	private final ExecutorService flusher = Executors.newSingleThreadExecutor(daemon("rkv-flush"));
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(daemon("rkv-compact"));
+
+	private LSMTree(Path dir, StoreOptions options, StoreMetrics metrics) {
+		this.dir = dir;
+		this.options = options;
+		this.metrics = metrics;
+		this.cache = options.blockCacheBytes > 0 ? new BlockCache(options.blockCacheBytes) : null;
+		this.compactPointer = new String[options.levels];
+	}
+
+	private static java.util.concurrent.ThreadFactory daemon(String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Opens the tree stored in dir, creating it if needed. Logs left behind by
+	 * a previous process are replayed and flushed before this returns.
+	 */
+	static LSMTree open(Path dir, StoreOptions options, StoreMetrics metrics) throws IOException {
+		Files.createDirectories(dir);
+		LSMTree tree = new LSMTree(dir, options, metrics);
+		tree.recover();
+		return tree;
+	}
+
+	private void recover() throws IOException {
+		List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+		for (int i = 0; i < options.levels; i++)
+			levels.add(new ArrayList<SSTable>());
+		Map<Long, Integer> live = new HashMap<Long, Integer>();
+		Path manifest = dir.resolve(MANIFEST);
+		if (Files.exists(manifest)) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+				nextFileId = in.readLong();
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					int level = in.readInt();
+					live.put(in.readLong(), level);
+				}
+			}
+		}
+		// tables are independent, so their hints and filters load in parallel
+		ExecutorService loader = Executors.newFixedThreadPool(Math.max(1, Math.min(live.size(),
+				Runtime.getRuntime().availableProcessors())), daemon("rkv-open"));
+		try {
+			Map<Long, Future<SSTable>> opened = new HashMap<Long, Future<SSTable>>();
+			for (Long id : live.keySet())
+				opened.put(id, loader.submit(() -> SSTable.open(id, dir.resolve(SSTable.fileName(id)), options, cache, metrics)));
+			for (Map.Entry<Long, Future<SSTable>> e : opened.entrySet())
+				levels.get(live.get(e.getKey())).add(e.getValue().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while opening tables", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to open table", e.getCause());
+		} finally {
+			loader.shutdown();
+		}
+		levels.get(0).sort(Version.NEWEST_FIRST);
+		for (int i = 1; i < levels.size(); i++)
+			levels.get(i).sort(Version.BY_KEY);
+		current = new Version(levels);
+		versions.add(current);
+
+		// tables not in the manifest are leftovers of an interrupted compaction
+		TreeMap<Long, Path> logs = new TreeMap<Long, Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path p : files) {
+				String name = p.getFileName().toString();
+				boolean tableFile = name.endsWith(".sst") || name.endsWith(".bf") || name.endsWith(".hint");
+				if (tableFile && !live.containsKey(fileId(name)))
+					Files.delete(p);
+				else if (name.endsWith(".log"))
+					logs.put(fileId(name), p);
+				else if (name.endsWith(".blob"))
+					nextFileId = Math.max(nextFileId, fileId(name) + 1);
+			}
+		}
+		if (!logs.isEmpty()) {
+			nextFileId = Math.max(nextFileId, logs.lastKey() + 1);
+			for (Path p : logs.values())
+				WriteAheadLog.replay(p, (k, v) -> replaced(mem.put(k, v), v));
+			if (!mem.isEmpty()) {
+				imm = mem;
+				mem = new Memtable();
+				flushImmutable();
+			}
+			for (Path p : logs.values())
+				Files.delete(p);
+		}
+		wal = newLog();
+		// writes recovered above predate the epoch; followers copy them from a checkpoint
+		if (options.replicationLogBytes > 0)
+			log = new ReplicationLog(this, options.replicationLogBytes);
+	}
+
+	/** The log of writes for followers, or null if replication is disabled */
+	@Override
+	public ReplicationLog replicationLog() {
+		return log;
+	}
+
+	@Override
+	public void memoryUsage(Map<String, Long> usage) {
+		long memtable = mem.retainedBytes();
+		Memtable frozen = imm;
+		if (frozen != null)
+			memtable += frozen.retainedBytes();
+		usage.merge("memtable", memtable, Long::sum);
+		long index = 0;
+		long filters = 0;
+		for (List<SSTable> level : current.levels) {
+			for (SSTable t : level) {
+				index += t.indexBytes();
+				filters += t.filterBytes();
+			}
+		}
+		usage.merge("index", index, Long::sum);
+		usage.merge("filters", filters, Long::sum);
+		if (cache != null)
+			usage.merge("blockCache", cache.used(), Long::sum);
+		ReplicationLog l = log;
+		if (l != null)
+			usage.merge("replicationLog", l.retainedBytes(), Long::sum);
+	}
+
+	private static long fileId(String name) {
+		return Long.parseLong(name.substring(0, name.indexOf('.')));
+	}
+
+	private WriteAheadLog newLog() throws IOException {
+		long id = nextFileId++;
+		return new WriteAheadLog(id, dir.resolve(String.format("%06d.log", id)), metrics);
+	}
+
+	@Override
+	public synchronized void put(String key, String value) throws IOException {
+		makeRoomForWrite();
+		wal.append(key, value);
+		replaced(mem.put(key, value), value);
+		if (log != null)
+			log.append(key, value);
+		memBytes += 2L * (key.length() + value.length()) + 64;
+	}
+
+	/** Notes a memtable value overwritten by value */
+	private void replaced(String old, String value) {
+		if (old != null && BlobFile.isRef(old) && !old.equals(value))
+			discardBlob(old, current.seq);
+	}
+
+	/**
+	 * Queues the blob a dropped reference points to for deletion once the
+	 * version numbered seq and all older ones are gone.
+	 */
+	private void discardBlob(String ref, long seq) {
+		garbageBlobs.add(new long[] { seq, BlobFile.id(ref) });
+	}
+
+	/** Deletes the queued blobs that no version still held can lead to */
+	private void deleteGarbageBlobs() throws IOException {
+		versions.removeIf(Version::retired);
+		long oldest = versions.isEmpty() ? Long.MAX_VALUE : versions.peekFirst().seq;
+		while (!garbageBlobs.isEmpty() && garbageBlobs.peekFirst()[0] < oldest)
+			Files.deleteIfExists(blobPath(garbageBlobs.pollFirst()[1]));
+	}
+
+	/** Creates the file of a new blob; the caller logs its reference once it is complete */
+	@Override
+	public synchronized BlobFile.Out newBlob() throws IOException {
+		long id = nextFileId++;
+		return new BlobFile.Out(id, blobPath(id), metrics);
+	}
+
+	@Override
+	public Path blobPath(long id) {
+		return dir.resolve(BlobFile.fileName(id));
+	}
+
+	/** Hides key from reads until it is written again */
+	@Override
+	public void delete(String key) throws IOException {
+		put(key, TOMBSTONE);
+	}
+
+	/** Deletes all keys under one acquisition of the write lock */
+	@Override
+	public synchronized void deleteMany(String[] keys) throws IOException {
+		for (String key : keys)
+			put(key, TOMBSTONE);
+	}
+
+	/** Applies all pairs under one acquisition of the write lock */
+	@Override
+	public synchronized void putMany(String[] keys, String[] values) throws IOException {
+		for (int i = 0; i < keys.length; i++)
+			put(keys[i], values[i]);
+	}
+
+	/** Makes everything written so far durable */
+	@Override
+	public synchronized void sync() throws IOException {
+		wal.sync();
+		if (log != null)
+			log.commit();
+	}
+
+	@Override
+	public String get(String key) throws IOException {
+		String v = mem.get(key);
+		if (v != null)
+			return live(v);
+		Memtable frozen = imm;
+		if (frozen != null) {
+			v = frozen.get(key);
+			if (v != null)
+				return live(v);
+		}
+		Version ver = acquire();
+		try {
+			return live(ver.get(key));
+		} finally {
+			ver.release();
+		}
+	}
+
+	/** The stored value, or null for a tombstone */
+	private static String live(String stored) {
+		return TOMBSTONE.equals(stored) ? null : stored;
+	}
+
+	/**
+	 * Batched {@link #get}: keys must be sorted and distinct, and out[i]
+	 * receives the value of keys[i] or stays null. Each table is visited once
+	 * for the whole batch.
+	 */
+	@Override
+	public void getMany(String[] keys, String[] out) throws IOException {
+		Memtable frozen = imm;
+		boolean missing = false;
+		for (int i = 0; i < keys.length; i++) {
+			out[i] = mem.get(keys[i]);
+			if (out[i] == null && frozen != null)
+				out[i] = frozen.get(keys[i]);
+			missing |= out[i] == null;
+		}
+		if (missing) {
+			Version ver = acquire();
+			try {
+				ver.getMany(keys, out);
+			} finally {
+				ver.release();
+			}
+		}
+		// tombstones had to fill their slots to hide older values
+		for (int i = 0; i < keys.length; i++)
+			out[i] = live(out[i]);
+	}
+
+	/**
+	 * Iterates the newest value of every key in [from, to) in key order,
+	 * skipping deleted keys; a null bound is open. The iterator sees the tree
+	 * as it was when it was created, and keeps the tables alive until it is
+	 * exhausted or collected.
+	 */
+	Iterator<Map.Entry<String, String>> iterator(String from, String to) {
+		return iterator(from, to, true);
+	}
+
+	/**
+	 * As {@link #iterator(String, String)}; fillCache says whether the blocks
+	 * read from disk enter the block cache.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+		try (Snapshot s = snapshot()) {
+			return s.iterator(from, to, fillCache);
+		}
+	}
+
+	/**
+	 * Captures the tree as it is now. This takes the write lock, so that a
+	 * batch is either wholly in the snapshot or not at all, but only for
+	 * constant time: the memtable is shared copy-on-write and the tables are
+	 * merely retained.
+	 */
+	@Override
+	public synchronized Snapshot snapshot() {
+		// a blob dropped from now on is stamped with at least this version's seq
+		return new Snapshot(mem.snapshot(), imm, acquire(), log == null ? 0 : log.last());
+	}
+
+	/**
+	 * A snapshot of exactly the committed writes: the log is synced first,
+	 * holding up writers for the duration of one fsync.
+	 */
+	synchronized Snapshot syncedSnapshot() throws IOException {
+		sync();
+		return snapshot();
+	}
+
+	/**
+	 * The value a stored form stands for, as a follower should apply it: null
+	 * for a tombstone, and read from its blob for a reference. Throws
+	 * NoSuchFileException if that blob has been collected.
+	 */
+	char[] resolveForReplication(String stored) throws IOException {
+		if (stored.equals(TOMBSTONE))
+			return null;
+		if (BlobFile.isRef(stored))
+			return BlobFile.readAll(blobPath(BlobFile.id(stored)), BlobFile.length(stored), metrics);
+		return BlobFile.unescape(stored).toCharArray();
+	}
+
+	private Version acquire() {
+		while (true) {
+			Version v = current;
+			if (v.tryRetain())
+				return v;
+		}
+	}
+
+	/**
+	 * Switches to a fresh memtable once the current one is full. Fails once a
+	 * background flush or compaction has, since the tree on disk may then
+	 * no longer match what the memtables assume.
+	 */
+	private void makeRoomForWrite() throws IOException {
+		long stalled = 0;
+		StoreEvents.WriteStall event = null;
+		checkBackgroundError();
+		while (memBytes >= options.memtableBytes) {
+			if (imm != null) {
+				// the previous memtable is still being flushed; stall
+				if (stalled == 0) {
+					stalled = System.nanoTime();
+					event = new StoreEvents.WriteStall();
+					event.begin();
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for a flush", e);
+				}
+				checkBackgroundError();
+				continue;
+			}
+			// nothing changes unless the next log can be created
+			WriteAheadLog next = newLog();
+			wal.close();
+			if (log != null)
+				log.commit();
+			immWal = wal;
+			imm = mem;
+			mem = new Memtable();
+			memBytes = 0;
+			wal = next;
+			flusher.execute(() -> {
+				try {
+					flushImmutable();
+				} catch (IOException | RuntimeException e) {
+					// the memtable stays frozen and its log stays, for the next open to replay
+					backgroundFailed(e);
+				}
+			});
+		}
+		if (stalled != 0) {
+			metrics.writeStalls.recordSince(stalled);
+			event.commit();
+		}
+	}
+
+	private void checkBackgroundError() throws IOException {
+		assert Thread.holdsLock(this);
+		if (backgroundError != null)
+			throw new IOException("Background work failed, the store is read-only", backgroundError);
+	}
+
+	/** Records the first background failure and wakes the writers stalled on it */
+	private synchronized void backgroundFailed(Exception e) {
+		if (backgroundError == null)
+			backgroundError = e instanceof IOException ? (IOException) e : new IOException(e);
+		notifyAll();
+	}
+
+	/** Writes the frozen memtable to a level 0 table and retires its log */
+	private void flushImmutable() throws IOException {
+		StoreEvents.Flush event = new StoreEvents.Flush();
+		event.begin();
+		long id;
+		synchronized (this) {
+			id = nextFileId++;
+		}
+		SSTable.Builder b = new SSTable.Builder(id, dir.resolve(SSTable.fileName(id)), options, cache, metrics);
+		SSTable t;
+		int entries = 0;
+		try {
+			for (Iterator<Map.Entry<String, String>> it = imm.slice(null, null); it.hasNext(); entries++) {
+				Map.Entry<String, String> e = it.next();
+				b.add(e.getKey(), e.getValue());
+			}
+			t = b.finish();
+		} catch (IOException e) {
+			b.abandon();
+			throw e;
+		}
+		event.entries = entries;
+		event.size = t.size;
+		event.commit();
+		synchronized (this) {
+			install(Collections.<SSTable>emptyList(), 0, Collections.singletonList(t));
+			imm = null;
+			if (immWal != null) {
+				Files.deleteIfExists(immWal.path);
+				immWal = null;
+			}
+			notifyAll();
+			maybeScheduleCompaction();
+		}
+	}
+
+	/**
+	 * Publishes a new version and records it in the manifest. A table that is
+	 * both removed and added has merely changed level. The manifest is durable
+	 * once this returns, so files it no longer needs may be deleted.
+	 */
+	private void install(List<SSTable> removed, int level, List<SSTable> added) throws IOException {
+		assert Thread.holdsLock(this);
+		Version next = current.apply(removed, level, added);
+		try {
+			writeManifest(next);
+		} catch (IOException e) {
+			next.release();
+			throw e;
+		}
+		for (SSTable t : removed) {
+			if (!added.contains(t))
+				t.obsolete = true;
+		}
+		Version old = current;
+		current = next;
+		versions.add(next);
+		old.release();
+		deleteGarbageBlobs();
+	}
+
+	private void writeManifest(Version v) throws IOException {
+		Path tmp = dir.resolve(MANIFEST + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			int n = 0;
+			for (List<SSTable> level : v.levels)
+				n += level.size();
+			out.writeLong(nextFileId);
+			out.writeInt(n);
+			for (int i = 0; i < v.levels.size(); i++) {
+				for (SSTable t : v.levels.get(i)) {
+					out.writeInt(i);
+					out.writeLong(t.id);
+				}
+			}
+		}
+		FileSync.replace(tmp, dir.resolve(MANIFEST));
+	}
+
+	private void maybeScheduleCompaction() {
+		assert Thread.holdsLock(this);
+		if (compactionScheduled || closed || backgroundError != null || (pickLevel(current) < 0 && pickGarbage(current) == null))
+			return;
+		compactionScheduled = true;
+		compactor.execute(() -> {
+			try {
+				while (compactOnce()) {
+				}
+			} catch (IOException | RuntimeException e) {
+				backgroundFailed(e);
+			} finally {
+				synchronized (this) {
+					compactionScheduled = false;
+				}
+			}
+		});
+	}
+
+	/** The level most in need of compaction, or -1 if all are within budget */
+	private int pickLevel(Version v) {
+		int best = -1;
+		double bestScore = 1;
+		double score = (double) v.levels.get(0).size() / options.level0CompactionTrigger;
+		if (score >= bestScore) {
+			best = 0;
+			bestScore = score;
+		}
+		for (int i = 1; i < options.levels - 1; i++) {
+			score = (double) v.levelBytes(i) / options.maxBytesForLevel(i);
+			if (score > bestScore) {
+				best = i;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The table with the largest share of tombstones, if that reaches
+	 * {@link StoreOptions#garbageRatio}; otherwise null.
+	 */
+	private SSTable pickGarbage(Version v) {
+		if (options.garbageRatio <= 0)
+			return null;
+		SSTable best = null;
+		double bestRatio = options.garbageRatio;
+		for (List<SSTable> level : v.levels) {
+			for (SSTable t : level) {
+				double ratio = (double) t.tombstones / t.entries;
+				if (ratio >= bestRatio) {
+					best = t;
+					bestRatio = ratio;
+				}
+			}
+		}
+		return best;
+	}
+
+	/** Whether a level below the given one has a table overlapping [from, to] */
+	private static boolean deeperOverlaps(Version v, int level, String from, String to) {
+		for (int i = level + 1; i < v.levels.size(); i++) {
+			if (!Version.overlapping(v.levels.get(i), from, to).isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	/** Whether a level below the given one may hold key */
+	private static boolean deeperMayHold(Version v, int level, String key) {
+		for (int i = level + 1; i < v.levels.size(); i++) {
+			if (Version.find(v.levels.get(i), key) != null)
+				return true;
+		}
+		return false;
+	}
+
+	/** Runs one compaction if one is due, returning whether it did */
+	private boolean compactOnce() throws IOException {
+		Version base;
+		int level;
+		int outputLevel;
+		boolean garbage = false;
+		List<SSTable> inputs;
+		List<SSTable> nextInputs;
+		synchronized (this) {
+			if (closed)
+				return false;
+			base = acquire();
+			level = pickLevel(base);
+			SSTable pick = null;
+			if (level < 0) {
+				pick = pickGarbage(base);
+				if (pick == null) {
+					base.release();
+					return false;
+				}
+				garbage = true;
+				level = 0;
+				while (!base.levels.get(level).contains(pick))
+					level++;
+			}
+			List<SSTable> tables = base.levels.get(level);
+			if (level == 0) {
+				inputs = new ArrayList<SSTable>(tables);
+			} else {
+				if (pick == null) {
+					pick = tables.get(0);
+					for (SSTable t : tables) {
+						if (compactPointer[level] == null || t.smallest.compareTo(compactPointer[level]) > 0) {
+							pick = t;
+							break;
+						}
+					}
+				}
+				inputs = Collections.singletonList(pick);
+			}
+			String from = inputs.get(0).smallest, to = inputs.get(0).largest;
+			for (SSTable t : inputs) {
+				if (t.smallest.compareTo(from) < 0)
+					from = t.smallest;
+				if (t.largest.compareTo(to) > 0)
+					to = t.largest;
+			}
+			outputLevel = level + 1;
+			if (outputLevel < options.levels)
+				nextInputs = Version.overlapping(base.levels.get(outputLevel), from, to);
+			else
+				nextInputs = Collections.<SSTable>emptyList();
+			if (!garbage)
+				compactPointer[level] = to;
+
+			if (level > 0 && nextInputs.isEmpty()) {
+				if (garbage && !deeperOverlaps(base, level, from, to)) {
+					// every tombstone can go: rewrite the table in place
+					outputLevel = level;
+				} else {
+					// nothing to merge with: move the table down a level as-is
+					try {
+						install(inputs, outputLevel, inputs);
+					} finally {
+						base.release();
+					}
+					return true;
+				}
+			}
+		}
+
+		StoreEvents.Compaction event = new StoreEvents.Compaction();
+		event.begin();
+		long started = System.nanoTime();
+		List<SSTable> outputs = new ArrayList<SSTable>();
+		try {
+			List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<Iterator<Map.Entry<String, String>>>();
+			for (SSTable t : inputs)
+				sources.add(t.iterator(null, false));
+			for (SSTable t : nextInputs)
+				sources.add(t.iterator(null, false));
+			// references to blobs that a newer value of the key has replaced
+			List<String> dropped = new ArrayList<String>();
+			Iterator<Map.Entry<String, String>> merged = new MergingIterator(sources, (older, newer) -> {
+				String v = older.getValue();
+				if (BlobFile.isRef(v) && !v.equals(newer.getValue()))
+					dropped.add(v);
+			});
+			SSTable.Builder b = null;
+			try {
+				long written = 0;
+				while (merged.hasNext()) {
+					Map.Entry<String, String> e = merged.next();
+					if (e.getValue().equals(TOMBSTONE) && !deeperMayHold(base, outputLevel, e.getKey()))
+						continue;
+					if (b == null)
+						b = newTableBuilder();
+					b.add(e.getKey(), e.getValue());
+					if (b.size() >= options.targetTableBytes) {
+						written += b.size();
+						outputs.add(b.finish());
+						b = null;
+					}
+					if (garbage && !throttle(started, written + (b == null ? 0 : b.size()))) {
+						// closing; the inputs stay as they are
+						if (b != null)
+							b.abandon();
+						discard(outputs);
+						return false;
+					}
+				}
+				if (b != null)
+					outputs.add(b.finish());
+			} catch (IOException | RuntimeException e) {
+				if (b != null)
+					b.abandon();
+				throw e;
+			}
+
+			List<SSTable> removed = new ArrayList<SSTable>(inputs);
+			removed.addAll(nextInputs);
+			synchronized (this) {
+				long seq = current.seq;
+				install(removed, outputLevel, outputs);
+				for (String ref : dropped)
+					discardBlob(ref, seq);
+			}
+			if (event.shouldCommit()) {
+				event.level = level;
+				event.garbage = garbage;
+				event.inputTables = removed.size();
+				event.outputTables = outputs.size();
+				for (SSTable t : outputs)
+					event.bytesWritten += t.size;
+				event.commit();
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			discard(outputs);
+			throw e;
+		} finally {
+			base.release();
+		}
+	}
+
+	/** Deletes tables written by a compaction that was not installed */
+	private static void discard(List<SSTable> outputs) {
+		for (SSTable t : outputs) {
+			t.obsolete = true;
+			t.retain();
+			t.release();
+		}
+	}
+
+	/**
+	 * Sleeps for as long as writing bytes since started is ahead of
+	 * {@link StoreOptions#garbageBytesPerSecond}. Returns false once the tree
+	 * is closing.
+	 */
+	private boolean throttle(long started, long bytes) {
+		if (options.garbageBytesPerSecond > 0) {
+			long ahead = (long) (bytes * 1e9 / options.garbageBytesPerSecond) - (System.nanoTime() - started);
+			if (ahead >= 1_000_000) {
+				try {
+					Thread.sleep(ahead / 1_000_000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return !closed;
+	}
+
+	private synchronized SSTable.Builder newTableBuilder() throws IOException {
+		long id = nextFileId++;
+		return new SSTable.Builder(id, dir.resolve(SSTable.fileName(id)), options, cache, metrics);
+	}
+
+	/**
+	 * Flushes the memtable, waits for background work to finish and closes
+	 * every file. Data stays on disk for the next {@link #open}.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			wal.sync();
+			if (log != null)
+				log.commit();
+			closed = true;
+		}
+		flusher.shutdown();
+		compactor.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.MINUTES);
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			wal.close();
+			current.release();
+			deleteGarbageBlobs();
+		}
+	}
+
+	/** Concatenates the disjoint, sorted tables of one level */
+	private static final class LevelIterator implements Iterator<Map.Entry<String, String>> {
+		private final List<SSTable> tables;
+		private final boolean fillCache;
+		private int index;
+		private Iterator<Map.Entry<String, String>> it;
+
+		LevelIterator(List<SSTable> tables, String from, boolean fillCache) {
+			this.tables = tables;
+			this.fillCache = fillCache;
+			index = 0;
+			if (from != null) {
+				while (index < tables.size() && tables.get(index).largest.compareTo(from) < 0)
+					index++;
+			}
+			it = index < tables.size() ? tables.get(index++).iterator(from, fillCache) : Collections.emptyIterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!it.hasNext() && index < tables.size())
+				it = tables.get(index++).iterator(null, fillCache);
+			return it.hasNext();
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return it.next();
+		}
+	}
+
+	/**
+	 * The memtables and the version of the tree at one instant. Reads and
+	 * iterators run against it without any lock. Its version, and with it
+	 * every table and blob it can reach, is retained until it is closed, or
+	 * collected without having been closed.
+	 */
+	static final class Snapshot implements StorageEngine.Snapshot {
+		private final Memtable mem;
+		/** Null if no memtable was being flushed */
+		private final Memtable imm;
+		private final Version ver;
+		/** Number of the last write in the replication log that it holds */
+		final long logSeq;
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private final Cleaner.Cleanable cleanable;
+
+		private Snapshot(Memtable mem, Memtable imm, Version ver, long logSeq) {
+			this.mem = mem;
+			this.imm = imm;
+			this.ver = ver;
+			this.logSeq = logSeq;
+			this.cleanable = CLEANER.register(this, ver::release);
+		}
+
+		/** The value key had, or null */
+		@Override
+		public String get(String key) throws IOException {
+			checkOpen();
+			String v = mem.get(key);
+			if (v == null && imm != null)
+				v = imm.get(key);
+			return live(v != null ? v : ver.get(key));
+		}
+
+		/** As {@link LSMTree#iterator(String, String, boolean)}, as of the snapshot */
+		@Override
+		public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+			checkOpen();
+			// the iterator holds its own reference, so it outlives the snapshot
+			if (!ver.tryRetain())
+				throw new IllegalStateException("Snapshot closed");
+			List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<Iterator<Map.Entry<String, String>>>();
+			sources.add(mem.slice(from, to));
+			if (imm != null)
+				sources.add(imm.slice(from, to));
+			for (SSTable t : ver.levels.get(0))
+				sources.add(t.iterator(from, fillCache));
+			for (int i = 1; i < ver.levels.size(); i++)
+				sources.add(new LevelIterator(ver.levels.get(i), from, fillCache));
+			return new RangeIterator(new MergingIterator(sources), to, ver);
+		}
+
+		private void checkOpen() {
+			if (closed.get())
+				throw new IllegalStateException("Snapshot closed");
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true))
+				cleanable.clean();
+		}
+	}
+
+	/**
+	 * Bounds a merged stream at to, skips tombstones, and releases the
+	 * version it holds once hasNext() reports the end, or when it is
+	 * collected without being drained. Holding it until after the last entry
+	 * has been consumed keeps the blobs that entry refers to readable.
+	 */
+	private static final class RangeIterator implements Iterator<Map.Entry<String, String>> {
+		private final Iterator<Map.Entry<String, String>> merged;
+		private final String to;
+		private final Cleaner.Cleanable cleanable;
+		private Map.Entry<String, String> next;
+
+		RangeIterator(Iterator<Map.Entry<String, String>> merged, String to, Version ver) {
+			this.merged = merged;
+			this.to = to;
+			this.cleanable = CLEANER.register(this, ver::release);
+			advance();
+		}
+
+		private void advance() {
+			while (merged.hasNext()) {
+				next = merged.next();
+				if (to != null && next.getKey().compareTo(to) >= 0)
+					break;
+				if (!next.getValue().equals(TOMBSTONE))
+					return;
+			}
+			next = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next != null)
+				return true;
+			cleanable.clean();
+			return false;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			Map.Entry<String, String> e = next;
+			advance();
+			return e;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with log-linear buckets:
+ * values below 64 get a bucket each and every power of two above is split
+ * into 32 buckets, so any recorded value is reported within about 3% over
+ * the whole range of a long, in a fixed 15KB table.
+ *
+ * Recording is a single atomic increment and may run concurrently with
+ * other recorders and with {@link #snapshot()}.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int HALF = 1 << SUB_BITS;
+	private static final int BUCKETS = HALF * (62 - SUB_BITS) + 2 * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	static int bucket(long value) {
+		if (value < 2 * HALF)
+			return (int) Math.max(0, value);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return HALF * shift + (int) (value >>> shift);
+	}
+
+	/** Largest value that falls in the given bucket */
+	static long highestValue(int bucket) {
+		if (bucket < 2 * HALF)
+			return bucket;
+		int shift = bucket / HALF - 1;
+		long m = bucket - (long) HALF * shift;
+		return ((m + 1) << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+		sum.add(nanos);
+		if (nanos > max.get())
+			max.accumulateAndGet(nanos, Math::max);
+	}
+
+	/** Records the time elapsed since startNanos, a {@link System#nanoTime()} */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public Snapshot snapshot() {
+		long[] c = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = counts.get(i);
+			n += c[i];
+		}
+		return new Snapshot(c, n, sum.sum(), max.get());
+	}
+
+	/** Counts frozen at one moment, for computing percentiles */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public long max() {
+			return max;
+		}
+
+		public double mean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * Smallest recorded value, to bucket precision, that at least the
+		 * given percentage of values do not exceed; 0 when empty.
+		 */
+		public long percentile(double percent) {
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(highestValue(i), max);
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", count,
+					mean() / 1e3, percentile(50) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3, max / 1e3);
+		}
+	}
+}
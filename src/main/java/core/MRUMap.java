@@ -13,6 +13,12 @@ public class MRUMap<K,V> extends LinkedHashMap<K,V>
   /** Maximum number of entries allowed in this map */
   private int maxEntries;
 
+  /** Access frequencies for admission, or null to admit every entry */
+  private FrequencySketch sketch;
+
+  /** Whether the last put was turned away by the admission policy */
+  boolean rejected;
+
   /**
    * Constructor
    *  
@@ -30,7 +36,114 @@ public class MRUMap<K,V> extends LinkedHashMap<K,V>
     
     this.maxEntries = maxEntries;
   }
+
+  /**
+   * Constructor
+   *
+   * @param maxEntries
+   *            Maximum number of entries allowed in the map
+   * @param admission
+   *            Whether a full map only admits a new entry that has been
+   *            accessed more often recently than the entry it would evict
+   *            (TinyLFU), so that keys touched once by a scan cannot flush
+   *            the frequently used ones
+   */
+  public MRUMap(final int maxEntries, final boolean admission)
+  {
+    this(maxEntries);
+    if (admission)
+    {
+      this.sketch = new FrequencySketch(maxEntries);
+    }
+  }
+
+  /**
+   * Records the access for admission, hit or miss
+   *
+   * @see java.util.LinkedHashMap#get(java.lang.Object)
+   */
+  @Override
+  public V get(final Object key)
+  {
+    if (sketch != null)
+    {
+      sketch.increment(key);
+    }
+    return super.get(key);
+  }
+
+  /**
+   * Counts as an access of key; a new key may be rejected when the map is
+   * full
+   *
+   * @see java.util.HashMap#put(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V put(final K key, final V value)
+  {
+    if (sketch != null)
+    {
+      sketch.increment(key);
+    }
+    if (!admit(key))
+    {
+      return null;
+    }
+    return super.put(key, value);
+  }
+
+  /**
+   * Like {@link #put} but without counting an access, which the preceding
+   * {@link #get} miss has already recorded
+   *
+   * @see java.util.HashMap#putIfAbsent(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V putIfAbsent(final K key, final V value)
+  {
+    if (!admit(key))
+    {
+      return null;
+    }
+    return super.putIfAbsent(key, value);
+  }
+
+  private boolean admit(final K key)
+  {
+    rejected = false;
+    if (sketch == null || size() < maxEntries || containsKey(key))
+    {
+      return true;
+    }
+    final K victim = keySet().iterator().next();
+    if (sketch.frequency(key) > sketch.frequency(victim))
+    {
+      return true;
+    }
+    rejected = true;
+    removedValue = null;
+    return false;
+  }
   
+  /**
+   * Estimated heap retained by the map: its entries, table, keys and values
+   * (as sized by {@link Footprint#of}) and its admission sketch. Walks every
+   * entry, so callers synchronize as for any other access.
+   */
+  public long retainedBytes()
+  {
+    long bytes = Footprint.object(8, 22) + Footprint.hashTable(size(), 16);
+    for (final Map.Entry<K,V> e : entrySet())
+    {
+      bytes += Footprint.LINKED_HASH_ENTRY + Footprint.of(e.getKey()) + Footprint.of(e.getValue());
+    }
+    if (sketch != null)
+    {
+      bytes += sketch.retainedBytes();
+    }
+    return bytes;
+  }
+
   /**
    * @return Returns the removedValue.
    */
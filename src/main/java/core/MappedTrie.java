@@ -0,0 +1,200 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only prefix table queried in place from a memory-mapped file.
+ * 
+ * The file is the array layout of {@link FrozenTrie} written verbatim, so
+ * opening it costs one mmap regardless of how many prefixes it holds. Values
+ * are deduplicated into a string table, since prefix tables typically map
+ * millions of prefixes onto a handful of distinct values.
+ * 
+ * <pre>
+ * int   magic, version, nodes, edges, strings, poolChars
+ * int   firstEdge[nodes + 1]
+ * int   valueId[nodes]          -1 when the node holds no value
+ * int   stringStart[strings + 1]
+ * char  edgeLabels[edges]
+ * char  pool[poolChars]
+ * </pre>
+ */
+public final class MappedTrie {
+
+	private static final int MAGIC = 0x524b5654; // "RKVT"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 6 * 4;
+
+	private final int nodes;
+	private final long mappedBytes;
+	private final IntBuffer firstEdge;
+	private final IntBuffer valueId;
+	private final IntBuffer stringStart;
+	private final CharBuffer edgeLabels;
+	private final CharBuffer pool;
+
+	private MappedTrie(ByteBuffer buf) throws IOException {
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+			throw new IOException("Not a trie file or unsupported version");
+		nodes = buf.getInt(8);
+		mappedBytes = buf.capacity();
+		int edges = buf.getInt(12);
+		int strings = buf.getInt(16);
+		int poolChars = buf.getInt(20);
+
+		int pos = HEADER_BYTES;
+		firstEdge = slice(buf, pos, (nodes + 1) * 4).asIntBuffer();
+		pos += (nodes + 1) * 4;
+		valueId = slice(buf, pos, nodes * 4).asIntBuffer();
+		pos += nodes * 4;
+		stringStart = slice(buf, pos, (strings + 1) * 4).asIntBuffer();
+		pos += (strings + 1) * 4;
+		edgeLabels = slice(buf, pos, edges * 2).asCharBuffer();
+		pos += edges * 2;
+		pool = slice(buf, pos, poolChars * 2).asCharBuffer();
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int pos, int len) {
+		ByteBuffer b = buf.duplicate();
+		b.position(pos).limit(pos + len);
+		return b.slice();
+	}
+
+	/**
+	 * Maps a file previously produced by {@link #write(FrozenTrie, Path)}. The
+	 * mapping stays valid after the channel is closed.
+	 */
+	public static MappedTrie open(Path path) throws IOException {
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			return new MappedTrie(buf);
+		}
+	}
+
+	/**
+	 * Writes the frozen table to path. The file is written beside the target and
+	 * moved into place, so readers never observe a partial table.
+	 */
+	public static void write(FrozenTrie<String> trie, Path path) throws IOException {
+		int n = trie.values.length;
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		StringBuilder pool = new StringBuilder();
+		int[] valueId = new int[n];
+		int[] stringStart = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			String v = (String) trie.values[i];
+			if (v == null) {
+				valueId[i] = -1;
+				continue;
+			}
+			Integer id = ids.get(v);
+			if (id == null) {
+				id = ids.size();
+				ids.put(v, id);
+				stringStart[id] = pool.length();
+				pool.append(v);
+			}
+			valueId[i] = id;
+		}
+		int strings = ids.size();
+		stringStart[strings] = pool.length();
+
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(trie.edgeLabels.length);
+			out.writeInt(strings);
+			out.writeInt(pool.length());
+			for (int e : trie.firstEdge)
+				out.writeInt(e);
+			for (int id : valueId)
+				out.writeInt(id);
+			for (int i = 0; i <= strings; i++)
+				out.writeInt(stringStart[i]);
+			for (char c : trie.edgeLabels)
+				out.writeChar(c);
+			out.writeChars(pool.toString());
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Number of nodes, including the root */
+	public int size() {
+		return nodes;
+	}
+
+	/**
+	 * Bytes of the file mapped outside the heap. They count against the
+	 * process's memory only as far as the pages are resident; the heap holds
+	 * no more than a few buffer views.
+	 */
+	public long offHeapBytes() {
+		return mappedBytes;
+	}
+
+	/**
+	 * Returns the id of the value stored under the longest matching prefix of
+	 * key[off, off + len), or -1 if none matches. Does not allocate.
+	 */
+	public int longestPrefixId(char[] key, int off, int len) {
+		int node = 0;
+		int best = valueId.get(0);
+		for (int i = off, end = off + len; i < end; i++) {
+			int e = findEdge(node, key[i]);
+			if (e < 0)
+				break;
+			node = e + 1;
+			int id = valueId.get(node);
+			if (id >= 0)
+				best = id;
+		}
+		return best;
+	}
+
+	/** Returns the value for the longest matching prefix, or null */
+	public String longestPrefix(char[] key, int off, int len) {
+		int id = longestPrefixId(key, off, len);
+		return id < 0 ? null : value(id);
+	}
+
+	/** Materializes the value with the given id */
+	public String value(int id) {
+		int start = stringStart.get(id);
+		int end = stringStart.get(id + 1);
+		char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = pool.get(start + i);
+		return new String(chars);
+	}
+
+	private int findEdge(int node, char c) {
+		int lo = firstEdge.get(node);
+		int hi = firstEdge.get(node + 1) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char l = edgeLabels.get(mid);
+			if (l < c)
+				lo = mid + 1;
+			else if (l > c)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,113 @@
+package core;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import rkv.TrieMap;
+
+/**
+ * Engine keeping the whole store in one {@link TrieMap}, for data that need
+ * not outlive the process: nothing is written to disk, and the store is
+ * empty again after reopening. Point operations are lock-free hash lookups;
+ * a range scan sorts the matching keys of a constant-time snapshot.
+ */
+final class MemoryEngine implements StorageEngine {
+
+	private final TrieMap<String, String> map = new TrieMap<String, String>();
+
+	@Override
+	public String get(String key) {
+		return map.get(key);
+	}
+
+	@Override
+	public void getMany(String[] keys, String[] out) {
+		for (int i = 0; i < keys.length; i++)
+			out[i] = map.get(keys[i]);
+	}
+
+	/** Writes are serialized, so that a snapshot never sees part of a batch */
+	@Override
+	public synchronized void put(String key, String value) {
+		map.put(key, value);
+	}
+
+	@Override
+	public synchronized void putMany(String[] keys, String[] values) {
+		for (int i = 0; i < keys.length; i++)
+			map.put(keys[i], values[i]);
+	}
+
+	@Override
+	public synchronized void delete(String key) {
+		map.remove(key);
+	}
+
+	@Override
+	public synchronized void deleteMany(String[] keys) {
+		for (String key : keys)
+			map.remove(key);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+		try (Snapshot s = snapshot()) {
+			return s.iterator(from, to, fillCache);
+		}
+	}
+
+	@Override
+	public synchronized Snapshot snapshot() {
+		final TrieMap<String, String> frozen = map.readOnlySnapshot();
+		return new Snapshot() {
+			@Override
+			public String get(String key) {
+				return frozen.get(key);
+			}
+
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache) {
+				return slice(frozen, from, to);
+			}
+
+			@Override
+			public void close() {
+				// nothing is held
+			}
+		};
+	}
+
+	/**
+	 * The entries of a hash-ordered map with keys in [from, to), sorted by
+	 * key. Deletes remove keys here, so a sorted index could not serve a
+	 * snapshot; the matching keys are sorted instead.
+	 */
+	static <V> Iterator<Map.Entry<String, V>> slice(TrieMap<String, V> map, String from, String to) {
+		List<Map.Entry<String, V>> entries = new ArrayList<Map.Entry<String, V>>();
+		for (Map.Entry<String, V> e : map.readOnlySnapshot().entrySet()) {
+			String k = e.getKey();
+			if ((from == null || k.compareTo(from) >= 0) && (to == null || k.compareTo(to) < 0))
+				entries.add(new AbstractMap.SimpleImmutableEntry<String, V>(k, e.getValue()));
+		}
+		entries.sort(Map.Entry.comparingByKey());
+		return entries.iterator();
+	}
+
+	@Override
+	public void memoryUsage(Map<String, Long> usage) {
+		usage.merge("memtable", map.retainedBytes(Footprint::string, Footprint::string), Long::sum);
+	}
+
+	@Override
+	public void sync() {
+		// nothing to make durable
+	}
+
+	@Override
+	public void close() {
+		map.clear();
+	}
+}
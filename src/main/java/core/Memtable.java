@@ -0,0 +1,103 @@
+package core;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import rkv.TrieMap;
+
+/**
+ * The in-memory table of an {@link LSMTree}: a {@link TrieMap} for point
+ * reads and constant-time snapshots, and a skip list of its keys, so that a
+ * range scan seeks to its first key instead of sorting the whole table.
+ *
+ * Keys are never removed, since a delete is written as a tombstone, and a
+ * key enters the skip list before the map. Every key of a snapshot is thus
+ * in the skip list, which the snapshot shares; keys added after it was taken
+ * are skipped on lookup. Writes must be serialized by the caller.
+ */
+final class Memtable {
+
+	/** An entry of a skip list plus, on average, a third of an index node */
+	private static final long KEY_BYTES = Footprint.object(3, 0) + Footprint.object(3, 0) / 3;
+
+	private final TrieMap<String, String> map;
+	private final ConcurrentSkipListSet<String> keys;
+
+	Memtable() {
+		this(new TrieMap<String, String>(), new ConcurrentSkipListSet<String>());
+	}
+
+	private Memtable(TrieMap<String, String> map, ConcurrentSkipListSet<String> keys) {
+		this.map = map;
+		this.keys = keys;
+	}
+
+	/** Stores value under key, returning the value it replaced or null */
+	String put(String key, String value) {
+		keys.add(key);
+		return map.put(key, value);
+	}
+
+	String get(String key) {
+		return map.get(key);
+	}
+
+	boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	/** A read-only view of the table as it is now, taken in constant time */
+	Memtable snapshot() {
+		return new Memtable(map.readOnlySnapshot(), keys);
+	}
+
+	/** The entries with keys in [from, to) in key order; a null bound is open */
+	Iterator<Map.Entry<String, String>> slice(String from, String to) {
+		NavigableSet<String> range;
+		if (from == null)
+			range = to == null ? keys : keys.headSet(to, false);
+		else
+			range = to == null ? keys.tailSet(from, true) : keys.subSet(from, true, to, false);
+		Iterator<String> it = range.iterator();
+		return new Iterator<Map.Entry<String, String>>() {
+			private Map.Entry<String, String> next = advance();
+
+			private Map.Entry<String, String> advance() {
+				while (it.hasNext()) {
+					String k = it.next();
+					String v = map.get(k);
+					if (v != null)
+						return new AbstractMap.SimpleImmutableEntry<String, String>(k, v);
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				Map.Entry<String, String> e = next;
+				next = advance();
+				return e;
+			}
+		};
+	}
+
+	/**
+	 * Estimated heap retained by the map, with its keys and values, and by
+	 * the skip list. Keys are charged once, as the two structures share them.
+	 */
+	long retainedBytes() {
+		TrieMap<String, String> ro = map.readOnlySnapshot();
+		return ro.retainedBytes(Footprint::string, Footprint::string) + ro.size() * KEY_BYTES;
+	}
+}
@@ -0,0 +1,78 @@
+package core;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * Merges key-sorted sources into one key-sorted stream. Sources are given
+ * newest first; when several hold the same key only the newest entry is
+ * returned.
+ */
+final class MergingIterator implements Iterator<Map.Entry<String, String>> {
+
+	private static final class Head {
+		final int rank;
+		final Iterator<Map.Entry<String, String>> source;
+		Map.Entry<String, String> entry;
+
+		Head(int rank, Iterator<Map.Entry<String, String>> source) {
+			this.rank = rank;
+			this.source = source;
+			this.entry = source.next();
+		}
+	}
+
+	private final PriorityQueue<Head> heap = new PriorityQueue<Head>((a, b) -> {
+		int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+		return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+	});
+
+	/** Told of every entry dropped, along with the newer entry that won */
+	private final BiConsumer<Map.Entry<String, String>, Map.Entry<String, String>> dropped;
+
+	MergingIterator(List<Iterator<Map.Entry<String, String>>> sources) {
+		this(sources, null);
+	}
+
+	MergingIterator(List<Iterator<Map.Entry<String, String>>> sources,
+			BiConsumer<Map.Entry<String, String>, Map.Entry<String, String>> dropped) {
+		this.dropped = dropped;
+		for (int i = 0; i < sources.size(); i++) {
+			if (sources.get(i).hasNext())
+				heap.add(new Head(i, sources.get(i)));
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !heap.isEmpty();
+	}
+
+	@Override
+	public Map.Entry<String, String> next() {
+		Head h = heap.poll();
+		if (h == null)
+			throw new NoSuchElementException();
+		Map.Entry<String, String> e = h.entry;
+		advance(h);
+		// drop older versions of the same key
+		while (!heap.isEmpty() && heap.peek().entry.getKey().equals(e.getKey())) {
+			Head older = heap.poll();
+			if (dropped != null)
+				dropped.accept(older.entry, e);
+			advance(older);
+		}
+		return e;
+	}
+
+	private void advance(Head h) {
+		if (h.source.hasNext()) {
+			h.entry = h.source.next();
+			heap.add(h);
+		}
+	}
+}
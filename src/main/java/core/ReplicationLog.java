@@ -0,0 +1,259 @@
+package core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The most recent writes of a {@link SimpleKV}, numbered in the order they
+ * were applied, for followers to tail. A write is handed out once the log it
+ * went to has been synced, so a follower never sees what a crash of the
+ * leader could still take back.
+ *
+ * The log lives in memory and keeps about
+ * {@link StoreOptions#replicationLogBytes} of writes. A follower that falls
+ * further behind, or that has never copied the store, starts over from a
+ * {@link #checkpoint()}. Numbers are only meaningful within one
+ * {@link #epoch()}; reopening the store starts a new one.
+ */
+public final class ReplicationLog {
+
+	/** One write; value is null for a delete */
+	public static final class Change {
+		public final long seq;
+		public final char[] key;
+		public final char[] value;
+		/** Wall clock time at which the write was committed */
+		public final long commitMillis;
+
+		Change(long seq, char[] key, char[] value, long commitMillis) {
+			this.seq = seq;
+			this.key = key;
+			this.value = value;
+			this.commitMillis = commitMillis;
+		}
+	}
+
+	/** A run of consecutive committed writes */
+	public static final class Batch {
+		/** Number of the last write covered, which may have been left out of changes */
+		public final long last;
+		/** Number of the last committed write when the batch was taken */
+		public final long committed;
+		public final List<Change> changes;
+
+		Batch(long last, long committed, List<Change> changes) {
+			this.last = last;
+			this.committed = committed;
+			this.changes = changes;
+		}
+	}
+
+	/**
+	 * Every pair of the store as of write number seq, in key order. Writes
+	 * after seq are then read from the log.
+	 */
+	public static final class Checkpoint implements Iterator<KVPair>, AutoCloseable {
+		public final long seq;
+		private final LSMTree.Snapshot snapshot;
+		private final Iterator<Map.Entry<String, String>> entries;
+		private final LSMTree tree;
+
+		private Checkpoint(LSMTree tree, LSMTree.Snapshot snapshot) {
+			this.tree = tree;
+			this.snapshot = snapshot;
+			this.seq = snapshot.logSeq;
+			this.entries = snapshot.iterator(null, null, false);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+
+		@Override
+		public KVPair next() {
+			if (!entries.hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, String> e = entries.next();
+			try {
+				// the snapshot keeps its blobs, so none can be missing
+				return new KVPair(e.getKey().toCharArray(), tree.resolveForReplication(e.getValue()));
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		@Override
+		public void close() {
+			snapshot.close();
+		}
+	}
+
+	private final long epoch;
+	private final LSMTree tree;
+	private final long capacityBytes;
+
+	/** Ring of the retained writes; the one at head is number first */
+	private String[] keys = new String[1024];
+	private String[] values = new String[1024];
+	private long[] commitTimes = new long[1024];
+	private int head;
+	private int size;
+	private long first = 1;
+	private long committed;
+	private long bytes;
+
+	ReplicationLog(LSMTree tree, long capacityBytes) {
+		this.tree = tree;
+		this.capacityBytes = capacityBytes;
+		long e;
+		do {
+			e = ThreadLocalRandom.current().nextLong();
+		} while (e == 0);
+		this.epoch = e;
+	}
+
+	/** Never zero, so that a follower can use zero for "none yet" */
+	public long epoch() {
+		return epoch;
+	}
+
+	/** Number of the last committed write, 0 if there is none */
+	public synchronized long committed() {
+		return committed;
+	}
+
+	/** Number of the last write appended, committed or not */
+	synchronized long last() {
+		return first + size - 1;
+	}
+
+	/** Estimated heap held by the ring and the writes it retains */
+	synchronized long retainedBytes() {
+		long bytes = 2 * Footprint.array(keys.length, Footprint.REFERENCE) + Footprint.array(commitTimes.length, 8);
+		for (int i = 0; i < size; i++) {
+			int j = (head + i) % keys.length;
+			bytes += Footprint.string(keys[j]) + Footprint.string(values[j]);
+		}
+		return bytes;
+	}
+
+	private static long cost(String key, String value) {
+		return 2L * (key.length() + value.length()) + 64;
+	}
+
+	/** Records a write in its stored form; called under the tree's lock */
+	synchronized void append(String key, String stored) {
+		if (size == keys.length)
+			grow();
+		int i = (head + size) % keys.length;
+		keys[i] = key;
+		values[i] = stored;
+		size++;
+		bytes += cost(key, stored);
+		while (bytes > capacityBytes && size > 1) {
+			bytes -= cost(keys[head], values[head]);
+			keys[head] = values[head] = null;
+			head = (head + 1) % keys.length;
+			size--;
+			first++;
+		}
+	}
+
+	private void grow() {
+		int n = keys.length;
+		String[] k = new String[2 * n];
+		String[] v = new String[2 * n];
+		long[] t = new long[2 * n];
+		for (int j = 0; j < size; j++) {
+			int i = (head + j) % n;
+			k[j] = keys[i];
+			v[j] = values[i];
+			t[j] = commitTimes[i];
+		}
+		keys = k;
+		values = v;
+		commitTimes = t;
+		head = 0;
+	}
+
+	/** Hands out everything appended so far; called once the log is synced */
+	synchronized void commit() {
+		long last = last();
+		if (committed == last)
+			return;
+		long now = System.currentTimeMillis();
+		for (long s = Math.max(committed + 1, first); s <= last; s++)
+			commitTimes[(int) ((head + s - first) % keys.length)] = now;
+		committed = last;
+		notifyAll();
+	}
+
+	/**
+	 * Returns up to max committed writes following write number after,
+	 * waiting up to waitMillis for one if there is none yet. Returns null if
+	 * some of those writes are no longer retained, or after is not a write of
+	 * this epoch: the follower must then start over from a
+	 * {@link #checkpoint()}.
+	 */
+	public Batch read(long after, int max, long waitMillis) throws InterruptedException {
+		String[] k, v;
+		long[] t;
+		long c;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + waitMillis;
+			for (long left = waitMillis; committed == after && left > 0; left = deadline - System.currentTimeMillis())
+				wait(left);
+			if (after > committed || after + 1 < first)
+				return null;
+			int n = (int) Math.min(max, committed - after);
+			k = new String[n];
+			v = new String[n];
+			t = new long[n];
+			for (int j = 0; j < n; j++) {
+				int i = (int) ((head + after + 1 + j - first) % keys.length);
+				k[j] = keys[i];
+				v[j] = values[i];
+				t[j] = commitTimes[i];
+			}
+			c = committed;
+		}
+		List<Change> changes = new ArrayList<Change>(k.length);
+		for (int j = 0; j < k.length; j++) {
+			char[] value;
+			try {
+				value = tree.resolveForReplication(v[j]);
+			} catch (NoSuchFileException e) {
+				// the blob was collected because the key was written again later in the log
+				continue;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			changes.add(new Change(after + 1 + j, k[j].toCharArray(), value, t[j]));
+		}
+		return new Batch(after + k.length, c, changes);
+	}
+
+	/**
+	 * Syncs the store's log and captures the whole store at that point. The
+	 * caller must close the checkpoint once it has read it.
+	 */
+	public Checkpoint checkpoint() throws IOException {
+		return new Checkpoint(tree, tree.syncedSnapshot());
+	}
+
+	@Override
+	public String toString() {
+		synchronized (this) {
+			return "ReplicationLog [epoch=" + epoch + ", first=" + first + ", committed=" + committed + ", last="
+					+ last() + ", bytes=" + bytes + "]";
+		}
+	}
+}
@@ -0,0 +1,521 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Immutable file of key-sorted records, split into blocks of roughly
+ * {@link StoreOptions#blockBytes}. A record never straddles two blocks, so
+ * any block can be decoded on its own. The first key of every block is kept
+ * in memory and a lookup reads exactly one block.
+ * 
+ * Each table has a {@link BloomFilter} over its keys, kept in memory and
+ * persisted beside the data as NNNNNN.bf, so that most lookups for keys the
+ * table does not hold are answered without reading it.
+ * 
+ * The block index is saved as a hint file, NNNNNN.hint, holding the first
+ * key, file id, offset and length of every block, and the number of records
+ * and of tombstones among them, followed by a CRC32 of the rest. Opening a
+ * table reads just its hint and filter; the data is only scanned if the
+ * hint is missing, torn or damaged.
+ * 
+ * Blocks read from disk are also offered to the store's {@link BlockCache}.
+ * 
+ * Tables are reference counted by the {@link Version}s that list them. The
+ * file is closed when the last version lets go of it, and deleted as well if
+ * a compaction has replaced it.
+ */
+final class SSTable {
+
+	private static final int HINT_MAGIC = 0x524b5648; // "RKVH"
+
+	final long id;
+	final Path path;
+	final String smallest;
+	final String largest;
+	final long size;
+	/** Number of records, and of those that are {@link LSMTree#TOMBSTONE}s */
+	final int entries;
+	final int tombstones;
+
+	/** First key of every block */
+	private final String[] blockKeys;
+	/** Start of every block, followed by the end of the data */
+	private final long[] blockOffsets;
+	/** Null when filters are disabled */
+	private final BloomFilter filter;
+	/** Null when the block cache is disabled */
+	private final BlockCache cache;
+	private final StoreMetrics metrics;
+	private final FileChannel channel;
+	private final AtomicInteger refs = new AtomicInteger();
+	volatile boolean obsolete;
+
+	private SSTable(long id, Path path, String[] blockKeys, long[] blockOffsets, String largest, int entries,
+			int tombstones, BloomFilter filter, BlockCache cache, StoreMetrics metrics) throws IOException {
+		this.id = id;
+		this.path = path;
+		this.filter = filter;
+		this.cache = cache;
+		this.metrics = metrics;
+		this.blockKeys = blockKeys;
+		this.blockOffsets = blockOffsets;
+		this.smallest = blockKeys[0];
+		this.largest = largest;
+		this.size = blockOffsets[blockOffsets.length - 1];
+		this.entries = entries;
+		this.tombstones = tombstones;
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+	}
+
+	/** Estimated heap held by the block index of this table, its filter aside */
+	long indexBytes() {
+		long bytes = Footprint.object(10, 25) + Footprint.array(blockKeys.length, Footprint.REFERENCE)
+				+ Footprint.array(blockOffsets.length, 8) + Footprint.string(largest);
+		for (String k : blockKeys)
+			bytes += Footprint.string(k);
+		return bytes;
+	}
+
+	/** Estimated heap held by the Bloom filter of this table */
+	long filterBytes() {
+		return filter == null ? 0 : filter.retainedBytes();
+	}
+
+	static String fileName(long id) {
+		return String.format("%06d.sst", id);
+	}
+
+	static Path filterPath(Path path, long id) {
+		return path.resolveSibling(String.format("%06d.bf", id));
+	}
+
+	static Path hintPath(Path path, long id) {
+		return path.resolveSibling(String.format("%06d.hint", id));
+	}
+
+	/**
+	 * Opens an existing table from its hint and filter files. If either is
+	 * missing or damaged the block index and filter are rebuilt from the data
+	 * and saved again.
+	 */
+	static SSTable open(long id, Path path, StoreOptions options, BlockCache cache, StoreMetrics metrics)
+			throws IOException {
+		Path fp = filterPath(path, id);
+		BloomFilter filter = null;
+		if (options.bloomBitsPerKey > 0 && Files.exists(fp)) {
+			try {
+				filter = BloomFilter.readFrom(fp);
+			} catch (IOException e) {
+				// torn or damaged; rebuilt below
+			}
+		}
+		if (filter != null || options.bloomBitsPerKey <= 0) {
+			SSTable t = fromHint(id, path, filter, cache, metrics);
+			if (t != null)
+				return t;
+		}
+		Builder index = new Builder(id, path, options, cache, metrics, false, filter);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+			while (true) {
+				String key;
+				String value;
+				try {
+					key = CharCodec.read(in);
+					value = CharCodec.read(in);
+				} catch (EOFException e) {
+					break;
+				}
+				index.addRecord(key, CharCodec.encodedLength(key) + CharCodec.encodedLength(value),
+						value.equals(LSMTree.TOMBSTONE));
+			}
+		}
+		return index.finish();
+	}
+
+	private static SSTable fromHint(long id, Path path, BloomFilter filter, BlockCache cache,
+			StoreMetrics metrics) throws IOException {
+		Path hp = hintPath(path, id);
+		if (!Files.exists(hp))
+			return null;
+		// small enough to check whole before trusting any of it
+		byte[] hint = Files.readAllBytes(hp);
+		if (hint.length < 4)
+			return null;
+		CRC32 crc = new CRC32();
+		crc.update(hint, 0, hint.length - 4);
+		if ((int) crc.getValue() != ByteBuffer.wrap(hint, hint.length - 4, 4).getInt())
+			return null;
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(hint, 0, hint.length - 4))) {
+			if (in.readInt() != HINT_MAGIC || in.readLong() != id)
+				return null;
+			int blocks = in.readInt();
+			if (blocks <= 0 || blocks > hint.length)
+				return null;
+			String largest = CharCodec.read(in);
+			String[] keys = new String[blocks];
+			long[] offsets = new long[blocks + 1];
+			for (int i = 0; i < blocks; i++) {
+				keys[i] = CharCodec.read(in);
+				offsets[i] = in.readLong();
+				offsets[i + 1] = offsets[i] + in.readInt();
+			}
+			int entries = in.readInt();
+			int tombstones = in.readInt();
+			if (in.available() != 0 || offsets[blocks] != Files.size(path))
+				return null;
+			return new SSTable(id, path, keys, offsets, largest, entries, tombstones, filter, cache, metrics);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/** Saves the block index as the hint file and forces it to disk */
+	private void writeHint() throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(hintPath(path, id).toFile())) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(HINT_MAGIC);
+			out.writeLong(id);
+			out.writeInt(blockKeys.length);
+			CharCodec.write(out, largest);
+			for (int i = 0; i < blockKeys.length; i++) {
+				CharCodec.write(out, blockKeys[i]);
+				out.writeLong(blockOffsets[i]);
+				out.writeInt((int) (blockOffsets[i + 1] - blockOffsets[i]));
+			}
+			out.writeInt(entries);
+			out.writeInt(tombstones);
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			fos.getChannel().force(true);
+		}
+	}
+
+	boolean mayContain(String key) {
+		return key.compareTo(smallest) >= 0 && key.compareTo(largest) <= 0;
+	}
+
+	boolean overlaps(String from, String to) {
+		return largest.compareTo(from) >= 0 && smallest.compareTo(to) <= 0;
+	}
+
+	/** Returns the value stored under key, or null */
+	String get(String key) throws IOException {
+		if (!mayContain(key) || (filter != null && !filter.mightContain(key)))
+			return null;
+		int block = findBlock(key);
+		ByteBuffer buf = readBlock(block, true);
+		while (buf.hasRemaining()) {
+			int cmp = CharCodec.compare(buf, key);
+			if (cmp == 0)
+				return CharCodec.decode(buf);
+			if (cmp > 0)
+				return null;
+			CharCodec.skip(buf);
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up keys[from, to), which must be sorted and distinct, filling in
+	 * out for every key found that has no value there yet. Keys falling into
+	 * the same block share a single read of it.
+	 */
+	void getMany(String[] keys, int from, int to, String[] out) throws IOException {
+		int i = from;
+		while (i < to) {
+			String key = keys[i];
+			if (out[i] != null || !mayContain(key) || (filter != null && !filter.mightContain(key))) {
+				i++;
+				continue;
+			}
+			int block = findBlock(key);
+			String next = block + 1 < blockKeys.length ? blockKeys[block + 1] : null;
+			ByteBuffer buf = readBlock(block, true);
+			// keys are sorted, so each search resumes where the previous stopped
+			for (; i < to && (next == null || keys[i].compareTo(next) < 0); i++) {
+				if (out[i] != null)
+					continue;
+				while (buf.hasRemaining()) {
+					int record = buf.position();
+					int cmp = CharCodec.compare(buf, keys[i]);
+					if (cmp == 0) {
+						out[i] = CharCodec.decode(buf);
+						break;
+					}
+					if (cmp > 0) {
+						buf.position(record);
+						break;
+					}
+					CharCodec.skip(buf);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Iterates the records with keys at or after from, in key order. Blocks
+	 * read by the iterator are only cached if fillCache is set, so that
+	 * compactions do not wipe out the cache.
+	 */
+	Iterator<Map.Entry<String, String>> iterator(String from, boolean fillCache) {
+		return new TableIterator(from == null ? 0 : Math.max(0, findBlock(from)), from, fillCache);
+	}
+
+	/** Index of the last block whose first key is at or before key */
+	private int findBlock(String key) {
+		int i = Arrays.binarySearch(blockKeys, key);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	private ByteBuffer readBlock(int block, boolean fillCache) throws IOException {
+		long start = blockOffsets[block];
+		int length = (int) (blockOffsets[block + 1] - start);
+		BlockCache.Key key = BlockCache.key(id, block);
+		if (cache != null) {
+			byte[] cached = cache.get(key, length);
+			if (cached != null) {
+				metrics.blockCacheHits.increment();
+				return ByteBuffer.wrap(cached);
+			}
+			metrics.blockCacheMisses.increment();
+		}
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, start + buf.position()) < 0)
+				throw new EOFException(path.toString());
+		}
+		buf.flip();
+		metrics.bytesRead.add(length);
+		if (cache != null && fillCache)
+			cache.put(key, buf.array(), length);
+		return buf;
+	}
+
+	/**
+	 * Encodes one record into scratch, growing it if needed, and returns the
+	 * buffer flipped for reading. Shared with the {@link WriteAheadLog}.
+	 */
+	static ByteBuffer encode(ByteBuffer scratch, String key, String value) {
+		int max = CharCodec.maxEncodedLength(key.length()) + CharCodec.maxEncodedLength(value.length());
+		if (scratch == null || scratch.capacity() < max)
+			scratch = ByteBuffer.allocate(Math.max(max, 1024));
+		scratch.clear();
+		CharCodec.encode(scratch, key);
+		CharCodec.encode(scratch, value);
+		scratch.flip();
+		return scratch;
+	}
+
+	void retain() {
+		refs.incrementAndGet();
+	}
+
+	void release() {
+		if (refs.decrementAndGet() == 0) {
+			try {
+				channel.close();
+				if (obsolete) {
+					Files.deleteIfExists(path);
+					Files.deleteIfExists(filterPath(path, id));
+					Files.deleteIfExists(hintPath(path, id));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SSTable [id=" + id + ", size=" + size + ", entries=" + entries + ", tombstones=" + tombstones
+				+ ", smallest=" + smallest + ", largest=" + largest + "]";
+	}
+
+	private final class TableIterator implements Iterator<Map.Entry<String, String>> {
+		private int block;
+		private ByteBuffer buf;
+		private final boolean fillCache;
+		private Map.Entry<String, String> next;
+
+		TableIterator(int block, String from, boolean fillCache) {
+			this.block = block;
+			this.fillCache = fillCache;
+			advance();
+			while (from != null && next != null && next.getKey().compareTo(from) < 0)
+				advance();
+		}
+
+		private void advance() {
+			try {
+				while (buf == null || !buf.hasRemaining()) {
+					if (block >= blockKeys.length) {
+						next = null;
+						return;
+					}
+					buf = readBlock(block++, fillCache);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			String key = CharCodec.decode(buf);
+			next = new AbstractMap.SimpleImmutableEntry<String, String>(key, CharCodec.decode(buf));
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			Map.Entry<String, String> e = next;
+			advance();
+			return e;
+		}
+	}
+
+	/**
+	 * Writes a new table from records supplied in strictly increasing key
+	 * order. Also used by {@link SSTable#open} to rebuild the block index of an
+	 * existing file, in which case nothing is written.
+	 */
+	static final class Builder {
+		final long id;
+		final Path path;
+		private final int blockBytes;
+		private final int bitsPerKey;
+		private final BlockCache cache;
+		private final StoreMetrics metrics;
+		private BloomFilter filter;
+		private long[] hashes;
+		private int count;
+		private int entries;
+		private int tombstones;
+		private final FileOutputStream fos;
+		private final BufferedOutputStream out;
+		private ByteBuffer scratch;
+		private final List<String> blockKeys = new ArrayList<String>();
+		private final List<Long> blockOffsets = new ArrayList<Long>();
+		private long offset;
+		private long blockStart;
+		private String last;
+
+		Builder(long id, Path path, StoreOptions options, BlockCache cache, StoreMetrics metrics) throws IOException {
+			this(id, path, options, cache, metrics, true, null);
+		}
+
+		private Builder(long id, Path path, StoreOptions options, BlockCache cache, StoreMetrics metrics,
+				boolean write, BloomFilter filter) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.cache = cache;
+			this.metrics = metrics;
+			this.blockBytes = options.blockBytes;
+			this.bitsPerKey = options.bloomBitsPerKey;
+			this.filter = filter;
+			if (bitsPerKey > 0 && filter == null)
+				hashes = new long[1024];
+			this.fos = write ? new FileOutputStream(path.toFile()) : null;
+			this.out = write ? new BufferedOutputStream(fos, 64 * 1024) : null;
+		}
+
+		void add(String key, String value) throws IOException {
+			scratch = encode(scratch, key, value);
+			out.write(scratch.array(), 0, scratch.limit());
+			addRecord(key, scratch.limit(), value.equals(LSMTree.TOMBSTONE));
+		}
+
+		private void addRecord(String key, int recordBytes, boolean tombstone) {
+			entries++;
+			if (tombstone)
+				tombstones++;
+			if (offset == blockStart) {
+				blockKeys.add(key);
+				blockOffsets.add(offset);
+			}
+			offset += recordBytes;
+			if (offset - blockStart >= blockBytes)
+				blockStart = offset;
+			last = key;
+			if (hashes != null) {
+				if (count == hashes.length)
+					hashes = Arrays.copyOf(hashes, count * 2);
+				hashes[count++] = BloomFilter.hash(key);
+			}
+		}
+
+		boolean isEmpty() {
+			return last == null;
+		}
+
+		long size() {
+			return offset;
+		}
+
+		SSTable finish() throws IOException {
+			if (out != null) {
+				out.flush();
+				StoreEvents.Fsync event = new StoreEvents.Fsync();
+				event.begin();
+				long start = System.nanoTime();
+				fos.getChannel().force(true);
+				metrics.fsyncs.recordSince(start);
+				event.finish(path, offset);
+				out.close();
+				metrics.bytesWritten.add(offset);
+			}
+			if (last == null)
+				throw new IOException("Empty table " + path);
+			long[] offsets = new long[blockOffsets.size() + 1];
+			for (int i = 0; i < blockOffsets.size(); i++)
+				offsets[i] = blockOffsets.get(i);
+			offsets[offsets.length - 1] = offset;
+			if (hashes != null) {
+				filter = BloomFilter.build(hashes, count, bitsPerKey);
+				filter.writeTo(filterPath(path, id));
+			}
+			SSTable t = new SSTable(id, path, blockKeys.toArray(new String[0]), offsets, last, entries, tombstones,
+					filter, cache, metrics);
+			t.writeHint();
+			return t;
+		}
+
+		void abandon() {
+			try {
+				if (out != null)
+					out.close();
+				Files.deleteIfExists(path);
+				Files.deleteIfExists(filterPath(path, id));
+				Files.deleteIfExists(hintPath(path, id));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Store that partitions keys by hash over several independent
+ * {@link SimpleKV} engines, each in its own subdirectory with its own log,
+ * caches and compaction threads, so that writes to different shards proceed
+ * in parallel and a compaction in one shard never stalls the others.
+ * 
+ * Every shard has a single writer thread; writes are handed to it and the
+ * caller waits for them, which keeps the writes of a shard in order while
+ * writes to different shards run concurrently. Reads run on the caller's
+ * thread.
+ * 
+ * Writes are queued under a common lock, so the queues of all shards agree
+ * on the order of any two writes. A snapshot is queued the same way and
+ * therefore captures every shard at the same point.
+ */
+public class ShardedKV implements KeyValue {
+
+	private static final String SHARDS_FILE = "SHARDS";
+
+	private final StoreOptions options;
+	private Path dir;
+	/** Whether dir is a scratch directory, deleted on close */
+	private boolean temporary;
+	private SimpleKV[] shards;
+	private ExecutorService[] writers;
+	/** Held while queueing, so that every shard sees the same order */
+	private final Object queueLock = new Object();
+
+	public ShardedKV() {
+		this(new StoreOptions());
+	}
+
+	public ShardedKV(StoreOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Opens the sharded store in the directory at path, creating it with
+	 * {@link StoreOptions#shards} shards if it does not exist yet. The
+	 * per-store cache and memtable budgets are divided between the shards. An
+	 * empty path yields a fresh store in a scratch directory.
+	 */
+	@Override
+	public ShardedKV initAndMakeStore(String path) {
+		try {
+			boolean temporary = path == null || path.isEmpty();
+			Path dir = temporary ? Files.createTempDirectory("rkv") : Paths.get(path);
+			Files.createDirectories(dir);
+			Path countFile = dir.resolve(SHARDS_FILE);
+			int n;
+			if (Files.exists(countFile)) {
+				n = Integer.parseInt(new String(Files.readAllBytes(countFile), StandardCharsets.US_ASCII).trim());
+			} else {
+				n = Math.max(1, options.shards);
+				Files.write(countFile, Integer.toString(n).getBytes(StandardCharsets.US_ASCII));
+			}
+
+			StoreOptions shardOptions = options.copy();
+			shardOptions.cacheEntries = Math.max(1, options.cacheEntries / n);
+			shardOptions.blockCacheBytes = options.blockCacheBytes / n;
+			shardOptions.memtableBytes = Math.max(64 << 10, options.memtableBytes / n);
+
+			ShardedKV kv = new ShardedKV(options);
+			kv.dir = dir;
+			kv.temporary = temporary;
+			kv.shards = new SimpleKV[n];
+			kv.writers = new ExecutorService[n];
+			for (int i = 0; i < n; i++) {
+				String name = String.format("shard-%02d", i);
+				kv.shards[i] = new SimpleKV().initAndMakeStore(dir.resolve(name).toString(), shardOptions);
+				kv.writers[i] = Executors.newSingleThreadExecutor(r -> {
+					Thread t = new Thread(r, "rkv-" + name + "-writer");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			return kv;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Shard owning key; stable across restarts */
+	int shardOf(char[] key) {
+		int h = Arrays.hashCode(key);
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		h ^= h >>> 16;
+		return Math.floorMod(h, shards.length);
+	}
+
+	private CompletableFuture<Void> submit(int shard, Runnable task) {
+		return CompletableFuture.runAsync(task, writers[shard]);
+	}
+
+	private static void await(CompletableFuture<?> f) {
+		try {
+			f.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	@Override
+	public void write(char[] key, char[] value) {
+		int s = shardOf(key);
+		CompletableFuture<Void> f;
+		synchronized (queueLock) {
+			f = submit(s, () -> shards[s].write(key, value));
+		}
+		await(f);
+	}
+
+	@Override
+	public void delete(char[] key) {
+		int s = shardOf(key);
+		CompletableFuture<Void> f;
+		synchronized (queueLock) {
+			f = submit(s, () -> shards[s].delete(key));
+		}
+		await(f);
+	}
+
+	/** Deletes the range on every shard in parallel */
+	@Override
+	public void deleteRange(char[] startKey, char[] endKey) {
+		List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+		synchronized (queueLock) {
+			for (int s = 0; s < shards.length; s++) {
+				SimpleKV shard = shards[s];
+				pending.add(submit(s, () -> shard.deleteRange(startKey, endKey)));
+			}
+		}
+		await(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])));
+	}
+
+	@Override
+	public char[] read(char[] key) {
+		return shards[shardOf(key)].read(key);
+	}
+
+	@Override
+	public int readInto(char[] key, CharBuffer dst) {
+		return shards[shardOf(key)].readInto(key, dst);
+	}
+
+	@Override
+	public int readInto(char[] key, ByteBuffer dst) {
+		return shards[shardOf(key)].readInto(key, dst);
+	}
+
+	@Override
+	public Reader openValueReader(char[] key) {
+		return shards[shardOf(key)].openValueReader(key);
+	}
+
+	/**
+	 * Streams the value on the caller's thread; the write that replaces the
+	 * old value on close is queued like any other.
+	 */
+	@Override
+	public Writer openValueWriter(char[] key) {
+		int s = shardOf(key);
+		return shards[s].openValueWriter(key, write -> {
+			CompletableFuture<Void> f;
+			synchronized (queueLock) {
+				f = submit(s, write);
+			}
+			await(f);
+		});
+	}
+
+	@Override
+	public char[][] readMany(char[][] keys) {
+		List<List<Integer>> groups = group(keys.length, i -> keys[i]);
+		char[][] values = new char[keys.length][];
+		for (int s = 0; s < shards.length; s++) {
+			List<Integer> idx = groups.get(s);
+			if (idx.isEmpty())
+				continue;
+			char[][] sub = new char[idx.size()][];
+			for (int j = 0; j < sub.length; j++)
+				sub[j] = keys[idx.get(j)];
+			char[][] found = shards[s].readMany(sub);
+			for (int j = 0; j < found.length; j++)
+				values[idx.get(j)] = found[j];
+		}
+		return values;
+	}
+
+	/** Splits the batch by shard and applies the parts in parallel */
+	@Override
+	public void writeMany(KVPair[] pairs) {
+		List<List<Integer>> groups = group(pairs.length, i -> pairs[i].element1);
+		List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+		synchronized (queueLock) {
+			for (int s = 0; s < shards.length; s++) {
+				List<Integer> idx = groups.get(s);
+				if (idx.isEmpty())
+					continue;
+				KVPair[] sub = new KVPair[idx.size()];
+				for (int j = 0; j < sub.length; j++)
+					sub[j] = pairs[idx.get(j)];
+				int shard = s;
+				pending.add(submit(s, () -> shards[shard].writeMany(sub)));
+			}
+		}
+		await(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])));
+	}
+
+	private List<List<Integer>> group(int n, java.util.function.IntFunction<char[]> key) {
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		for (int s = 0; s < shards.length; s++)
+			groups.add(new ArrayList<Integer>());
+		for (int i = 0; i < n; i++)
+			groups.get(shardOf(key.apply(i))).add(i);
+		return groups;
+	}
+
+	@Override
+	public Iterator<KVPair> readRange(char[] startKey, char[] endKey) {
+		List<Iterator<KVPair>> parts = new ArrayList<Iterator<KVPair>>();
+		for (SimpleKV shard : shards)
+			parts.add(shard.readRange(startKey, endKey));
+		return merge(parts);
+	}
+
+	@Override
+	public Iterator<KVPair> readPrefix(char[] prefix) {
+		List<Iterator<KVPair>> parts = new ArrayList<Iterator<KVPair>>();
+		for (SimpleKV shard : shards)
+			parts.add(shard.readPrefix(prefix));
+		return merge(parts);
+	}
+
+	/**
+	 * Snapshots every shard from its writer thread, between the writes queued
+	 * before the call and those queued after it, so a {@link #writeMany} is
+	 * visible either on all its shards or on none.
+	 */
+	@Override
+	public Snapshot snapshot() {
+		final Snapshot[] parts = new Snapshot[shards.length];
+		List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+		synchronized (queueLock) {
+			for (int s = 0; s < shards.length; s++) {
+				int shard = s;
+				pending.add(submit(s, () -> parts[shard] = shards[shard].snapshot()));
+			}
+		}
+		try {
+			await(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])));
+		} catch (RuntimeException e) {
+			for (Snapshot p : parts) {
+				if (p != null)
+					p.close();
+			}
+			throw e;
+		}
+		return new Snapshot() {
+			@Override
+			public char[] read(char[] key) {
+				return parts[shardOf(key)].read(key);
+			}
+
+			@Override
+			public Iterator<KVPair> readRange(char[] startKey, char[] endKey) {
+				List<Iterator<KVPair>> its = new ArrayList<Iterator<KVPair>>();
+				for (Snapshot p : parts)
+					its.add(p.readRange(startKey, endKey));
+				return merge(its);
+			}
+
+			@Override
+			public Iterator<KVPair> readPrefix(char[] prefix) {
+				List<Iterator<KVPair>> its = new ArrayList<Iterator<KVPair>>();
+				for (Snapshot p : parts)
+					its.add(p.readPrefix(prefix));
+				return merge(its);
+			}
+
+			@Override
+			public void close() {
+				for (Snapshot p : parts)
+					p.close();
+			}
+		};
+	}
+
+	/** Interleaves the sorted, disjoint streams of the shards in key order */
+	private static Iterator<KVPair> merge(List<Iterator<KVPair>> parts) {
+		final PriorityQueue<Object[]> heap = new PriorityQueue<Object[]>(
+				(a, b) -> Arrays.compare(((KVPair) a[0]).element1, ((KVPair) b[0]).element1));
+		for (Iterator<KVPair> it : parts) {
+			if (it.hasNext())
+				heap.add(new Object[] { it.next(), it });
+		}
+		return new Iterator<KVPair>() {
+			@Override
+			public boolean hasNext() {
+				return !heap.isEmpty();
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public KVPair next() {
+				Object[] head = heap.poll();
+				if (head == null)
+					throw new NoSuchElementException();
+				Iterator<KVPair> it = (Iterator<KVPair>) head[1];
+				KVPair p = (KVPair) head[0];
+				if (it.hasNext())
+					heap.add(new Object[] { it.next(), it });
+				return p;
+			}
+		};
+	}
+
+	@Override
+	public void beginTx() {
+		// do nothing
+	}
+
+	/** Makes every write so far durable on all shards, in parallel */
+	@Override
+	public void commit() {
+		List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+		for (int s = 0; s < shards.length; s++) {
+			SimpleKV shard = shards[s];
+			pending.add(submit(s, shard::commit));
+		}
+		await(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])));
+	}
+
+	/** {@link SimpleKV#memoryUsage()} summed over the shards */
+	public Map<String, Long> memoryUsage() {
+		Map<String, Long> usage = new LinkedHashMap<String, Long>();
+		for (SimpleKV shard : shards) {
+			for (Map.Entry<String, Long> e : shard.memoryUsage().entrySet())
+				usage.merge(e.getKey(), e.getValue(), Long::sum);
+		}
+		return usage;
+	}
+
+	/** Waits for pending writes and closes every shard */
+	public void close() {
+		for (ExecutorService w : writers)
+			w.shutdown();
+		for (ExecutorService w : writers) {
+			try {
+				w.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (SimpleKV shard : shards)
+			shard.close();
+		if (temporary) {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
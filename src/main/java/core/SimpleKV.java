@@ -1,69 +1,990 @@
 package core;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.file.*;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-import rkv.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class SimpleKV implements KeyValue {
 
+	/** Saved keys looked up together while warming the cache */
+	private static final int WARMUP_BATCH = 256;
+
+	/** Keys deleted under one acquisition of the engine's write lock by deleteRange */
+	private static final int DELETE_BATCH = 1024;
+
+	private static final ThreadLocal<KeyProbe> PROBE = ThreadLocal.withInitial(KeyProbe::new);
+
 	private MRUMap<String, String> map;
-	private final String storeName = "rkv.dat";
-	private boolean hasChanged = false;
-	private ExecutorService executor;
-	private ObjectOutputStream oos;
+	private volatile StorageEngine engine;
+	private Path dir;
+	private StoreOptions options;
+	/** Whether dir is a scratch directory to be removed on close */
+	private boolean temporary;
+	private volatile ExecutorService executor;
+	private final StoreMetrics metrics = new StoreMetrics();
+	/** Name the metrics are registered under, or null */
+	private ObjectName mbean;
+	/** Saves the cache order periodically; null for scratch stores */
+	private ScheduledExecutorService saver;
+	/**
+	 * Write stamps of 64 stripes of keys, bumped under the map's lock by every
+	 * write. A value read from the engine is cached only if the stamp of its
+	 * key's stripe did not move during the read, since a write in between may
+	 * have left the key uncached, evicted or rejected by admission, and the
+	 * read would cache the value it replaced.
+	 */
+	private final int[] writeStamps = new int[64];
+	/** Completes once the cache warmer is done; complete from the start without one */
+	private volatile CompletableFuture<Void> warmup = CompletableFuture.completedFuture(null);
+	private volatile boolean closing;
+	/** Reads in flight, shared by callers asking for the same key */
+	private final ConcurrentHashMap<String, CompletableFuture<String>> pendingReads = new ConcurrentHashMap<String, CompletableFuture<String>>();
+	/** Last write in flight per key, which later writes and reads queue behind */
+	private final ConcurrentHashMap<String, CompletableFuture<Void>> pendingWrites = new ConcurrentHashMap<String, CompletableFuture<Void>>();
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Creates an empty store. Its scratch directory is only created on first
+	 * use, and is removed again by {@link #close()}.
+	 */
 	public SimpleKV() {
-		map = new MRUMap<String, String>(2048);
+		this(null, new StoreOptions(), true);
+	}
+
+	private SimpleKV(Path dir, StoreOptions options, boolean temporary) {
+		this.dir = dir;
+		this.options = options;
+		this.temporary = temporary;
+		this.map = new MRUMap<String, String>(options.cacheEntries, options.cacheAdmission);
+	}
+
+	private StorageEngine engine() throws IOException {
+		StorageEngine e = engine;
+		if (e == null) {
+			synchronized (this) {
+				e = engine;
+				if (e == null) {
+					if (dir == null)
+						dir = Files.createTempDirectory("rkv");
+					e = StorageEngine.open(dir, options, metrics);
+					// an engine with a cache of its own replaces the object cache
+					if (e.cachesData())
+						map = new MRUMap<String, String>(1);
+					engine = e;
+				}
+			}
+		}
+		return e;
+	}
+
+	private ExecutorService executor() {
+		ExecutorService e = executor;
+		if (e == null) {
+			synchronized (this) {
+				e = executor;
+				if (e == null)
+					executor = e = newIoExecutor(options.ioThreads);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Virtual threads where the runtime has them, so that every pending I/O
+	 * can have its own thread; otherwise a fixed pool of daemon threads.
+	 */
+	private static ExecutorService newIoExecutor(int threads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "rkv-io");
+				t.setDaemon(true);
+				return t;
+			});
+		}
 	}
 
 	@Override
 	public SimpleKV initAndMakeStore(String path) {
-		return new SimpleKV();
+		return initAndMakeStore(path, new StoreOptions());
+	}
+
+	/**
+	 * Opens the store kept in the directory at path, creating it if needed. An
+	 * empty path yields a fresh store in a scratch directory.
+	 */
+	public SimpleKV initAndMakeStore(String path, StoreOptions options) {
+		SimpleKV kv;
+		if (path == null || path.isEmpty())
+			kv = new SimpleKV(null, options, true);
+		else
+			kv = new SimpleKV(Paths.get(path), options, false);
+		try {
+			kv.engine();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (options.jmx)
+			kv.registerMBean();
+		if (!kv.temporary && options.cacheSaveMillis > 0)
+			kv.startCacheWarmer();
+		return kv;
+	}
+
+	/**
+	 * Loads the keys cached by the previous run back into the cache in the
+	 * background, least recently used first, and saves the cache order every
+	 * {@link StoreOptions#cacheSaveMillis} from now on.
+	 */
+	private void startCacheWarmer() {
+		final List<String> keys;
+		try {
+			keys = CacheOrder.load(dir);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (!keys.isEmpty()) {
+			final int parallelism = Math.max(1, options.warmupParallelism);
+			final Semaphore permits = new Semaphore(parallelism);
+			final int first = Math.max(0, keys.size() - options.cacheEntries);
+			final CompletableFuture<Void> done = new CompletableFuture<Void>();
+			warmup = done;
+			executor().execute(() -> {
+				try {
+					for (int i = first; i < keys.size() && !closing; i += WARMUP_BATCH) {
+						final List<String> batch = keys.subList(i, Math.min(keys.size(), i + WARMUP_BATCH));
+						permits.acquireUninterruptibly();
+						try {
+							executor().execute(() -> {
+								try {
+									warm(batch);
+								} finally {
+									permits.release();
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							permits.release();
+							return; // closed meanwhile
+						}
+					}
+					// every batch has returned its permit once all of them are free
+					permits.acquireUninterruptibly(parallelism);
+				} finally {
+					done.complete(null);
+				}
+			});
+		}
+		saver = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "rkv-cache-saver");
+			t.setDaemon(true);
+			return t;
+		});
+		saver.scheduleWithFixedDelay(this::saveCacheOrder, options.cacheSaveMillis, options.cacheSaveMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Completes once the keys cached by the previous run have been loaded back
+	 * into the cache, or the store began closing first. Complete at once if
+	 * there was nothing to load or the cache order is not saved.
+	 */
+	public CompletableFuture<Void> warmup() {
+		return warmup.copy();
+	}
+
+	/** Reads one batch of saved keys in key order and caches what is found */
+	private void warm(List<String> batch) {
+		if (closing)
+			return;
+		String[] sorted = batch.toArray(new String[0]);
+		Arrays.sort(sorted);
+		String[] found = new String[sorted.length];
+		int[] stamps = new int[sorted.length];
+		synchronized (map) {
+			for (int j = 0; j < sorted.length; j++)
+				stamps[j] = writeStamps[stripe(sorted[j])];
+		}
+		try {
+			engine().getMany(sorted, found);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		synchronized (map) {
+			// keep the saved recency order; values written since stay
+			for (String k : batch) {
+				int j = Arrays.binarySearch(sorted, k);
+				if (found[j] != null)
+					cacheRead(k, found[j], stamps[j]);
+			}
+		}
+	}
+
+	private void saveCacheOrder() {
+		List<String> keys;
+		synchronized (map) {
+			keys = new ArrayList<String>(map.keySet());
+		}
+		try {
+			CacheOrder.save(dir, keys);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The log of this store's committed writes that followers tail, or null
+	 * unless {@link StoreOptions#replicationLogBytes} is set.
+	 */
+	public ReplicationLog replicationLog() {
+		try {
+			return engine().replicationLog();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Live counters and latency histograms of this store */
+	public StoreMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Estimated heap bytes held by each in-memory structure of the store, by
+	 * name: "cache" for the object cache, and those the engine reports (see
+	 * {@link StorageEngine#memoryUsage}). The structures are walked, so this
+	 * costs time in proportion to their size and is meant for monitoring and
+	 * tests rather than every request.
+	 */
+	public Map<String, Long> memoryUsage() {
+		Map<String, Long> usage = new LinkedHashMap<String, Long>();
+		synchronized (map) {
+			usage.put("cache", map.retainedBytes());
+		}
+		try {
+			engine().memoryUsage(usage);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return usage;
 	}
 
+	private void registerMBean() {
+		try {
+			ObjectName name = new ObjectName("rarmanKV:type=Store,path=" + ObjectName.quote(dir.toAbsolutePath().toString()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			mbean = name;
+		} catch (JMException e) {
+			// another open store already owns the name; metrics stay reachable through metrics()
+		}
+	}
+
+	/**
+	 * Caches a value just written, and detaches the {@link #readAsync} lookup
+	 * of the key in flight, if any: it may return the old value, so reads
+	 * issued from now on must not join it. Must hold the map's lock.
+	 */
+	private void cacheWritten(String skey, String stored) {
+		writeStamps[stripe(skey)]++;
+		cache(skey, stored, false);
+		pendingReads.remove(skey);
+	}
+
+	private static int stripe(String skey) {
+		return skey.hashCode() & 63;
+	}
+
+	/**
+	 * Caches a value read from the engine unless a write to its stripe came
+	 * after stamp, taken before the read; must hold the map's lock.
+	 */
+	private void cacheRead(String skey, String stored, int stamp) {
+		if (writeStamps[stripe(skey)] == stamp)
+			cache(skey, stored, true);
+	}
+
+	/** Caches a value read or written; must hold the map's lock */
+	private void cache(String skey, String svalue, boolean onlyIfAbsent) {
+		map.removedValue = null;
+		if (onlyIfAbsent)
+			map.putIfAbsent(skey, svalue);
+		else
+			map.put(skey, svalue);
+		if (map.removedValue != null)
+			metrics.cacheEvictions.increment();
+		else if (map.rejected)
+			metrics.cacheRejections.increment();
+	}
+
+	/**
+	 * Writes key. Throws UncheckedIOException if the engine cannot take the
+	 * write, such as after a background flush or compaction has failed.
+	 */
 	@Override
 	public void write(char[] key, char[] value) {
-		try{
-			String skey = new String(key);
-			BufferedWriter bw = Files.newBufferedWriter(new File(new String(key)).toPath());
-			bw.write(value);
-			map.put(skey, new String(value));
+		writeChars(new String(key), value);
+	}
+
+	private void writeChars(String skey, char[] value) {
+		try {
+			writeStored(skey, toStored(value));
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
 		}
-		catch(Exception ex)
-		{
-			ex.printStackTrace();
+	}
+
+	/** Logs and caches the stored form of a value */
+	private void writeStored(String skey, String stored) throws IOException {
+		StoreEvents.Write event = new StoreEvents.Write();
+		event.begin();
+		long start = System.nanoTime();
+		engine().put(skey, stored);
+		synchronized (map) {
+			cacheWritten(skey, stored);
+		}
+		metrics.writes.recordSince(start);
+		event.finish(skey, stored);
+	}
+
+	/**
+	 * Deletes key. The cache keeps the tombstone, so that a read racing with
+	 * the delete cannot cache the old value again and later reads of the key
+	 * are answered without touching the engine.
+	 */
+	@Override
+	public void delete(char[] key) {
+		String skey = new String(key);
+		try {
+			engine().delete(skey);
+			synchronized (map) {
+				cacheWritten(skey, StorageEngine.TOMBSTONE);
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Deletes the keys the range holds now, a batch at a time, without
+	 * filling the block cache with the blocks scanned to find them.
+	 */
+	@Override
+	public void deleteRange(char[] startKey, char[] endKey) {
+		try {
+			Iterator<Map.Entry<String, String>> it = engine().iterator(new String(startKey),
+					endKey == null ? null : new String(endKey), false);
+			List<String> batch = new ArrayList<String>(DELETE_BATCH);
+			while (it.hasNext()) {
+				batch.add(it.next().getKey());
+				if (batch.size() == DELETE_BATCH || !it.hasNext()) {
+					String[] keys = batch.toArray(new String[0]);
+					engine().deleteMany(keys);
+					synchronized (map) {
+						for (String k : keys)
+							cacheWritten(k, StorageEngine.TOMBSTONE);
+					}
+					batch.clear();
+				}
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * The form of value kept in the engine and the cache: the value itself, or a
+	 * reference to a new blob holding it once it reaches
+	 * {@link StoreOptions#largeValueChars}, if the engine keeps blobs.
+	 */
+	private String toStored(char[] value) throws IOException {
+		BlobFile.Out out;
+		if (value.length < options.largeValueChars || (out = engine().newBlob()) == null)
+			return BlobFile.escape(new String(value));
+		try {
+			out.write(value);
+			out.close();
+		} catch (IOException e) {
+			out.abandon();
+			throw e;
+		}
+		return BlobFile.ref(out.id, out.length());
+	}
+
+	/**
+	 * The value a stored form stands for, read from its blob if it is a
+	 * reference. A blob collected after the key was overwritten is not an
+	 * error: the newer value is read instead.
+	 */
+	private String resolve(String skey, String stored) {
+		while (stored != null && BlobFile.isRef(stored)) {
+			try {
+				return new String(BlobFile.readAll(engine().blobPath(BlobFile.id(stored)), BlobFile.length(stored), metrics));
+			} catch (NoSuchFileException e) {
+				try {
+					stored = reread(skey, stored);
+				} catch (NoSuchFileException gone) {
+					gone.printStackTrace();
+					return null;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		return stored == null ? null : BlobFile.unescape(stored);
+	}
+
+	/** Reads key again after its blob turned out to be gone */
+	private String reread(String skey, String stale) throws NoSuchFileException {
+		synchronized (map) {
+			map.remove(skey, stale);
 		}
+		String stored = readString(skey);
+		if (stale.equals(stored))
+			throw new NoSuchFileException(BlobFile.fileName(BlobFile.id(stale)));
+		return stored;
 	}
 
 	@Override
 	public char[] read(char[] key) {
 		String skey = new String(key);
-		if(map.containsKey(skey))
+		String stored = readString(skey);
+		// a blob is read straight into the returned array
+		while (stored != null && BlobFile.isRef(stored)) {
+			try {
+				return BlobFile.readAll(engine().blobPath(BlobFile.id(stored)), BlobFile.length(stored), metrics);
+			} catch (NoSuchFileException e) {
+				try {
+					stored = reread(skey, stored);
+				} catch (NoSuchFileException gone) {
+					gone.printStackTrace();
+					return null;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		return stored == null ? null : BlobFile.unescape(stored).toCharArray();
+	}
+
+	/**
+	 * Opens the value of key for streaming through a fixed-size buffer, or
+	 * returns null if the key is missing. Values stored as blobs are never
+	 * loaded whole.
+	 */
+	@Override
+	public Reader openValueReader(char[] key) {
+		String skey = new String(key);
+		String stored = readString(skey);
+		while (stored != null && BlobFile.isRef(stored)) {
+			try {
+				return new BlobFile.In(engine().blobPath(BlobFile.id(stored)), BlobFile.length(stored), metrics);
+			} catch (NoSuchFileException e) {
+				try {
+					stored = reread(skey, stored);
+				} catch (NoSuchFileException gone) {
+					throw new UncheckedIOException(gone);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return stored == null ? null : new StringReader(BlobFile.unescape(stored));
+	}
+
+	/**
+	 * Streams a new value for key. Up to {@link StoreOptions#largeValueChars}
+	 * chars are buffered in memory; beyond that they go straight to a blob
+	 * file if the engine keeps blobs. The value replaces the old one when the
+	 * writer is closed.
+	 */
+	@Override
+	public Writer openValueWriter(char[] key) {
+		return openValueWriter(key, Runnable::run);
+	}
+
+	/**
+	 * As {@link #openValueWriter(char[])}, handing the write that replaces the
+	 * value on close to committer, which must run it and wait for it. A
+	 * failure of the write is raised as UncheckedIOException.
+	 */
+	Writer openValueWriter(char[] key, final Consumer<Runnable> committer) {
+		final String skey = new String(key);
+		return new Writer() {
+			private StringBuilder head = new StringBuilder();
+			private BlobFile.Out blob;
+			private boolean closed;
+
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException {
+				if (closed)
+					throw new IOException("Writer closed");
+				if (blob == null) {
+					if (head.length() + len < options.largeValueChars || (blob = engine().newBlob()) == null) {
+						head.append(cbuf, off, len);
+						return;
+					}
+					try {
+						blob.write(head.toString());
+					} catch (IOException e) {
+						blob.abandon();
+						throw e;
+					}
+					head = null;
+				}
+				try {
+					blob.write(cbuf, off, len);
+				} catch (IOException e) {
+					blob.abandon();
+					throw e;
+				}
+			}
+
+			@Override
+			public void flush() {
+				// nothing is visible before close
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				if (blob == null) {
+					commit(BlobFile.escape(head.toString()));
+					return;
+				}
+				try {
+					blob.close();
+				} catch (IOException e) {
+					blob.abandon();
+					throw e;
+				}
+				commit(BlobFile.ref(blob.id, blob.length()));
+			}
+
+			private void commit(String stored) throws IOException {
+				try {
+					committer.accept(() -> {
+						try {
+							writeStored(skey, stored);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+		};
+	}
+
+	private String readString(String skey) {
+		StoreEvents.Read event = new StoreEvents.Read();
+		event.begin();
+		long start = System.nanoTime();
+		String s;
+		int stamp;
+		synchronized (map) {
+			s = map.get(skey);
+			stamp = writeStamps[stripe(skey)];
+		}
+		if(s != null)
 		{
-			return map.get(skey).toCharArray();
+			if (s.equals(StorageEngine.TOMBSTONE))
+				s = null; // known to be deleted
+			metrics.cacheHits.increment();
+			metrics.reads.recordSince(start);
+			event.finish(skey, s, true, 0);
+			return s;
 		}
+		metrics.cacheMisses.increment();
 		try
 		{
-			String s = Files.readString(new File(new String(key)).toPath());
-			map.put(skey, s);
-			return s.toCharArray();
+			long io = System.nanoTime();
+			s = engine().get(skey);
+			io = System.nanoTime() - io;
+			if(s != null) {
+				// a write racing with this read may already have cached a newer value
+				synchronized (map) {
+					cacheRead(skey, s, stamp);
+				}
+			}
+			metrics.reads.recordSince(start);
+			event.finish(skey, s, false, io);
+			return s;
 		}
 		catch(Exception ex) {
+			ex.printStackTrace();
 			return null;
 		}
-		//return map.get(key);
+	}
+
+	/**
+	 * Copies the value straight from the cached string into dst. A cache hit
+	 * allocates nothing, neither for the key nor for the value.
+	 */
+	@Override
+	public int readInto(char[] key, CharBuffer dst) {
+		String s = readCachedFirst(key);
+		if (s != null && !s.isEmpty() && s.charAt(0) >= BlobFile.REF)
+			s = resolve(new String(key), s);
+		if (s == null)
+			return -1;
+		int n = s.length();
+		if (n <= dst.remaining()) {
+			if (dst.hasArray()) {
+				s.getChars(0, n, dst.array(), dst.arrayOffset() + dst.position());
+				dst.position(dst.position() + n);
+			} else {
+				dst.put(s);
+			}
+		}
+		return n;
 	}
 
+	@Override
+	public int readInto(char[] key, ByteBuffer dst) {
+		String s = readCachedFirst(key);
+		if (s != null && !s.isEmpty() && s.charAt(0) >= BlobFile.REF)
+			s = resolve(new String(key), s);
+		if (s == null)
+			return -1;
+		int n = s.length();
+		if (2L * n <= dst.remaining()) {
+			int p = dst.position();
+			for (int i = 0; i < n; i++, p += 2)
+				dst.putChar(p, s.charAt(i));
+			dst.position(p);
+		}
+		return n;
+	}
+
+	private String readCachedFirst(char[] key) {
+		long start = System.nanoTime();
+		KeyProbe probe = PROBE.get();
+		String s;
+		synchronized (map) {
+			s = map.get(probe.of(key));
+		}
+		probe.chars = null;
+		if (s == null)
+			return readString(new String(key));
+		metrics.cacheHits.increment();
+		metrics.reads.recordSince(start);
+		return s.equals(StorageEngine.TOMBSTONE) ? null : s;
+	}
+
+	/**
+	 * Stands in for the String of a key during a cache lookup: it hashes like
+	 * the String and equals it, so the map finds the entry without the key
+	 * being copied. Never stored in the map.
+	 */
+	private static final class KeyProbe {
+		char[] chars;
+		private int hash;
+
+		KeyProbe of(char[] key) {
+			chars = key;
+			int h = 0;
+			for (char c : key)
+				h = 31 * h + c;
+			hash = h;
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof String))
+				return false;
+			String s = (String) o;
+			if (s.length() != chars.length)
+				return false;
+			for (int i = 0; i < chars.length; i++) {
+				if (s.charAt(i) != chars[i])
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Serves cache hits first, then looks up all remaining keys in one pass
+	 * over the engine in key order, so that keys sharing a block share its read.
+	 */
+	@Override
+	public char[][] readMany(char[][] keys) {
+		String[] skeys = new String[keys.length];
+		String[] stored = new String[keys.length];
+		TreeMap<String, List<Integer>> misses = new TreeMap<String, List<Integer>>();
+		String[] sorted;
+		int[] stamps;
+		synchronized (map) {
+			for (int i = 0; i < keys.length; i++) {
+				skeys[i] = new String(keys[i]);
+				stored[i] = map.get(skeys[i]);
+				if (stored[i] == null)
+					misses.computeIfAbsent(skeys[i], k -> new ArrayList<Integer>(1)).add(i);
+				else if (stored[i].equals(StorageEngine.TOMBSTONE))
+					stored[i] = null;
+			}
+			sorted = misses.keySet().toArray(new String[0]);
+			stamps = new int[sorted.length];
+			for (int j = 0; j < sorted.length; j++)
+				stamps[j] = writeStamps[stripe(sorted[j])];
+		}
+		metrics.cacheHits.add(keys.length - misses.size());
+		metrics.cacheMisses.add(misses.size());
+
+		if (!misses.isEmpty()) {
+			String[] found = new String[sorted.length];
+			try {
+				engine().getMany(sorted, found);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+			synchronized (map) {
+				for (int j = 0; j < sorted.length; j++) {
+					if (found[j] == null)
+						continue;
+					cacheRead(sorted[j], found[j], stamps[j]);
+					for (int i : misses.get(sorted[j]))
+						stored[i] = found[j];
+				}
+			}
+		}
+		char[][] values = new char[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			String s = resolve(skeys[i], stored[i]);
+			if (s != null)
+				values[i] = s.toCharArray();
+		}
+		return values;
+	}
+
+	/** Applies every pair under a single acquisition of the engine's write lock */
+	@Override
+	public void writeMany(KVPair[] pairs) {
+		String[] skeys = new String[pairs.length];
+		String[] svalues = new String[pairs.length];
+		try {
+			for (int i = 0; i < pairs.length; i++) {
+				skeys[i] = new String(pairs[i].element1);
+				svalues[i] = toStored(pairs[i].element2);
+			}
+			engine().putMany(skeys, svalues);
+			synchronized (map) {
+				for (int i = 0; i < pairs.length; i++)
+					cacheWritten(skeys[i], svalues[i]);
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Reads key on the I/O pool. Cache hits complete immediately, concurrent
+	 * reads of the same key share one lookup, and a read issued after a
+	 * {@link #writeAsync} of the same key observes that write.
+	 */
+	public CompletableFuture<char[]> readAsync(char[] key) {
+		final String skey = new String(key);
+		CompletableFuture<Void> write = pendingWrites.get(skey);
+		// a completed write may not have unregistered itself yet
+		if (write != null && !write.isDone())
+			return write.thenCompose(v -> readAsync(skey.toCharArray()));
+		String cached;
+		synchronized (map) {
+			cached = map.get(skey);
+		}
+		if (cached != null && !BlobFile.isRef(cached)) {
+			metrics.cacheHits.increment();
+			if (cached.equals(StorageEngine.TOMBSTONE))
+				return CompletableFuture.completedFuture(null);
+			return CompletableFuture.completedFuture(BlobFile.unescape(cached).toCharArray());
+		}
+
+		// registered before the lookup starts, so that it cannot finish first
+		CompletableFuture<String> mine = new CompletableFuture<String>();
+		CompletableFuture<String> shared = pendingReads.putIfAbsent(skey, mine);
+		if (shared == null) {
+			shared = mine;
+			mine.whenComplete((v, ex) -> pendingReads.remove(skey, mine));
+			CompletableFuture.supplyAsync(() -> resolve(skey, readString(skey)), executor()).whenComplete((v, ex) -> {
+				if (ex != null)
+					mine.completeExceptionally(ex);
+				else
+					mine.complete(v);
+			});
+		}
+		// every caller gets its own copy of the value
+		return shared.thenApply(s -> s == null ? null : s.toCharArray());
+	}
+
+	/**
+	 * Writes key on the I/O pool. Writes to the same key are applied in the
+	 * order they were issued.
+	 */
+	public CompletableFuture<Void> writeAsync(char[] key, char[] value) {
+		final String skey = new String(key);
+		final char[] copy = value.clone();
+		final CompletableFuture<Void> f = pendingWrites.compute(skey, (k, prev) -> {
+			Runnable task = () -> writeChars(k, copy);
+			return prev == null ? CompletableFuture.runAsync(task, executor()) : prev.thenRunAsync(task, executor());
+		});
+		f.whenComplete((x, ex) -> pendingWrites.remove(skey, f));
+		return f;
+	}
+
+	/**
+	 * Streams the pairs with startKey <= key < endKey in key order. A null
+	 * endKey leaves the range open.
+	 */
 	@Override
 	public Iterator<KVPair> readRange(char[] startKey, char[] endKey) {
-		return null;
+		return readRange(startKey, endKey, true);
+	}
+
+	/**
+	 * Like {@link #readRange(char[], char[])}; with fillCache false the blocks
+	 * the scan reads from disk are not added to the block cache, so that a
+	 * one-off scan over cold data leaves the cached working set alone. Scans
+	 * never enter values in the object cache either way.
+	 */
+	public Iterator<KVPair> readRange(char[] startKey, char[] endKey, boolean fillCache) {
+		try {
+			return pairs(engine().iterator(new String(startKey), endKey == null ? null : new String(endKey), fillCache));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Streams every pair whose key starts with the given prefix, in key order.
+	 * This is the range [prefix, prefixEnd(prefix)), so every table is entered
+	 * at the first candidate block and left at the first key past the prefix.
+	 */
+	@Override
+	public Iterator<KVPair> readPrefix(char[] prefix) {
+		String sprefix = new String(prefix);
+		try {
+			return pairs(engine().iterator(sprefix, prefixEnd(sprefix), true));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** The smallest key greater than every key starting with prefix, or null */
+	static String prefixEnd(String prefix) {
+		int end = prefix.length();
+		while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE)
+			end--;
+		if (end == 0)
+			return null;
+		return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+	}
+
+	/**
+	 * The entries of it with their values resolved. A pair whose blob cannot
+	 * be read, or whose key was deleted since the scan passed it, is skipped.
+	 */
+	private Iterator<KVPair> pairs(final Iterator<Map.Entry<String, String>> it) {
+		return new Iterator<KVPair>() {
+			private KVPair next = advance();
+
+			private KVPair advance() {
+				while (it.hasNext()) {
+					Map.Entry<String, String> e = it.next();
+					String value = resolve(e.getKey(), e.getValue());
+					if (value != null)
+						return new KVPair(e.getKey().toCharArray(), value.toCharArray());
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public KVPair next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				KVPair p = next;
+				next = advance();
+				return p;
+			}
+		};
+	}
+
+	/**
+	 * Captures the store in constant time without waiting for writers or
+	 * I/O. Reads through the snapshot bypass the object cache, which only
+	 * holds current values.
+	 */
+	@Override
+	public Snapshot snapshot() {
+		final StorageEngine.Snapshot snap;
+		try {
+			snap = engine().snapshot();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new Snapshot() {
+			@Override
+			public char[] read(char[] key) {
+				String skey = new String(key);
+				try {
+					// the snapshot keeps its blobs, so this never falls back to the current value
+					String s = resolve(skey, snap.get(skey));
+					return s == null ? null : s.toCharArray();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					return null;
+				}
+			}
+
+			@Override
+			public Iterator<KVPair> readRange(char[] startKey, char[] endKey) {
+				return pairs(snap.iterator(new String(startKey), endKey == null ? null : new String(endKey), true));
+			}
+
+			@Override
+			public Iterator<KVPair> readPrefix(char[] prefix) {
+				String sprefix = new String(prefix);
+				return pairs(snap.iterator(sprefix, prefixEnd(sprefix), true));
+			}
+
+			@Override
+			public void close() {
+				snap.close();
+			}
+		};
 	}
 
 	@Override
@@ -71,8 +992,66 @@ public class SimpleKV implements KeyValue {
 		// do nothing
 	}
 
+	/** Makes every write so far durable */
 	@Override
 	public void commit() {
+		StoreEvents.Commit event = new StoreEvents.Commit();
+		event.begin();
+		long start = System.nanoTime();
+		try {
+			engine().sync();
+			metrics.commits.recordSince(start);
+			event.commit();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
 
+	/**
+	 * Closes the store. Unflushed writes are kept in the log and recovered by
+	 * the next {@link #initAndMakeStore(String)} on the same path.
+	 */
+	public void close() {
+		closing = true;
+		if (saver != null) {
+			saver.shutdown();
+			try {
+				saver.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			saveCacheOrder();
+			saver = null;
+		}
+		if (mbean != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+			} catch (JMException ex) {
+				ex.printStackTrace();
+			}
+			mbean = null;
+		}
+		ExecutorService e = executor;
+		if (e != null) {
+			e.shutdown();
+			try {
+				e.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		StorageEngine t = engine;
+		if (t == null)
+			return;
+		try {
+			t.close();
+			if (temporary) {
+				try (Stream<Path> files = Files.walk(dir)) {
+					files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+				}
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
 	}
 }
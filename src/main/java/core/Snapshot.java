@@ -0,0 +1,29 @@
+package core;
+
+import java.util.Iterator;
+
+/**
+ * Read-only view of a store as it was when {@link KeyValue#snapshot()}
+ * returned it. Writes made since, including the rest of a batch that was
+ * being applied, are not visible through it, and it never holds up writers.
+ *
+ * The files a snapshot reads stay on disk until it is closed, so it should
+ * be closed as soon as it is no longer needed. Iterators obtained from it
+ * keep working after it is closed until they are exhausted.
+ */
+public interface Snapshot extends AutoCloseable {
+
+	/** The value key had when the snapshot was taken, or null */
+	char[] read(char[] key);
+
+	/**
+	 * Streams the pairs with startKey <= key < endKey in key order, as of the
+	 * snapshot. A null endKey leaves the range open.
+	 */
+	Iterator<KVPair> readRange(char[] startKey, char[] endKey);
+
+	Iterator<KVPair> readPrefix(char[] prefix);
+
+	@Override
+	void close();
+}
@@ -0,0 +1,155 @@
+package core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Storage under a {@link SimpleKV}, which keeps the object cache, blob
+ * streaming, asynchronous I/O and metrics above it. Keys and values cross
+ * this interface in their stored form: values are escaped by
+ * {@link BlobFile#escape}, so {@link #TOMBSTONE} and blob references never
+ * collide with user data.
+ *
+ * The engine of a store is picked by {@link StoreOptions#engine} when the
+ * store is created, and recorded in its directory so that reopening it uses
+ * the same one whatever the options say.
+ */
+interface StorageEngine {
+
+	/**
+	 * Stored in place of a deleted value by engines that need one. A
+	 * noncharacter that {@link BlobFile#escape} keeps out of every stored
+	 * value.
+	 */
+	String TOMBSTONE = "\uFDD2";
+
+	/** Names the engine in the directory of a store */
+	String ENGINE_FILE = "ENGINE";
+
+	/** The value of key, or null if it is missing or deleted */
+	String get(String key) throws IOException;
+
+	/**
+	 * Batched {@link #get}: keys must be sorted and distinct, and out[i]
+	 * receives the value of keys[i] or stays null.
+	 */
+	void getMany(String[] keys, String[] out) throws IOException;
+
+	void put(String key, String value) throws IOException;
+
+	/** Applies all pairs at once, so that a snapshot sees all or none of them */
+	void putMany(String[] keys, String[] values) throws IOException;
+
+	/** Hides key from reads until it is written again */
+	void delete(String key) throws IOException;
+
+	/** Deletes all keys at once, as {@link #putMany} */
+	void deleteMany(String[] keys) throws IOException;
+
+	/**
+	 * Iterates the value of every key in [from, to) in key order, skipping
+	 * deleted keys; a null bound is open. The iterator sees the store as it
+	 * was when it was created. fillCache says whether what it reads from disk
+	 * may displace cached data.
+	 */
+	Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache);
+
+	/** Captures the store as it is now; the caller must close it */
+	Snapshot snapshot();
+
+	/** Makes everything written so far durable */
+	void sync() throws IOException;
+
+	/** Syncs and closes every file; data stays on disk for the next open */
+	void close() throws IOException;
+
+	/**
+	 * Creates the file of a new blob, or returns null if the engine keeps
+	 * every value inline. The caller stores the reference once the blob is
+	 * complete.
+	 */
+	default BlobFile.Out newBlob() throws IOException {
+		return null;
+	}
+
+	/** File of the blob with the given id; only asked for by engines that make blobs */
+	default Path blobPath(long id) {
+		throw new UnsupportedOperationException("Engine keeps no blobs");
+	}
+
+	/**
+	 * Whether the engine keeps recently used data in memory itself, so that
+	 * the object cache above it would only hold a second copy
+	 */
+	default boolean cachesData() {
+		return false;
+	}
+
+	/**
+	 * Adds the estimated heap bytes of each in-memory structure of the engine
+	 * to usage, by name: "memtable", "index", "filters", "blockCache",
+	 * "bufferPool" or "replicationLog". Walking the structures takes time in
+	 * proportion to their size.
+	 */
+	default void memoryUsage(Map<String, Long> usage) {
+		// nothing kept in memory
+	}
+
+	/** The log of writes for followers, or null if the engine does not keep one */
+	default ReplicationLog replicationLog() {
+		return null;
+	}
+
+	/**
+	 * Read-only view of an engine at one instant, readable without holding
+	 * up writers. What it reads stays available until it is closed, or
+	 * collected without having been closed.
+	 */
+	interface Snapshot extends AutoCloseable {
+
+		/** The value key had, or null */
+		String get(String key) throws IOException;
+
+		/** As {@link StorageEngine#iterator}, as of the snapshot */
+		Iterator<Map.Entry<String, String>> iterator(String from, String to, boolean fillCache);
+
+		@Override
+		void close();
+	}
+
+	/**
+	 * Opens the engine stored in dir, creating one of the kind options ask
+	 * for if the directory holds no store yet. A directory with data but no
+	 * {@link #ENGINE_FILE} predates the choice and holds an LSM tree.
+	 */
+	static StorageEngine open(Path dir, StoreOptions options, StoreMetrics metrics) throws IOException {
+		Files.createDirectories(dir);
+		Path file = dir.resolve(ENGINE_FILE);
+		StoreOptions.Engine engine;
+		if (Files.exists(file)) {
+			engine = StoreOptions.Engine.valueOf(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim());
+		} else {
+			boolean empty;
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				empty = !files.iterator().hasNext();
+			}
+			engine = empty ? options.engine : StoreOptions.Engine.LSM;
+			Files.write(file, engine.name().getBytes(StandardCharsets.US_ASCII));
+		}
+		switch (engine) {
+		case MEMORY:
+			return new MemoryEngine();
+		case HASH:
+			return HashEngine.open(dir, options, metrics);
+		case BTREE:
+			return BTreeEngine.open(dir, options, metrics);
+		default:
+			return LSMTree.open(dir, options, metrics);
+		}
+	}
+}
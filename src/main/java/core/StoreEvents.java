@@ -0,0 +1,157 @@
+package core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events of the store, so that slow operations show up in
+ * the same recording as the GC pauses, safepoints and I/O they line up with.
+ *
+ * Operations are timed with {@link Event#begin()} and {@link Event#end()};
+ * fields are only filled in once {@link Event#shouldCommit()} says the event
+ * is enabled and over its threshold. With no recording running the events
+ * are never committed and the JIT removes them from the hot paths.
+ *
+ * The thresholds below are defaults; a .jfc settings file can override them
+ * per event name, e.g. {@code rarmanKV.Read#threshold=100 us}.
+ */
+final class StoreEvents {
+
+	private StoreEvents() {
+	}
+
+	@Name("rarmanKV.Read")
+	@Label("Store Read")
+	@Category("rarmanKV")
+	@Threshold("1 ms")
+	static final class Read extends Event {
+		@Label("Key Length")
+		int keyLength;
+
+		@Label("Value Length")
+		@Description("Length of the value read, or -1 if the key is absent")
+		int valueLength;
+
+		@Label("Cache Hit")
+		boolean cacheHit;
+
+		@Label("I/O Duration")
+		@Description("Time spent in the tree after missing the cache")
+		@Timespan(Timespan.NANOSECONDS)
+		long ioDuration;
+
+		void finish(String key, String value, boolean hit, long ioNanos) {
+			end();
+			if (shouldCommit()) {
+				keyLength = key.length();
+				valueLength = value == null ? -1 : value.length();
+				cacheHit = hit;
+				ioDuration = ioNanos;
+				commit();
+			}
+		}
+	}
+
+	@Name("rarmanKV.Write")
+	@Label("Store Write")
+	@Category("rarmanKV")
+	@Threshold("1 ms")
+	static final class Write extends Event {
+		@Label("Key Length")
+		int keyLength;
+
+		@Label("Value Length")
+		int valueLength;
+
+		void finish(String key, String value) {
+			end();
+			if (shouldCommit()) {
+				keyLength = key.length();
+				valueLength = value.length();
+				commit();
+			}
+		}
+	}
+
+	@Name("rarmanKV.Commit")
+	@Label("Store Commit")
+	@Category("rarmanKV")
+	@Threshold("1 ms")
+	static final class Commit extends Event {
+	}
+
+	@Name("rarmanKV.Fsync")
+	@Label("Store Fsync")
+	@Description("Forcing a log or a new table to disk")
+	@Category("rarmanKV")
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static final class Fsync extends Event {
+		@Label("File")
+		String file;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+
+		void finish(java.nio.file.Path path, long bytes) {
+			end();
+			if (shouldCommit()) {
+				file = path.getFileName().toString();
+				size = bytes;
+				commit();
+			}
+		}
+	}
+
+	@Name("rarmanKV.WriteStall")
+	@Label("Store Write Stall")
+	@Description("A write waiting for the previous memtable to be flushed")
+	@Category("rarmanKV")
+	static final class WriteStall extends Event {
+	}
+
+	@Name("rarmanKV.Flush")
+	@Label("Store Flush")
+	@Category("rarmanKV")
+	@StackTrace(false)
+	static final class Flush extends Event {
+		@Label("Entries")
+		int entries;
+
+		@Label("Table Size")
+		@DataAmount
+		long size;
+	}
+
+	@Name("rarmanKV.Compaction")
+	@Label("Store Compaction")
+	@Category("rarmanKV")
+	@StackTrace(false)
+	static final class Compaction extends Event {
+		@Label("Level")
+		@Description("Level the inputs were taken from")
+		int level;
+
+		@Label("Garbage Collection")
+		@Description("Started to reclaim the space of deleted keys rather than for level size")
+		boolean garbage;
+
+		@Label("Input Tables")
+		int inputTables;
+
+		@Label("Output Tables")
+		int outputTables;
+
+		@Label("Bytes Written")
+		@DataAmount
+		long bytesWritten;
+	}
+}
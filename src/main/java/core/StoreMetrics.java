@@ -0,0 +1,189 @@
+package core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one store. Everything is recorded
+ * without locks on the operation's own thread; readers see live values.
+ * 
+ * The object cache counters cover {@link SimpleKV}'s decoded values, the
+ * block cache counters cover table blocks, and the byte counters cover table
+ * and log I/O, including flushes and compactions. The replication lag is
+ * only set on a follower.
+ */
+public final class StoreMetrics implements StoreMetricsMXBean {
+
+	/** Point reads, from the cache or the tree */
+	public final LatencyHistogram reads = new LatencyHistogram();
+	/** Point writes, including the log append */
+	public final LatencyHistogram writes = new LatencyHistogram();
+	/** {@link KeyValue#commit()} calls */
+	public final LatencyHistogram commits = new LatencyHistogram();
+	/** Every fsync of a log or table */
+	public final LatencyHistogram fsyncs = new LatencyHistogram();
+	/** Writes held back until a flush made room in memory */
+	public final LatencyHistogram writeStalls = new LatencyHistogram();
+
+	final LongAdder cacheHits = new LongAdder();
+	final LongAdder cacheMisses = new LongAdder();
+	final LongAdder cacheEvictions = new LongAdder();
+	final LongAdder cacheRejections = new LongAdder();
+	final LongAdder blockCacheHits = new LongAdder();
+	final LongAdder blockCacheMisses = new LongAdder();
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder bytesWritten = new LongAdder();
+	private volatile long replicationLag;
+	private volatile long replicationLagMillis;
+
+	private static double micros(LatencyHistogram h, double percent) {
+		return h.snapshot().percentile(percent) / 1e3;
+	}
+
+	@Override
+	public long getReadCount() {
+		return reads.snapshot().count();
+	}
+
+	@Override
+	public double getReadP50Micros() {
+		return micros(reads, 50);
+	}
+
+	@Override
+	public double getReadP99Micros() {
+		return micros(reads, 99);
+	}
+
+	@Override
+	public double getReadP999Micros() {
+		return micros(reads, 99.9);
+	}
+
+	@Override
+	public long getWriteCount() {
+		return writes.snapshot().count();
+	}
+
+	@Override
+	public double getWriteP50Micros() {
+		return micros(writes, 50);
+	}
+
+	@Override
+	public double getWriteP99Micros() {
+		return micros(writes, 99);
+	}
+
+	@Override
+	public double getWriteP999Micros() {
+		return micros(writes, 99.9);
+	}
+
+	@Override
+	public long getCommitCount() {
+		return commits.snapshot().count();
+	}
+
+	@Override
+	public double getCommitP99Micros() {
+		return micros(commits, 99);
+	}
+
+	@Override
+	public long getFsyncCount() {
+		return fsyncs.snapshot().count();
+	}
+
+	@Override
+	public double getFsyncP99Micros() {
+		return micros(fsyncs, 99);
+	}
+
+	@Override
+	public long getWriteStallCount() {
+		return writeStalls.snapshot().count();
+	}
+
+	@Override
+	public double getWriteStallP99Micros() {
+		return micros(writeStalls, 99);
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	@Override
+	public long getCacheEvictions() {
+		return cacheEvictions.sum();
+	}
+
+	@Override
+	public long getCacheRejections() {
+		return cacheRejections.sum();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		long hits = cacheHits.sum();
+		long total = hits + cacheMisses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getBlockCacheHits() {
+		return blockCacheHits.sum();
+	}
+
+	@Override
+	public long getBlockCacheMisses() {
+		return blockCacheMisses.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	/**
+	 * Records how far a follower is behind its leader: the number of
+	 * committed writes it has yet to apply, and the age of the last write it
+	 * applied, or zero when it has caught up.
+	 */
+	public void recordReplicationLag(long writes, long millis) {
+		replicationLag = writes;
+		replicationLagMillis = millis;
+	}
+
+	@Override
+	public long getReplicationLag() {
+		return replicationLag;
+	}
+
+	@Override
+	public long getReplicationLagMillis() {
+		return replicationLagMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "reads: " + reads.snapshot() + "\nwrites: " + writes.snapshot() + "\ncommits: " + commits.snapshot()
+				+ "\nfsyncs: " + fsyncs.snapshot() + "\nwrite stalls: " + writeStalls.snapshot()
+				+ String.format("%ncache: hits=%d misses=%d evictions=%d rejections=%d ratio=%.3f", getCacheHits(),
+						getCacheMisses(), getCacheEvictions(), getCacheRejections(), getCacheHitRatio())
+				+ String.format("%nblock cache: hits=%d misses=%d%nio: read=%d written=%d", getBlockCacheHits(),
+						getBlockCacheMisses(), getBytesRead(), getBytesWritten())
+				+ String.format("%nreplication lag: writes=%d ms=%d", replicationLag, replicationLagMillis);
+	}
+}
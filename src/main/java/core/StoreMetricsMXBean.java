@@ -0,0 +1,62 @@
+package core;
+
+/**
+ * Management view of a store's {@link StoreMetrics}, registered with the
+ * platform MBean server under {@code rarmanKV:type=Store,path=...} while the
+ * store is open. Latencies are in microseconds.
+ */
+public interface StoreMetricsMXBean {
+
+	long getReadCount();
+
+	double getReadP50Micros();
+
+	double getReadP99Micros();
+
+	double getReadP999Micros();
+
+	long getWriteCount();
+
+	double getWriteP50Micros();
+
+	double getWriteP99Micros();
+
+	double getWriteP999Micros();
+
+	long getCommitCount();
+
+	double getCommitP99Micros();
+
+	long getFsyncCount();
+
+	double getFsyncP99Micros();
+
+	long getWriteStallCount();
+
+	double getWriteStallP99Micros();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getCacheEvictions();
+
+	/** New values the full cache turned away as less popular than its eldest */
+	long getCacheRejections();
+
+	double getCacheHitRatio();
+
+	long getBlockCacheHits();
+
+	long getBlockCacheMisses();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	/** Committed writes of the leader a follower has yet to apply */
+	long getReplicationLag();
+
+	/** Age of the last write a follower applied, while it is behind */
+	long getReplicationLagMillis();
+}
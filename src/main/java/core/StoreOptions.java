@@ -0,0 +1,167 @@
+package core;
+
+/**
+ * Tuning knobs for a store opened through
+ * {@link SimpleKV#initAndMakeStore(String, StoreOptions)}. The defaults suit
+ * the workloads in the test suite; every field may be changed before the
+ * store is opened.
+ */
+public class StoreOptions implements Cloneable {
+
+	/** Kinds of storage a {@link SimpleKV} can keep its data in */
+	public enum Engine {
+		/**
+		 * A hash map in memory. Fastest, but nothing survives closing the
+		 * store.
+		 */
+		MEMORY,
+		/**
+		 * An append-only log indexed by a hash map in memory: one disk read per
+		 * point read and one append per write, slow range scans. Suits
+		 * write-heavy workloads whose keys fit in memory.
+		 */
+		HASH,
+		/**
+		 * A leveled log-structured merge tree: ordered, with cheap range scans
+		 * and keys on disk. Suits read-heavy and scan-heavy workloads.
+		 */
+		LSM,
+		/**
+		 * A copy-on-write B+tree of fixed-size pages in one file, cached by a
+		 * buffer pool in place of the object cache: the fewest disk reads per
+		 * point read and range scan, at the price of slower writes. Suits
+		 * read-mostly, range-heavy workloads.
+		 */
+		BTREE
+	}
+
+	/**
+	 * Engine of a new store. Fixed when the store is created; reopening keeps
+	 * the original engine.
+	 */
+	public Engine engine = Engine.LSM;
+
+	/**
+	 * Number of independent engines a {@link ShardedKV} spreads keys over.
+	 * Fixed when the store is created; reopening keeps the original count.
+	 */
+	public int shards = 4;
+
+	/**
+	 * Whether an open store registers its {@link StoreMetrics} with the
+	 * platform MBean server.
+	 */
+	public boolean jmx = true;
+
+	/** Number of decoded values kept in the object cache */
+	public int cacheEntries = 2048;
+
+	/**
+	 * Whether the full object cache only admits a value whose key has
+	 * recently been used more often than the key it would evict, so that a
+	 * burst of one-off reads cannot flush the hot set. Off gives plain LRU.
+	 */
+	public boolean cacheAdmission = true;
+
+	/**
+	 * Memory budget of the compressed block cache behind the object cache.
+	 * Zero disables it. The B+tree engine spends it on its buffer pool, which
+	 * keeps at least 64 pages.
+	 */
+	public long blockCacheBytes = 32L << 20;
+
+	/**
+	 * Interval at which the keys of the object cache are saved, so that
+	 * reopening the store can load them again before they are asked for.
+	 * The order is also saved on close. Zero disables saving and warm-up.
+	 */
+	public long cacheSaveMillis = 60_000;
+
+	/** Batches of saved keys read concurrently while warming the cache */
+	public int warmupParallelism = 4;
+
+	/**
+	 * Threads serving {@link SimpleKV#readAsync} and {@link SimpleKV#writeAsync}
+	 * on runtimes without virtual threads
+	 */
+	public int ioThreads = 16;
+
+	/**
+	 * Length from which a value is kept in a blob file of its own instead of
+	 * in the log and tables, and streamed rather than cached. Only the LSM
+	 * engine keeps blobs; the others store every value inline.
+	 */
+	public int largeValueChars = 64 * 1024;
+
+	/**
+	 * Memory kept for the {@link ReplicationLog} that followers tail. Zero
+	 * disables the log, and with it replication from the store. Only the LSM
+	 * engine keeps one.
+	 */
+	public long replicationLogBytes = 0;
+
+	/** Size at which the memtable is frozen and flushed to level 0 */
+	public long memtableBytes = 4L << 20;
+
+	/**
+	 * Approximate size of a data block, the unit of disk reads; for the
+	 * B+tree engine, the page size, fixed when the store is created.
+	 */
+	public int blockBytes = 4096;
+
+	/**
+	 * Bloom filter bits per key of every table; 10 gives about a 1% false
+	 * positive rate. Zero disables the filters.
+	 */
+	public int bloomBitsPerKey = 10;
+
+	/**
+	 * Size at which compaction starts a new output table, and at which the
+	 * hash engine starts a new data file
+	 */
+	public long targetTableBytes = 2L << 20;
+
+	/** Number of level 0 tables that triggers a compaction into level 1 */
+	public int level0CompactionTrigger = 4;
+
+	/** Maximum total size of level 1 */
+	public long level1Bytes = 10L << 20;
+
+	/** Growth factor between the maximum sizes of consecutive levels */
+	public int levelSizeRatio = 10;
+
+	/** Number of levels, including level 0 */
+	public int levels = 7;
+
+	/**
+	 * Fraction of tombstones among the records of a table from which the tree
+	 * compacts it on its own, to reclaim the space of deleted keys even when
+	 * no level is over budget; for the hash engine, the fraction of dead
+	 * records in its closed files from which they are merged. Zero disables
+	 * such compactions.
+	 */
+	public double garbageRatio = 0.3;
+
+	/**
+	 * Write rate that compactions started only to reclaim deleted space are
+	 * held to, so that they do not compete with the foreground for the disk.
+	 * Zero leaves them unthrottled.
+	 */
+	public long garbageBytesPerSecond = 8L << 20;
+
+	public StoreOptions copy() {
+		try {
+			return (StoreOptions) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/** Maximum total size of the given level (1 and up) */
+	long maxBytesForLevel(int level) {
+		long bytes = level1Bytes;
+		for (int i = 1; i < level; i++)
+			bytes *= levelSizeRatio;
+		return bytes;
+	}
+}
@@ -1,28 +1,63 @@
 package core;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 public class Trie<V> implements Serializable {
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
+	private static final char[] NO_LABELS = new char[0];
+	private static final Trie<?>[] NO_CHILDREN = new Trie<?>[0];
+
 	Entry<V> entry;
 	char key;
-	Map<Character, Trie<V>> childrens;
+	/**
+	 * Labels of the outgoing edges in ascending order, and the child at the
+	 * end of each. Searched with a primitive char, so lookups never box.
+	 */
+	char[] labels = NO_LABELS;
+	Trie<V>[] children = empty();
+	/** Number of children; the arrays may be longer */
+	int size;
 
 	public Trie() {
-		this.childrens = new HashMap<Character, Trie<V>>(10);
 		entry = new Entry<V>();
 	}
 
 	/** non-public, used by _put() */
 	Trie(char key) {
-		this.childrens = new HashMap<Character, Trie<V>>(10);
 		this.key = key;
 		entry = new Entry<V>();
 	}
 
+	@SuppressWarnings("unchecked")
+	private static <V> Trie<V>[] empty() {
+		return (Trie<V>[]) NO_CHILDREN;
+	}
+
+	/** The child reached over the edge labelled c, or null */
+	Trie<V> child(char c) {
+		int i = Arrays.binarySearch(labels, 0, size, c);
+		return i >= 0 ? children[i] : null;
+	}
+
+	private Trie<V> addChild(char c) {
+		int i = -Arrays.binarySearch(labels, 0, size, c) - 1;
+		if (size == labels.length) {
+			int n = Math.max(2, size * 2);
+			labels = Arrays.copyOf(labels, n);
+			children = Arrays.copyOf(children, n);
+		}
+		System.arraycopy(labels, i, labels, i + 1, size - i);
+		System.arraycopy(children, i, children, i + 1, size - i);
+		Trie<V> t = new Trie<V>(c);
+		labels[i] = c;
+		children[i] = t;
+		size++;
+		return t;
+	}
+
 	public void put(String key, V value) {
 		_put(new StringBuffer(key), new StringBuffer(""), value);
 	}
@@ -30,15 +65,9 @@ public class Trie<V> implements Serializable {
 	void _put(StringBuffer remainder, StringBuffer prefix, V value) {
 		if (remainder.length() > 0) {
 			char keyElement = remainder.charAt(0);
-			Trie<V> t = null;
-			try {
-				t = childrens.get(keyElement);
-			} catch (IndexOutOfBoundsException e) {
-			}
-			if (t == null) {
-				t = new Trie<V>(keyElement);
-				childrens.put(keyElement, t);
-			}
+			Trie<V> t = child(keyElement);
+			if (t == null)
+				t = addChild(keyElement);
 			prefix.append(remainder.charAt(0));
 			t._put(remainder.deleteCharAt(0), prefix, value);
 		} else {
@@ -69,9 +98,57 @@ public class Trie<V> implements Serializable {
 		return ((this.get(key) != null) ? true : false);
 	}
 
+	/**
+	 * Longest-prefix match over key[off, off + len) without copying the key.
+	 * Unlike {@link #get(String)} this returns the value of the deepest node
+	 * that actually holds one, so a miss below a shorter prefix still resolves
+	 * to that shorter prefix.
+	 */
+	public V longestPrefix(char[] key, int off, int len) {
+		Trie<V> t = this;
+		V best = entry.value;
+		for (int i = off, end = off + len; i < end; i++) {
+			t = t.child(key[i]);
+			if (t == null)
+				break;
+			if (t.entry.value != null)
+				best = t.entry.value;
+		}
+		return best;
+	}
+
+	/**
+	 * Builds an immutable, array-backed copy of this trie. The result is safe to
+	 * share between threads without synchronization and its lookups do not
+	 * allocate.
+	 */
+	public FrozenTrie<V> freeze() {
+		return FrozenTrie.of(this);
+	}
+
+	/**
+	 * Estimated heap retained by the nodes of this trie, their child arrays
+	 * and the prefixes they store. Values are not charged, since prefix tables
+	 * usually share a handful of them.
+	 */
+	public long retainedBytes() {
+		long bytes = 0;
+		ArrayDeque<Trie<V>> todo = new ArrayDeque<Trie<V>>();
+		todo.push(this);
+		while (!todo.isEmpty()) {
+			Trie<V> t = todo.pop();
+			bytes += Footprint.object(3, 6) + Footprint.object(2, 0) + Footprint.string(t.entry.prefix);
+			if (t.labels.length > 0)
+				bytes += Footprint.array(t.labels.length, 2) + Footprint.array(t.children.length, Footprint.REFERENCE);
+			for (int i = 0; i < t.size; i++)
+				todo.push(t.children[i]);
+		}
+		return bytes;
+	}
+
 	V _get(StringBuffer key, int level) {
 		if (key.length() > 0) {
-			Trie<V> t = childrens.get(key.charAt(0));
+			Trie<V> t = child(key.charAt(0));
 			if (t != null) {
 				return t._get(key.deleteCharAt(0), ++level);
 			} else {
@@ -85,7 +162,7 @@ public class Trie<V> implements Serializable {
 
 	@Override
 	public String toString() {
-		return "Trie [entry=" + entry + ", key=" + key + ", childrens=" + childrens + "]";
+		return "Trie [entry=" + entry + ", key=" + key + ", children=" + Arrays.toString(Arrays.copyOf(children, size)) + "]";
 	}
 
 	static public class Entry<V> {
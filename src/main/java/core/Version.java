@@ -0,0 +1,172 @@
+package core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable list of the tables making up each level of an {@link LSMTree}.
+ * Level 0 is ordered newest first and its tables may overlap; every deeper
+ * level is ordered by key and its tables are disjoint.
+ * 
+ * A version holds a reference on each of its tables for as long as it is
+ * itself referenced. The tree owns one reference on its current version;
+ * reads and iterators take their own for as long as they run.
+ */
+final class Version {
+
+	static final Comparator<SSTable> BY_KEY = Comparator.comparing(t -> t.smallest);
+	static final Comparator<SSTable> NEWEST_FIRST = (a, b) -> Long.compare(b.id, a.id);
+
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	final List<List<SSTable>> levels;
+	/** Creation order; a newer version has a larger number */
+	final long seq = SEQUENCE.incrementAndGet();
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	Version(List<List<SSTable>> levels) {
+		this.levels = levels;
+		for (List<SSTable> level : levels) {
+			for (SSTable t : level)
+				t.retain();
+		}
+	}
+
+	static Version empty(int levels) {
+		List<List<SSTable>> l = new ArrayList<List<SSTable>>();
+		for (int i = 0; i < levels; i++)
+			l.add(Collections.<SSTable>emptyList());
+		return new Version(l);
+	}
+
+	/**
+	 * Returns a new version with removed taken out of, and added put into, the
+	 * given levels.
+	 */
+	Version apply(Collection<SSTable> removed, int addLevel, Collection<SSTable> added) {
+		List<List<SSTable>> next = new ArrayList<List<SSTable>>();
+		for (int i = 0; i < levels.size(); i++) {
+			List<SSTable> level = new ArrayList<SSTable>(levels.get(i));
+			level.removeAll(removed);
+			if (i == addLevel) {
+				level.addAll(added);
+				level.sort(i == 0 ? NEWEST_FIRST : BY_KEY);
+			}
+			next.add(Collections.unmodifiableList(level));
+		}
+		return new Version(next);
+	}
+
+	/** Takes a reference unless the version has already been retired */
+	boolean tryRetain() {
+		while (true) {
+			int r = refs.get();
+			if (r == 0)
+				return false;
+			if (refs.compareAndSet(r, r + 1))
+				return true;
+		}
+	}
+
+	/** Whether the last reference is gone */
+	boolean retired() {
+		return refs.get() == 0;
+	}
+
+	void release() {
+		if (refs.decrementAndGet() == 0) {
+			for (List<SSTable> level : levels) {
+				for (SSTable t : level)
+					t.release();
+			}
+		}
+	}
+
+	long levelBytes(int level) {
+		long bytes = 0;
+		for (SSTable t : levels.get(level))
+			bytes += t.size;
+		return bytes;
+	}
+
+	/** Returns the newest value of key across all levels, or null */
+	String get(String key) throws IOException {
+		for (SSTable t : levels.get(0)) {
+			if (t.mayContain(key)) {
+				String v = t.get(key);
+				if (v != null)
+					return v;
+			}
+		}
+		for (int i = 1; i < levels.size(); i++) {
+			SSTable t = find(levels.get(i), key);
+			if (t != null) {
+				String v = t.get(key);
+				if (v != null)
+					return v;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Batched {@link #get}: keys must be sorted and distinct, and out[i] is
+	 * filled in for each key found whose slot is still empty.
+	 */
+	void getMany(String[] keys, String[] out) throws IOException {
+		for (List<SSTable> level : levels) {
+			for (SSTable t : level) {
+				int from = lowerBound(keys, t.smallest);
+				int to = lowerBound(keys, t.largest);
+				if (to < keys.length && keys[to].equals(t.largest))
+					to++;
+				if (from < to)
+					t.getMany(keys, from, to, out);
+			}
+		}
+	}
+
+	/** Index of the first key at or after key */
+	private static int lowerBound(String[] keys, String key) {
+		int lo = 0, hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compareTo(key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/** The table of a sorted level whose range may contain key, or null */
+	static SSTable find(List<SSTable> level, String key) {
+		int lo = 0, hi = level.size() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (level.get(mid).largest.compareTo(key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		if (lo < level.size() && level.get(lo).mayContain(key))
+			return level.get(lo);
+		return null;
+	}
+
+	/** Tables of a sorted level that overlap [from, to] */
+	static List<SSTable> overlapping(List<SSTable> level, String from, String to) {
+		List<SSTable> out = new ArrayList<SSTable>();
+		for (SSTable t : level) {
+			if (t.overlaps(from, to))
+				out.add(t);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,153 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log backing one memtable. Records reach the OS when the
+ * buffer fills and the disk on {@link #sync()}; the log is deleted once its
+ * memtable has been flushed to a table.
+ * 
+ * The log starts with {@link #MAGIC}. Each record is a header holding the
+ * length of its body, the complement of that length and the CRC32 of the
+ * body, followed by the body: a key and value as encoded by
+ * {@link SSTable#encode}. Logs without the magic number predate checksums
+ * and hold bare bodies.
+ */
+final class WriteAheadLog implements Closeable {
+
+	/** "\xFFRKVWAL1" */
+	static final long MAGIC = 0xFF524B5657414C31L;
+	private static final int HEADER = 12;
+
+	final long id;
+	final Path path;
+	private final FileOutputStream fos;
+	private final BufferedOutputStream out;
+	private final StoreMetrics metrics;
+	private ByteBuffer scratch;
+	private final byte[] header = new byte[HEADER];
+	private final CRC32 crc = new CRC32();
+	/** Bytes appended so far */
+	private long size;
+
+	WriteAheadLog(long id, Path path, StoreMetrics metrics) throws IOException {
+		this.id = id;
+		this.path = path;
+		this.metrics = metrics;
+		this.fos = new FileOutputStream(path.toFile(), true);
+		this.out = new BufferedOutputStream(fos, 64 * 1024);
+		if (fos.getChannel().size() == 0) {
+			ByteBuffer.wrap(header).putLong(MAGIC);
+			out.write(header, 0, 8);
+			size += 8;
+		}
+	}
+
+	void append(String key, String value) throws IOException {
+		scratch = SSTable.encode(scratch, key, value);
+		int n = scratch.limit();
+		crc.reset();
+		crc.update(scratch.array(), 0, n);
+		ByteBuffer.wrap(header).putInt(n).putInt(~n).putInt((int) crc.getValue());
+		out.write(header);
+		out.write(scratch.array(), 0, n);
+		metrics.bytesWritten.add(header.length + n);
+		size += header.length + n;
+	}
+
+	void sync() throws IOException {
+		out.flush();
+		StoreEvents.Fsync event = new StoreEvents.Fsync();
+		event.begin();
+		long start = System.nanoTime();
+		fos.getChannel().force(false);
+		metrics.fsyncs.recordSince(start);
+		event.finish(path, size);
+	}
+
+	@Override
+	public void close() throws IOException {
+		sync();
+		out.close();
+	}
+
+	/**
+	 * Feeds every complete record of the log to sink, in write order. A record
+	 * torn by a crash ends the replay: one whose body runs past the end of
+	 * the file, or that fails a check with nothing but zeros after it. A
+	 * record failing a check anywhere else is corruption, and throws
+	 * IOException.
+	 */
+	static void replay(Path path, BiConsumer<String, String> sink) throws IOException {
+		long fileSize = Files.size(path);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			in.mark(8);
+			if (fileSize < 8 || in.readLong() != MAGIC) {
+				in.reset();
+				replayUnchecked(in, sink);
+				return;
+			}
+			CRC32 crc = new CRC32();
+			byte[] body = new byte[1024];
+			long pos = 8;
+			while (pos + HEADER <= fileSize) {
+				int length = in.readInt();
+				int check = in.readInt();
+				int sum = in.readInt();
+				boolean valid = length > 0 && check == ~length;
+				if (valid) {
+					if (length > fileSize - pos - HEADER)
+						return;
+					if (body.length < length)
+						body = new byte[Math.max(length, 2 * body.length)];
+					in.readFully(body, 0, length);
+					crc.reset();
+					crc.update(body, 0, length);
+					valid = (int) crc.getValue() == sum;
+				}
+				if (!valid) {
+					if (zeros(in))
+						return;
+					throw new IOException("Corrupt record at offset " + pos + " of " + path);
+				}
+				ByteBuffer buf = ByteBuffer.wrap(body, 0, length);
+				sink.accept(CharCodec.decode(buf), CharCodec.decode(buf));
+				pos += HEADER + length;
+			}
+		}
+	}
+
+	/** Whether the rest of in holds only zero bytes, as a preallocated tail does */
+	private static boolean zeros(DataInputStream in) throws IOException {
+		for (int b; (b = in.read()) >= 0;) {
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** Replays a log written before records carried checksums */
+	private static void replayUnchecked(DataInputStream in, BiConsumer<String, String> sink) throws IOException {
+		while (true) {
+			String key, value;
+			try {
+				key = CharCodec.read(in);
+				value = CharCodec.read(in);
+			} catch (EOFException e) {
+				return;
+			}
+			sink.accept(key, value);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import core.KVPair;
+
+/**
+ * Client for {@link KVServer}. A client owns one connection and is not
+ * thread-safe.
+ * 
+ * Besides the blocking calls, {@link #pipeline()} queues any number of
+ * requests, sends them in one write and then reads all responses, paying a
+ * single round trip for the whole batch.
+ */
+public class KVClient implements Closeable {
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	/** Connects to a server on the loopback interface */
+	public KVClient(int port) throws IOException {
+		this(InetAddress.getLoopbackAddress().getHostAddress(), port);
+	}
+
+	public KVClient(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+	}
+
+	public void ping() throws IOException {
+		out.writeByte(Protocol.PING);
+		out.flush();
+		Protocol.expectOk(in);
+	}
+
+	/** Returns the value of key, or null if it is missing */
+	public char[] read(char[] key) throws IOException {
+		sendGet(key);
+		out.flush();
+		return readValue();
+	}
+
+	public void write(char[] key, char[] value) throws IOException {
+		sendPut(key, value);
+		out.flush();
+		Protocol.expectOk(in);
+	}
+
+	/** Values of up to {@link Protocol#MAX_BATCH} keys, null where missing */
+	public char[][] readMany(char[][] keys) throws IOException {
+		Protocol.checkBatch(keys.length);
+		out.writeByte(Protocol.MGET);
+		out.writeInt(keys.length);
+		for (char[] k : keys)
+			Protocol.writeChars(out, k);
+		out.flush();
+		Protocol.expectOk(in);
+		char[][] values = new char[Protocol.readCount(in)][];
+		for (int i = 0; i < values.length; i++)
+			values[i] = readValue();
+		return values;
+	}
+
+	/** Writes up to {@link Protocol#MAX_BATCH} pairs */
+	public void writeMany(KVPair[] pairs) throws IOException {
+		Protocol.checkBatch(pairs.length);
+		out.writeByte(Protocol.MPUT);
+		out.writeInt(pairs.length);
+		for (KVPair p : pairs) {
+			Protocol.writeChars(out, p.element1);
+			Protocol.writeChars(out, p.element2);
+		}
+		out.flush();
+		Protocol.expectOk(in);
+	}
+
+	/** Returns every pair whose key starts with prefix, in key order */
+	public List<KVPair> readPrefix(char[] prefix) throws IOException {
+		out.writeByte(Protocol.PREFIX);
+		Protocol.writeChars(out, prefix);
+		out.flush();
+		Protocol.expectOk(in);
+		List<KVPair> pairs = new ArrayList<KVPair>();
+		for (int n = Protocol.readCount(in); n > 0; n = Protocol.readCount(in)) {
+			for (int i = 0; i < n; i++) {
+				char[] key = Protocol.readChars(in);
+				pairs.add(new KVPair(key, Protocol.readChars(in)));
+			}
+		}
+		return pairs;
+	}
+
+	public void commit() throws IOException {
+		out.writeByte(Protocol.COMMIT);
+		out.flush();
+		Protocol.expectOk(in);
+	}
+
+	private void sendGet(char[] key) throws IOException {
+		out.writeByte(Protocol.GET);
+		Protocol.writeChars(out, key);
+	}
+
+	private void sendPut(char[] key, char[] value) throws IOException {
+		out.writeByte(Protocol.PUT);
+		Protocol.writeChars(out, key);
+		Protocol.writeChars(out, value);
+	}
+
+	private char[] readValue() throws IOException {
+		return Protocol.readStatus(in) == Protocol.FOUND ? Protocol.readChars(in) : null;
+	}
+
+	/** Starts a batch of pipelined requests */
+	public Pipeline pipeline() {
+		return new Pipeline();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Queues reads and writes without waiting for their responses. The
+	 * requests are only sent by {@link #sync()}. Responses are not read until
+	 * then either, so a pipeline should stay well within what the socket
+	 * buffers of both ends can hold; thousands of small requests are fine.
+	 */
+	public final class Pipeline {
+		/** For each queued request, whether it is a read */
+		private final List<Boolean> reads = new ArrayList<Boolean>();
+
+		private Pipeline() {
+		}
+
+		public Pipeline read(char[] key) throws IOException {
+			sendGet(key);
+			reads.add(true);
+			return this;
+		}
+
+		public Pipeline write(char[] key, char[] value) throws IOException {
+			sendPut(key, value);
+			reads.add(false);
+			return this;
+		}
+
+		/**
+		 * Sends all queued requests and collects their responses: the value, or
+		 * null, for each read, in the order the reads were queued.
+		 */
+		public List<char[]> sync() throws IOException {
+			out.flush();
+			List<char[]> values = new ArrayList<char[]>();
+			for (boolean read : reads) {
+				if (read)
+					values.add(readValue());
+				else
+					Protocol.expectOk(in);
+			}
+			reads.clear();
+			return values;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import core.KVPair;
+import core.KeyValue;
+import core.ReplicationLog;
+import core.SimpleKV;
+import core.StoreOptions;
+
+/**
+ * Serves a {@link KeyValue} over TCP using the {@link Protocol} wire format.
+ * 
+ * Every connection gets its own thread, virtual where the runtime supports
+ * it. Requests are read and answered in a loop; responses are buffered and
+ * only flushed once no further pipelined request is waiting in the input
+ * buffer, so a burst of requests is answered with a single write.
+ * 
+ * A {@link SimpleKV} store with a {@link ReplicationLog} can also be
+ * followed by {@link Replica}s.
+ */
+public class KVServer implements Closeable {
+
+	/** Longest a follower may wait in one TAIL request */
+	private static final long MAX_TAIL_MILLIS = 10_000;
+
+	private final KeyValue store;
+	private final ServerSocket socket;
+	private final ExecutorService connections;
+	private final Thread acceptor;
+	private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * Starts serving store on the given port of the loopback interface; port 0
+	 * picks a free one, see {@link #port()}.
+	 */
+	public KVServer(KeyValue store, int port) throws IOException {
+		this(store, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	public KVServer(KeyValue store, InetSocketAddress address) throws IOException {
+		this.store = store;
+		this.socket = new ServerSocket();
+		socket.bind(address);
+		this.connections = newConnectionExecutor();
+		this.acceptor = new Thread(this::acceptLoop, "rkv-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private static ExecutorService newConnectionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "rkv-conn");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	public int port() {
+		return socket.getLocalPort();
+	}
+
+	private void acceptLoop() {
+		while (!closed) {
+			try {
+				Socket s = socket.accept();
+				s.setTcpNoDelay(true);
+				connections.execute(() -> serve(s));
+			} catch (IOException e) {
+				if (!closed)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(Socket s) {
+		open.add(s);
+		try (Socket conn = s;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream(), 64 * 1024));
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(conn.getOutputStream(), 64 * 1024))) {
+			while (!closed) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+				try {
+					handle(op, in, out);
+				} catch (IOException e) {
+					throw e;
+				} catch (UncheckedIOException e) {
+					// the store refused the request, e.g. a write after a failed flush
+					error(out, e.getCause());
+				} catch (RuntimeException e) {
+					error(out, e);
+				}
+				if (in.available() == 0)
+					out.flush();
+			}
+		} catch (SocketException e) {
+			// peer went away
+		} catch (ProtocolException e) {
+			// malformed request; the rest of the stream cannot be framed
+		} catch (IOException e) {
+			if (!closed)
+				e.printStackTrace();
+		} finally {
+			open.remove(s);
+		}
+	}
+
+	private static void error(DataOutputStream out, Exception e) throws IOException {
+		out.writeByte(Protocol.ERROR);
+		Protocol.writeChars(out, String.valueOf(e.getMessage()).toCharArray());
+	}
+
+	private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+		switch (op) {
+		case Protocol.PING:
+			out.writeByte(Protocol.OK);
+			break;
+		case Protocol.GET:
+			writeValue(out, store.read(Protocol.readChars(in)));
+			break;
+		case Protocol.PUT: {
+			char[] key = Protocol.readChars(in);
+			store.write(key, Protocol.readChars(in));
+			out.writeByte(Protocol.OK);
+			break;
+		}
+		case Protocol.MGET: {
+			char[][] keys = new char[Protocol.readCount(in)][];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = Protocol.readChars(in);
+			char[][] values = store.readMany(keys);
+			out.writeByte(Protocol.OK);
+			out.writeInt(values.length);
+			for (char[] v : values)
+				writeValue(out, v);
+			break;
+		}
+		case Protocol.MPUT: {
+			KVPair[] pairs = new KVPair[Protocol.readCount(in)];
+			for (int i = 0; i < pairs.length; i++) {
+				char[] key = Protocol.readChars(in);
+				pairs[i] = new KVPair(key, Protocol.readChars(in));
+			}
+			store.writeMany(pairs);
+			out.writeByte(Protocol.OK);
+			break;
+		}
+		case Protocol.PREFIX: {
+			Iterator<KVPair> it = store.readPrefix(Protocol.readChars(in));
+			out.writeByte(Protocol.OK);
+			Protocol.writeChunks(out, it);
+			break;
+		}
+		case Protocol.COMMIT:
+			store.commit();
+			out.writeByte(Protocol.OK);
+			break;
+		case Protocol.TAIL: {
+			long epoch = in.readLong();
+			long after = in.readLong();
+			int max = Protocol.readCount(in);
+			long wait = Math.min(in.readLong(), MAX_TAIL_MILLIS);
+			ReplicationLog log = replicationLog();
+			ReplicationLog.Batch batch;
+			try {
+				batch = epoch == log.epoch() ? log.read(after, max, wait) : null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while tailing", e);
+			}
+			if (batch == null) {
+				out.writeByte(Protocol.NOT_FOUND);
+				break;
+			}
+			out.writeByte(Protocol.OK);
+			out.writeLong(batch.committed);
+			out.writeLong(batch.last);
+			out.writeInt(batch.changes.size());
+			for (ReplicationLog.Change c : batch.changes) {
+				out.writeLong(c.seq);
+				out.writeLong(c.commitMillis);
+				Protocol.writeChars(out, c.key);
+				writeValue(out, c.value);
+			}
+			break;
+		}
+		case Protocol.SYNC: {
+			ReplicationLog log = replicationLog();
+			try (ReplicationLog.Checkpoint checkpoint = log.checkpoint()) {
+				out.writeByte(Protocol.OK);
+				out.writeLong(log.epoch());
+				out.writeLong(checkpoint.seq);
+				Protocol.writeChunks(out, checkpoint);
+			}
+			break;
+		}
+		default:
+			throw new ProtocolException("Unknown opcode " + op);
+		}
+	}
+
+	private ReplicationLog replicationLog() {
+		ReplicationLog log = store instanceof SimpleKV ? ((SimpleKV) store).replicationLog() : null;
+		if (log == null)
+			throw new IllegalStateException("Store keeps no replication log");
+		return log;
+	}
+
+	private static void writeValue(DataOutputStream out, char[] value) throws IOException {
+		if (value == null) {
+			out.writeByte(Protocol.NOT_FOUND);
+		} else {
+			out.writeByte(Protocol.FOUND);
+			Protocol.writeChars(out, value);
+		}
+	}
+
+	/** Stops accepting, drops open connections and waits for their threads */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		socket.close();
+		for (Socket s : open)
+			s.close();
+		connections.shutdownNow();
+		try {
+			connections.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Usage: KVServer dataDir [port]. The store keeps a replication log, so
+	 * {@link Replica} processes can follow it.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: KVServer dataDir [port]");
+			System.exit(2);
+		}
+		StoreOptions options = new StoreOptions();
+		options.replicationLogBytes = 64L << 20;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(args[0], options);
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 7379;
+		KVServer server = new KVServer(kv, port);
+		System.out.println("Serving " + args[0] + " on port " + server.port());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			kv.close();
+		}));
+		server.acceptor.join();
+	}
+}
@@ -0,0 +1,157 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import core.KVPair;
+
+/**
+ * Wire format shared by {@link KVServer} and {@link KVClient}.
+ * 
+ * A request is an opcode byte followed by its arguments; a response is a
+ * status byte followed by its payload. Strings travel as an int char count
+ * and big-endian UTF-16 chars, so any char[] round-trips exactly. Responses
+ * come back in request order, so a client may send any number of requests
+ * before reading the first response.
+ * 
+ * <pre>
+ * PING                                      -> OK
+ * GET    key                                -> FOUND value | NOT_FOUND
+ * PUT    key value                          -> OK
+ * MGET   n key*n                            -> OK n (FOUND value | NOT_FOUND)*n
+ * MPUT   n (key value)*n                    -> OK
+ * PREFIX prefix                             -> OK (n (key value)*n)* 0
+ * COMMIT                                    -> OK
+ * TAIL   epoch after max waitMillis         -> OK committed last n (seq millis key (FOUND value | NOT_FOUND))*n
+ *                                            | NOT_FOUND
+ * SYNC                                      -> OK epoch seq (n (key value)*n)* 0
+ * </pre>
+ * 
+ * PREFIX streams its pairs in chunks ending with an empty one, so that the
+ * server need not hold the whole result.
+ * 
+ * TAIL and SYNC serve {@link Replica}s from a store with a replication log.
+ * TAIL waits up to waitMillis for writes committed after number after, and
+ * answers NOT_FOUND when the follower has to copy the whole store again with
+ * SYNC, which streams it in chunks ending with an empty one. In TAIL a
+ * missing value stands for a delete, and epoch, seq, after and millis are
+ * longs.
+ * 
+ * Counts n and max are at most {@link #MAX_BATCH}. Any request may instead
+ * be answered with ERROR message, such as a PUT, MPUT or COMMIT that the
+ * store failed to apply; a malformed one, with a bad count, length
+ * or opcode, makes the server drop the connection, since the request
+ * boundaries are lost.
+ */
+final class Protocol {
+
+	static final byte PING = 1;
+	static final byte GET = 2;
+	static final byte PUT = 3;
+	static final byte MGET = 4;
+	static final byte MPUT = 5;
+	static final byte PREFIX = 6;
+	static final byte COMMIT = 7;
+	static final byte TAIL = 8;
+	static final byte SYNC = 9;
+
+	static final byte OK = 0;
+	static final byte FOUND = 1;
+	static final byte NOT_FOUND = 2;
+	static final byte ERROR = 3;
+
+	/** Largest string accepted off the wire, guarding against corrupt lengths */
+	static final int MAX_CHARS = 256 << 20;
+	/** Most keys or pairs in one request or chunk */
+	static final int MAX_BATCH = 1 << 16;
+	/** Pairs per chunk of a streamed response */
+	static final int CHUNK = 1024;
+
+	private Protocol() {
+	}
+
+	static void writeChars(DataOutputStream out, char[] chars) throws IOException {
+		byte[] bytes = new byte[chars.length * 2];
+		for (int i = 0; i < chars.length; i++) {
+			bytes[2 * i] = (byte) (chars[i] >>> 8);
+			bytes[2 * i + 1] = (byte) chars[i];
+		}
+		out.writeInt(chars.length);
+		out.write(bytes);
+	}
+
+	static char[] readChars(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > MAX_CHARS)
+			throw new ProtocolException("Bad string length " + len);
+		byte[] bytes = new byte[len * 2];
+		in.readFully(bytes);
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++)
+			chars[i] = (char) (((bytes[2 * i] & 0xff) << 8) | (bytes[2 * i + 1] & 0xff));
+		return chars;
+	}
+
+	/** Reads a count of keys or pairs, at most {@link #MAX_BATCH} */
+	static int readCount(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n < 0 || n > MAX_BATCH)
+			throw new ProtocolException("Bad count " + n);
+		return n;
+	}
+
+	/** Checks that a request fits in one frame */
+	static void checkBatch(int n) {
+		if (n > MAX_BATCH)
+			throw new IllegalArgumentException(n + " items, at most " + MAX_BATCH + " allowed per request");
+	}
+
+	/**
+	 * Streams pairs in chunks of up to {@link #CHUNK}, ending with an empty
+	 * one. The response has begun, so a failure of the iterator cannot be
+	 * answered with ERROR; it is raised as IOException, dropping the
+	 * connection.
+	 */
+	static void writeChunks(DataOutputStream out, Iterator<KVPair> it) throws IOException {
+		List<KVPair> chunk = new ArrayList<KVPair>(CHUNK);
+		try {
+			while (true) {
+				boolean more = it.hasNext();
+				if (more)
+					chunk.add(it.next());
+				if (chunk.size() == CHUNK || (!more && !chunk.isEmpty())) {
+					out.writeInt(chunk.size());
+					for (KVPair p : chunk) {
+						writeChars(out, p.element1);
+						writeChars(out, p.element2);
+					}
+					chunk.clear();
+				}
+				if (!more)
+					break;
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Stream failed", e);
+		}
+		out.writeInt(0);
+	}
+
+	/** Reads the status byte, raising an ERROR response as an exception */
+	static byte readStatus(DataInputStream in) throws IOException {
+		byte status = in.readByte();
+		if (status == ERROR)
+			throw new IOException("Server error: " + new String(readChars(in)));
+		return status;
+	}
+
+	static void expectOk(DataInputStream in) throws IOException {
+		if (readStatus(in) != OK)
+			throw new EOFException("Unexpected response");
+	}
+}
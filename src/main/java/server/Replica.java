@@ -0,0 +1,244 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import core.KVPair;
+import core.ReplicationLog;
+import core.SimpleKV;
+import core.Snapshot;
+
+/**
+ * Follower of a {@link KVServer} whose store keeps a {@link ReplicationLog}.
+ * It copies the leader's store into a local {@link SimpleKV}, then tails the
+ * leader's committed writes and applies them in order, so that the local
+ * store can serve reads, typically through a {@link KVServer} of its own.
+ *
+ * A new follower, and one that fell further behind than the leader's log
+ * reaches or lost its leader to a restart, copies the store again. Local keys
+ * the leader no longer has are deleted as the copy goes; reads keep being
+ * served throughout. Writes made to the local store directly are not sent
+ * anywhere and may be overwritten.
+ *
+ * How far the follower is behind is recorded in the local store's
+ * {@link core.StoreMetrics}.
+ */
+public class Replica implements Closeable {
+
+	/** Most writes asked for per TAIL request */
+	private static final int BATCH = 1024;
+	/** How long a TAIL request waits for new writes */
+	private static final long POLL_MILLIS = 1000;
+	/** Pause before reconnecting to an unreachable leader */
+	private static final long RETRY_MILLIS = 1000;
+
+	private final SimpleKV local;
+	private final String host;
+	private final int port;
+	private final Thread thread;
+	private volatile Socket socket;
+	private volatile boolean closed;
+	/** Epoch of the leader's log, 0 before the first copy */
+	private long epoch;
+	private long applied;
+
+	/** Starts following the leader on the given port of the loopback interface */
+	public Replica(SimpleKV local, int leaderPort) {
+		this(local, InetAddress.getLoopbackAddress().getHostAddress(), leaderPort);
+	}
+
+	public Replica(SimpleKV local, String host, int port) {
+		this.local = local;
+		this.host = host;
+		this.port = port;
+		this.thread = new Thread(this::run, "rkv-replica");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Number of the last leader write applied locally, 0 before the first copy */
+	public synchronized long applied() {
+		return applied;
+	}
+
+	/**
+	 * Waits until the leader's write number seq has been applied locally.
+	 * Returns false if that did not happen within timeoutMillis.
+	 */
+	public synchronized boolean awaitApplied(long seq, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (long left = timeoutMillis; applied < seq; left = deadline - System.currentTimeMillis()) {
+			if (left <= 0)
+				return false;
+			wait(left);
+		}
+		return true;
+	}
+
+	private synchronized void advance(long epoch, long applied) {
+		this.epoch = epoch;
+		this.applied = applied;
+		notifyAll();
+	}
+
+	private void run() {
+		while (!closed) {
+			try (Socket s = new Socket(host, port);
+					DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(s.getOutputStream(), 64 * 1024))) {
+				socket = s;
+				s.setTcpNoDelay(true);
+				while (!closed)
+					tail(in, out);
+			} catch (IOException | UncheckedIOException e) {
+				if (closed)
+					return;
+				// leader down or restarting, or the local store refused a write; the
+				// batch was not marked applied, so it is asked for again shortly
+				try {
+					Thread.sleep(RETRY_MILLIS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the next batch of writes, or copies the store if the log cannot
+	 * serve them. A local write that fails leaves the batch unapplied and
+	 * propagates.
+	 */
+	private void tail(DataInputStream in, DataOutputStream out) throws IOException {
+		long e, after;
+		synchronized (this) {
+			e = epoch;
+			after = applied;
+		}
+		out.writeByte(Protocol.TAIL);
+		out.writeLong(e);
+		out.writeLong(after);
+		out.writeInt(BATCH);
+		out.writeLong(POLL_MILLIS);
+		out.flush();
+		if (Protocol.readStatus(in) == Protocol.NOT_FOUND) {
+			copy(in, out);
+			return;
+		}
+		long committed = in.readLong();
+		long last = in.readLong();
+		int n = Protocol.readCount(in);
+		List<KVPair> writes = new ArrayList<KVPair>();
+		long lastMillis = 0;
+		for (int i = 0; i < n; i++) {
+			in.readLong();
+			lastMillis = in.readLong();
+			char[] key = Protocol.readChars(in);
+			char[] value = Protocol.readStatus(in) == Protocol.FOUND ? Protocol.readChars(in) : null;
+			if (value != null) {
+				writes.add(new KVPair(key, value));
+				continue;
+			}
+			// keep the order of writes and deletes to the same key
+			flush(writes);
+			local.delete(key);
+		}
+		flush(writes);
+		advance(e, last);
+		local.metrics().recordReplicationLag(committed - last,
+				last < committed && lastMillis > 0 ? System.currentTimeMillis() - lastMillis : 0);
+	}
+
+	private void flush(List<KVPair> writes) {
+		if (!writes.isEmpty()) {
+			local.writeMany(writes.toArray(new KVPair[0]));
+			writes.clear();
+		}
+	}
+
+	/**
+	 * Copies the leader's whole store, deleting the local keys it does not
+	 * have. Both sides are streamed in key order, so they are compared as they
+	 * arrive. The copy counts only once complete; a local write that fails
+	 * propagates and leaves it to be started again.
+	 */
+	private void copy(DataInputStream in, DataOutputStream out) throws IOException {
+		out.writeByte(Protocol.SYNC);
+		out.flush();
+		Protocol.expectOk(in);
+		long e = in.readLong();
+		long seq = in.readLong();
+		try (Snapshot before = local.snapshot()) {
+			Iterator<KVPair> old = before.readRange(new char[0], null);
+			KVPair o = old.hasNext() ? old.next() : null;
+			for (int n = Protocol.readCount(in); n > 0; n = Protocol.readCount(in)) {
+				KVPair[] chunk = new KVPair[n];
+				for (int i = 0; i < n; i++) {
+					char[] key = Protocol.readChars(in);
+					chunk[i] = new KVPair(key, Protocol.readChars(in));
+				}
+				for (KVPair p : chunk) {
+					while (o != null && Arrays.compare(o.element1, p.element1) < 0) {
+						local.delete(o.element1);
+						o = old.hasNext() ? old.next() : null;
+					}
+					if (o != null && Arrays.equals(o.element1, p.element1))
+						o = old.hasNext() ? old.next() : null;
+				}
+				local.writeMany(chunk);
+			}
+			for (; o != null; o = old.hasNext() ? old.next() : null)
+				local.delete(o.element1);
+		}
+		advance(e, seq);
+	}
+
+	/** Stops following; the local store stays open */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		Socket s = socket;
+		if (s != null)
+			s.close();
+		thread.interrupt();
+		try {
+			thread.join(10_000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Usage: Replica leaderPort dataDir [port] */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: Replica leaderPort dataDir [port]");
+			System.exit(2);
+		}
+		SimpleKV kv = new SimpleKV().initAndMakeStore(args[1]);
+		Replica replica = new Replica(kv, Integer.parseInt(args[0]));
+		KVServer server = new KVServer(kv, args.length > 2 ? Integer.parseInt(args[2]) : 0);
+		System.out.println("Following port " + args[0] + ", serving " + args[1] + " on port " + server.port());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+				replica.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			kv.close();
+		}));
+		replica.thread.join();
+	}
+}
@@ -2,10 +2,19 @@ package rarmanKV;
 
 import org.junit.Before;
 import static org.junit.jupiter.api.Assertions.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.jupiter.api.Test;
+import bench.LoadGenerator;
+import bench.Workload;
+import core.KVPair;
 import core.SimpleKV;
+import core.StoreMetrics;
+import core.StoreOptions;
 
 class BasicFunctionalityTest {
 	private SimpleKV kv = new SimpleKV();
@@ -24,6 +33,185 @@ class BasicFunctionalityTest {
 		assertArrayEquals(val, actual);
 	}
 	
+	@Test
+	void testPrefixScan() {
+		kv.write("acme.alice".toCharArray(), "1".toCharArray());
+		kv.write("acme.bob".toCharArray(), "2".toCharArray());
+		kv.write("acmf.carol".toCharArray(), "3".toCharArray());
+		kv.write("acm".toCharArray(), "4".toCharArray());
+
+		List<String> found = new ArrayList<>();
+		Iterator<KVPair> it = kv.readPrefix("acme.".toCharArray());
+		while (it.hasNext()) {
+			KVPair p = it.next();
+			found.add(new String(p.element1) + "=" + new String(p.element2));
+		}
+		assertEquals(Arrays.asList("acme.alice=1", "acme.bob=2"), found);
+	}
+
+	@Test
+	void testReadInto() {
+		kv.write("k".toCharArray(), "value".toCharArray());
+		CharBuffer chars = CharBuffer.allocate(16);
+		assertEquals(5, kv.readInto("k".toCharArray(), chars));
+		chars.flip();
+		assertEquals("value", chars.toString());
+
+		ByteBuffer bytes = ByteBuffer.allocateDirect(16);
+		assertEquals(5, kv.readInto("k".toCharArray(), bytes));
+		bytes.flip();
+		assertEquals("value", bytes.asCharBuffer().toString());
+
+		CharBuffer small = CharBuffer.allocate(2);
+		assertEquals(5, kv.readInto("k".toCharArray(), small));
+		assertEquals(0, small.position());
+		assertEquals(-1, kv.readInto("missing".toCharArray(), chars));
+	}
+
+	@Test
+	void testMetrics() {
+		kv.write("a".toCharArray(), "1".toCharArray());
+		kv.read("a".toCharArray());
+		kv.read("missing".toCharArray());
+		kv.commit();
+		StoreMetrics m = kv.metrics();
+		assertEquals(2, m.getReadCount());
+		assertEquals(1, m.getWriteCount());
+		assertEquals(1, m.getCacheHits());
+		assertEquals(1, m.getCacheMisses());
+		assertTrue(m.getFsyncCount() >= 1);
+		assertTrue(m.getBytesWritten() > 0);
+	}
+
+	@Test
+	void testScanResistance() {
+		StoreOptions options = new StoreOptions();
+		options.cacheEntries = 100;
+		SimpleKV store = new SimpleKV().initAndMakeStore("", options);
+		for (int i = 0; i < 10000; i++)
+			store.write(("k" + i).toCharArray(), ("v" + i).toCharArray());
+		for (int round = 0; round < 5; round++)
+			for (int i = 0; i < 50; i++)
+				store.read(("k" + i).toCharArray());
+		// a one-off scan interleaved with the usual point lookups
+		for (int i = 1000; i < 10000; i++) {
+			store.read(("k" + i).toCharArray());
+			if (i % 4 == 0)
+				store.read(("k" + i / 4 % 50).toCharArray());
+		}
+
+		long hits = store.metrics().getCacheHits();
+		for (int i = 0; i < 50; i++)
+			store.read(("k" + i).toCharArray());
+		assertEquals(hits + 50, store.metrics().getCacheHits());
+		store.close();
+	}
+
+	@Test
+	void testWorkloads() throws InterruptedException {
+		for (char w = 'A'; w <= 'F'; w++) {
+			StoreOptions options = new StoreOptions();
+			options.engine = StoreOptions.Engine.MEMORY;
+			options.jmx = false;
+			SimpleKV store = new SimpleKV().initAndMakeStore("", options);
+			LoadGenerator generator = new LoadGenerator(store, Workload.standard(w), 1000, 2, 16, 20);
+			assertEquals(1000, generator.load().operations());
+			LoadGenerator.Report report = generator.run(2000);
+			assertEquals(2000, report.operations(), "workload " + w);
+			assertTrue(report.latencies(LoadGenerator.Operation.READ) != null
+					|| report.latencies(LoadGenerator.Operation.SCAN) != null);
+			int records = 0;
+			for (Iterator<KVPair> it = store.readPrefix("user".toCharArray()); it.hasNext(); it.next())
+				records++;
+			if (report.latencies(LoadGenerator.Operation.INSERT) != null)
+				assertEquals(1000 + report.latencies(LoadGenerator.Operation.INSERT).count(), records);
+			else
+				assertEquals(1000, records);
+			store.close();
+		}
+	}
+
+	@Test
+	void testAsync() throws Exception {
+		SimpleKV store = new SimpleKV().initAndMakeStore("");
+		List<CompletableFuture<Void>> writes = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			writes.add(store.writeAsync("k".toCharArray(), ("v" + i).toCharArray()));
+		// issued after the writes, so it sees the last of them
+		assertArrayEquals("v99".toCharArray(), store.readAsync("k".toCharArray()).get());
+		for (CompletableFuture<Void> w : writes)
+			assertTrue(w.isDone());
+		assertNull(store.readAsync("missing".toCharArray()).get());
+		store.delete("k".toCharArray());
+		assertNull(store.readAsync("k".toCharArray()).get());
+		store.close();
+	}
+
+	@Test
+	void testAsyncReadAfterWrite() throws Exception {
+		StoreOptions o = new StoreOptions();
+		// room for one key, so that writing another evicts k
+		o.cacheEntries = 1;
+		SimpleKV store = new SimpleKV().initAndMakeStore("", o);
+		store.write("k".toCharArray(), "initial".toCharArray());
+		AtomicBoolean done = new AtomicBoolean();
+		// keeps a lookup of k in flight at all times
+		Thread reader = new Thread(() -> {
+			while (!done.get())
+				store.readAsync("k".toCharArray()).join();
+		});
+		reader.start();
+		try {
+			for (int i = 0; i < 2000; i++) {
+				String v = "value" + i;
+				store.write("k".toCharArray(), v.toCharArray());
+				store.write("other".toCharArray(), v.toCharArray());
+				assertEquals(v, new String(store.readAsync("k".toCharArray()).get()));
+			}
+		} finally {
+			done.set(true);
+			reader.join();
+		}
+		store.close();
+	}
+
+	@Test
+	void testReadAfterRejectedWrite() throws Exception {
+		StoreOptions o = new StoreOptions();
+		o.cacheEntries = 4;
+		SimpleKV store = new SimpleKV().initAndMakeStore("", o);
+		String[] hot = { "h0", "h1", "h2", "h3" };
+		for (String h : hot)
+			store.write(h.toCharArray(), h.toCharArray());
+		store.write("k".toCharArray(), "initial".toCharArray());
+		AtomicBoolean done = new AtomicBoolean();
+		// keeps the cache full of keys more popular than k, so admission may reject writes to k
+		Thread warmer = new Thread(() -> {
+			while (!done.get()) {
+				for (String h : hot)
+					store.read(h.toCharArray());
+			}
+		});
+		Thread reader = new Thread(() -> {
+			while (!done.get())
+				store.read("k".toCharArray());
+		});
+		warmer.start();
+		reader.start();
+		try {
+			for (int i = 0; i < 2000; i++) {
+				String v = "value" + i;
+				store.write("k".toCharArray(), v.toCharArray());
+				assertEquals(v, new String(store.read("k".toCharArray())));
+			}
+		} finally {
+			done.set(true);
+			warmer.join();
+			reader.join();
+		}
+		store.close();
+	}
+
 	@Test
 	void testBigReadWrite() {
 		Set<char[]> written = new HashSet<>();
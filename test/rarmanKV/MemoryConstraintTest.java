@@ -1,9 +1,18 @@
 package rarmanKV;
 
+import static org.junit.jupiter.api.Assertions.*;
+
 import java.security.SecureRandom;
+import java.util.Map;
 import org.junit.jupiter.api.Test;
+import core.FrozenTrie;
+import core.Footprint;
+import core.MRUMap;
 import core.SimpleKV;
+import core.StoreOptions;
+import core.Trie;
 import junit.framework.Assert;
+import rkv.TrieMap;
 
 class MemoryConstraintTest {
 	private final float MEMORY_LIMIT_IN_MB = 1000;
@@ -49,4 +58,97 @@ class MemoryConstraintTest {
         }
         return memAfter;
     }
+
+    /**
+     * Entry counts of the footprint suite, from -Drkv.footprint.entries; the
+     * default stays within the heap of a test JVM. 10M entries take a few GB.
+     */
+    private static int[] footprintSizes() {
+        String[] s = System.getProperty("rkv.footprint.entries", "100000,1000000").split(",");
+        int[] sizes = new int[s.length];
+        for (int i = 0; i < s.length; i++)
+            sizes[i] = Integer.parseInt(s[i].trim());
+        return sizes;
+    }
+
+    /** Keys spread like hashes, as a store sees them */
+    private static String key(int i) {
+        return "key" + Integer.toHexString(i * 0x9E3779B1);
+    }
+
+    private static void assertPerEntry(String structure, long bytes, int entries, double budget) {
+        double perEntry = (double) bytes / entries;
+        System.out.printf("%s at %d entries: %.1f bytes/entry (budget %.1f)%n", structure, entries, perEntry, budget);
+        assertTrue(perEntry <= budget, structure + " grew to " + perEntry + " bytes/entry, budget " + budget);
+    }
+
+    /**
+     * Bytes per entry of every structure, estimated by its own accounting,
+     * against budgets a little above what they take today.
+     */
+    @Test public void testFootprint() {
+        for (int n : footprintSizes()) {
+            TrieMap<String, String> memtable = new TrieMap<String, String>();
+            for (int i = 0; i < n; i++)
+                memtable.put(key(i), "value" + i);
+            assertPerEntry("TrieMap", memtable.retainedBytes(Footprint::string, Footprint::string), n, 180);
+            memtable = null;
+
+            MRUMap<String, String> cache = new MRUMap<String, String>(n, true);
+            for (int i = 0; i < n; i++)
+                cache.put(key(i), "value" + i);
+            assertPerEntry("MRUMap", cache.retainedBytes(), n, 180);
+            cache = null;
+
+            // a prefix table: dense numeric prefixes sharing a few values
+            Trie<String> trie = new Trie<String>();
+            for (int i = 0; i < n; i++)
+                trie.put(Integer.toString(1_000_000 + i), i % 2 == 0 ? "even" : "odd");
+            assertPerEntry("Trie", trie.retainedBytes(), n, 140);
+            FrozenTrie<String> frozen = trie.freeze();
+            trie = null;
+            assertPerEntry("FrozenTrie", frozen.retainedBytes(), n, 13);
+            frozen = null;
+
+            for (StoreOptions.Engine engine : new StoreOptions.Engine[] { StoreOptions.Engine.HASH, StoreOptions.Engine.LSM }) {
+                StoreOptions options = new StoreOptions();
+                options.engine = engine;
+                options.jmx = false;
+                SimpleKV kv = new SimpleKV().initAndMakeStore("", options);
+                for (int i = 0; i < n; i++)
+                    kv.write(key(i).toCharArray(), ("value" + i).toCharArray());
+                kv.commit();
+                Map<String, Long> usage = kv.memoryUsage();
+                if (engine == StoreOptions.Engine.HASH) {
+                    assertPerEntry("HASH index", usage.get("index"), n, 155);
+                } else {
+                    assertPerEntry("LSM index", usage.get("index"), n, 1);
+                    assertPerEntry("LSM filters", usage.get("filters"), n, 1.5);
+                    // the live and the flushing memtable, charged by the tree at about
+                    // two thirds of what they take
+                    assertTrue(usage.get("memtable") <= 3 * options.memtableBytes, "memtable " + usage.get("memtable"));
+                    assertTrue(usage.get("blockCache") <= options.blockCacheBytes);
+                }
+                assertTrue(usage.get("cache") <= 300L * options.cacheEntries, "cache " + usage.get("cache"));
+                kv.close();
+            }
+        }
+    }
+
+    /** The estimates agree with what the heap actually grows by */
+    @Test public void testFootprintEstimate() {
+        int n = 200000;
+        TrieMap<String, String> memtable = new TrieMap<String, String>();
+        for (int i = 0; i < n; i++)
+            memtable.put(key(i), "value" + i);
+        long estimated = memtable.retainedBytes(Footprint::string, Footprint::string);
+        // measured by dropping the map, so that garbage left by earlier work
+        // is gone from both readings
+        long with = getMemoryFootprint();
+        assertEquals(n, memtable.size());
+        memtable = null;
+        long measured = with - getMemoryFootprint();
+        System.out.println("TrieMap measured " + measured + " bytes, estimated " + estimated);
+        assertEquals(1.0, (double) estimated / measured, 0.25);
+    }
 }
@@ -0,0 +1,754 @@
+package rarmanKV;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import core.KVPair;
+import core.KeyValue;
+import core.ShardedKV;
+import core.Snapshot;
+import core.SimpleKV;
+import core.StoreOptions;
+
+class PersistenceTest {
+
+	/** Small tables so that a few thousand writes flush and compact */
+	private StoreOptions smallOptions() {
+		StoreOptions o = new StoreOptions();
+		o.memtableBytes = 64 << 10;
+		o.level1Bytes = 256 << 10;
+		o.targetTableBytes = 64 << 10;
+		return o;
+	}
+
+	private TreeMap<String, String> fill(SimpleKV kv) {
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		Random random = new Random(42);
+		for (int i = 0; i < 50000; i++) {
+			String k = "key" + random.nextInt(10000);
+			String v = "value" + i;
+			kv.write(k.toCharArray(), v.toCharArray());
+			expected.put(k, v);
+		}
+		return expected;
+	}
+
+	@Test
+	void testReopen() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		TreeMap<String, String> expected = fill(kv);
+		kv.commit();
+		kv.close();
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		for (Map.Entry<String, String> e : expected.entrySet())
+			assertArrayEquals(e.getValue().toCharArray(), kv.read(e.getKey().toCharArray()));
+		assertNull(kv.read("missing".toCharArray()));
+		kv.close();
+	}
+
+	/** The only write-ahead log under dir */
+	private static Path log(Path dir) throws Exception {
+		try (Stream<Path> files = Files.walk(dir)) {
+			List<Path> logs = files.filter(p -> p.toString().endsWith(".log")).collect(Collectors.toList());
+			assertEquals(1, logs.size());
+			return logs.get(0);
+		}
+	}
+
+	@Test
+	void testLogChecksums() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString());
+		for (int i = 0; i < 100; i++)
+			kv.write(("key" + i).toCharArray(), ("value" + i).toCharArray());
+		kv.close();
+
+		// the last record torn by a crash, then the zeros of a preallocated tail
+		Path log = log(dir);
+		byte[] clean = Files.readAllBytes(log);
+		byte[] torn = new byte[clean.length + 64];
+		System.arraycopy(clean, 0, torn, 0, clean.length - 5);
+		Files.write(log, torn);
+		kv = new SimpleKV().initAndMakeStore(dir.toString());
+		for (int i = 0; i < 99; i++)
+			assertArrayEquals(("value" + i).toCharArray(), kv.read(("key" + i).toCharArray()));
+		assertNull(kv.read("key99".toCharArray()));
+		for (int i = 0; i < 100; i++)
+			kv.write(("key" + i).toCharArray(), "changed".toCharArray());
+		kv.close();
+
+		// damage in the middle of the log is not mistaken for its end
+		log = log(dir);
+		byte[] damaged = Files.readAllBytes(log);
+		damaged[damaged.length / 2] ^= 0x55;
+		Files.write(log, damaged);
+		assertThrows(UncheckedIOException.class, () -> new SimpleKV().initAndMakeStore(dir.toString()));
+	}
+
+	/** The files under dir whose names end with suffix */
+	private static List<Path> files(Path dir, String suffix) throws Exception {
+		try (Stream<Path> files = Files.walk(dir)) {
+			return files.filter(p -> p.toString().endsWith(suffix)).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	void testDamagedFilters() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		TreeMap<String, String> expected = fill(kv);
+		kv.close();
+
+		// truncate one filter and clear the bits of another, keeping its length
+		List<Path> filters = files(dir, ".bf");
+		assertTrue(filters.size() >= 2);
+		Path truncated = filters.get(0), cleared = filters.get(1);
+		long size = Files.size(truncated);
+		byte[] bytes = Files.readAllBytes(truncated);
+		Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+		bytes = Files.readAllBytes(cleared);
+		Arrays.fill(bytes, 8, bytes.length - 4, (byte) 0);
+		Files.write(cleared, bytes);
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		for (Map.Entry<String, String> e : expected.entrySet())
+			assertArrayEquals(e.getValue().toCharArray(), kv.read(e.getKey().toCharArray()));
+		kv.close();
+		// rebuilt and saved again, unless a compaction has since replaced the table
+		assertTrue(!Files.exists(truncated) || Files.size(truncated) == size);
+	}
+
+	@Test
+	void testHints() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		TreeMap<String, String> expected = fill(kv);
+		kv.close();
+		List<Path> hints = files(dir, ".hint");
+		assertTrue(hints.size() >= 3);
+		Map<Path, byte[]> saved = new TreeMap<Path, byte[]>();
+		for (Path h : hints)
+			saved.put(h, Files.readAllBytes(h));
+
+		// one hint torn, one with a damaged key, one missing; the others open as they are
+		byte[] torn = saved.get(hints.get(0));
+		Files.write(hints.get(0), Arrays.copyOf(torn, torn.length - 3));
+		byte[] damaged = saved.get(hints.get(1)).clone();
+		damaged[damaged.length / 2] ^= 1;
+		Files.write(hints.get(1), damaged);
+		Files.delete(hints.get(2));
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		for (Map.Entry<String, String> e : expected.entrySet())
+			assertArrayEquals(e.getValue().toCharArray(), kv.read(e.getKey().toCharArray()));
+		kv.close();
+		// rebuilt from the data exactly as they were, unless a compaction has since replaced the table
+		for (Map.Entry<Path, byte[]> e : saved.entrySet()) {
+			if (Files.exists(e.getKey().resolveSibling(e.getKey().getFileName().toString().replace(".hint", ".sst"))))
+				assertArrayEquals(e.getValue(), Files.readAllBytes(e.getKey()), e.getKey().toString());
+		}
+	}
+
+	@Test
+	void testBlockCache() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		o.blockBytes = 256;
+		o.cacheEntries = 16;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		TreeMap<String, String> expected = fill(kv);
+		kv.close();
+
+		// every table numbers its blocks from 0; each must get its own
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		for (int pass = 0; pass < 2; pass++) {
+			for (Map.Entry<String, String> e : expected.entrySet())
+				assertArrayEquals(e.getValue().toCharArray(), kv.read(e.getKey().toCharArray()));
+		}
+		assertTrue(kv.metrics().getBlockCacheHits() > expected.size() / 2);
+		long misses = kv.metrics().getBlockCacheMisses();
+		for (Map.Entry<String, String> e : expected.entrySet())
+			assertArrayEquals(e.getValue().toCharArray(), kv.read(e.getKey().toCharArray()));
+		assertEquals(misses, kv.metrics().getBlockCacheMisses());
+
+		// a scan that does not fill the cache evicts none of the blocks read above
+		Iterator<KVPair> it = kv.readRange("key".toCharArray(), null, false);
+		while (it.hasNext())
+			it.next();
+		misses = kv.metrics().getBlockCacheMisses();
+		for (Map.Entry<String, String> e : expected.entrySet())
+			assertArrayEquals(e.getValue().toCharArray(), kv.read(e.getKey().toCharArray()));
+		assertEquals(misses, kv.metrics().getBlockCacheMisses());
+		kv.close();
+	}
+
+	@Test
+	void testFlushFailure() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		// the first flush writes table 3, after logs 1 and 2; a directory in its way fails it
+		Path blocker = Files.createDirectory(dir.resolve("000003.sst"));
+		char[] value = new char[1000];
+		Arrays.fill(value, 'v');
+		UncheckedIOException failure = CompletableFuture.supplyAsync(() -> {
+			for (int i = 0; i < 10000; i++) {
+				try {
+					kv.write(("key" + i).toCharArray(), value);
+				} catch (UncheckedIOException e) {
+					return e;
+				}
+			}
+			return null;
+		}).get(1, TimeUnit.MINUTES);
+		assertNotNull(failure, "writes kept succeeding");
+		assertNotNull(failure.getCause().getCause());
+		// every other mutator is refused as well
+		assertThrows(UncheckedIOException.class, () -> kv.delete("key0".toCharArray()));
+		assertThrows(UncheckedIOException.class, () -> kv.deleteRange("key".toCharArray(), null));
+		assertThrows(UncheckedIOException.class,
+				() -> kv.writeMany(new KVPair[] { new KVPair("key0".toCharArray(), value) }));
+		kv.close();
+
+		// the frozen memtable's log was kept
+		Files.delete(blocker);
+		SimpleKV reopened = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		assertArrayEquals(value, reopened.read("key0".toCharArray()));
+		reopened.close();
+	}
+
+	@Test
+	void testCharsRoundTrip() throws Exception {
+		String[] samples = { "plain ascii", "caf\u00e9 \u00ff", "\u0000nul", "\ud800 lone surrogate", "\udfff\ud800",
+				"\u4e2d\u6587", "" };
+		Path dir = Files.createTempDirectory("rkv-test");
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		for (int i = 0; i < samples.length; i++)
+			kv.write(("k" + i + samples[i]).toCharArray(), samples[i].toCharArray());
+		kv.close();
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+		for (int i = 0; i < samples.length; i++)
+			assertArrayEquals(samples[i].toCharArray(), kv.read(("k" + i + samples[i]).toCharArray()));
+		kv.close();
+	}
+
+	@Test
+	void testReadRange() {
+		SimpleKV kv = new SimpleKV().initAndMakeStore("", smallOptions());
+		TreeMap<String, String> expected = fill(kv);
+		Iterator<KVPair> it = kv.readRange("key2".toCharArray(), "key3".toCharArray());
+		for (Map.Entry<String, String> e : expected.subMap("key2", "key3").entrySet()) {
+			assertTrue(it.hasNext());
+			KVPair p = it.next();
+			assertEquals(e.getKey(), new String(p.element1));
+			assertEquals(e.getValue(), new String(p.element2));
+		}
+		assertFalse(it.hasNext());
+		kv.close();
+	}
+
+	@Test
+	void testShardedReopen() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		ShardedKV kv = new ShardedKV(smallOptions()).initAndMakeStore(dir.toString());
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		for (int i = 0; i < 20000; i++) {
+			String k = "key" + (i * 7919 % 5000);
+			kv.write(k.toCharArray(), ("value" + i).toCharArray());
+			expected.put(k, "value" + i);
+		}
+		kv.commit();
+		kv.close();
+
+		StoreOptions other = smallOptions();
+		other.shards = 3;
+		kv = new ShardedKV(other).initAndMakeStore(dir.toString());
+		Iterator<KVPair> it = kv.readPrefix("key1".toCharArray());
+		for (Map.Entry<String, String> e : expected.subMap("key1", "key2").entrySet()) {
+			assertTrue(it.hasNext());
+			KVPair p = it.next();
+			assertEquals(e.getKey(), new String(p.element1));
+			assertEquals(e.getValue(), new String(p.element2));
+		}
+		assertFalse(it.hasNext());
+		assertArrayEquals("value19999".toCharArray(), kv.read(("key" + (19999 * 7919 % 5000)).toCharArray()));
+		kv.close();
+	}
+
+	@Test
+	void testShardedScratch() throws Exception {
+		StoreOptions o = new StoreOptions();
+		o.largeValueChars = 1000;
+		ShardedKV kv = new ShardedKV(o).initAndMakeStore("");
+		// a scratch directory, not the working directory
+		assertFalse(Files.exists(Paths.get("SHARDS")));
+		char[] big = new char[5000];
+		Arrays.fill(big, 'b');
+		for (int i = 0; i < 100; i++) {
+			try (Writer w = kv.openValueWriter(("key" + i).toCharArray())) {
+				w.write(i % 2 == 0 ? big : ("value" + i).toCharArray());
+			}
+		}
+		try (Snapshot s = kv.snapshot()) {
+			for (int i = 0; i < 100; i++)
+				assertArrayEquals(i % 2 == 0 ? big : ("value" + i).toCharArray(), s.read(("key" + i).toCharArray()));
+		}
+		kv.close();
+	}
+
+	@Test
+	void testCacheWarmup() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		o.cacheEntries = 500;
+		// plain LRU, so that exactly the keys read last are cached and saved
+		o.cacheAdmission = false;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		List<String> keys = new ArrayList<String>(fill(kv).keySet());
+		for (int i = 0; i < 500; i++)
+			kv.read(keys.get(i * 19).toCharArray());
+		kv.close();
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		kv.warmup().get(1, TimeUnit.MINUTES);
+		for (int i = 0; i < 500; i++)
+			assertNotNull(kv.read(keys.get(i * 19).toCharArray()));
+		assertEquals(500, kv.metrics().getCacheHits());
+		kv.close();
+	}
+
+	@Test
+	void testLargeValues() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		o.largeValueChars = 1000;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		char[] chunk = new char[4096];
+		try (Writer w = kv.openValueWriter("big".toCharArray())) {
+			for (int i = 0; i < 100; i++) {
+				Arrays.fill(chunk, (char) ('a' + i % 26));
+				w.write(chunk);
+			}
+		}
+		char[] medium = new char[5000];
+		Arrays.fill(medium, 'm');
+		kv.write("medium".toCharArray(), medium);
+		kv.write("marker".toCharArray(), "\ufdd0not a reference".toCharArray());
+		kv.close();
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		try (Reader r = kv.openValueReader("big".toCharArray())) {
+			long n = 0;
+			int k;
+			while ((k = r.read(chunk)) > 0) {
+				assertEquals((char) ('a' + n / 4096 % 26), chunk[0]);
+				n += k;
+			}
+			assertEquals(100 * 4096, n);
+		}
+		assertArrayEquals(medium, kv.read("medium".toCharArray()));
+		assertArrayEquals("\ufdd0not a reference".toCharArray(), kv.read("marker".toCharArray()));
+		assertNull(kv.openValueReader("missing".toCharArray()));
+		kv.close();
+	}
+
+	@Test
+	void testScanMissingBlob() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		o.largeValueChars = 1000;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		char[] big = new char[5000];
+		Arrays.fill(big, 'b');
+		kv.write("a".toCharArray(), "1".toCharArray());
+		kv.write("b".toCharArray(), big);
+		kv.write("c".toCharArray(), "3".toCharArray());
+		kv.commit();
+		List<Path> blobs = files(dir, ".blob");
+		assertEquals(1, blobs.size());
+		Files.delete(blobs.get(0));
+
+		List<String> found = new ArrayList<String>();
+		for (Iterator<KVPair> it = kv.readRange("a".toCharArray(), null); it.hasNext();)
+			found.add(new String(it.next().element1));
+		assertEquals(Arrays.asList("a", "c"), found);
+		kv.close();
+	}
+
+	@Test
+	void testDelete() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		o.garbageBytesPerSecond = 0;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		TreeMap<String, String> expected = fill(kv);
+		kv.write("tomb".toCharArray(), "\ufdd2looks like a tombstone".toCharArray());
+		for (int i = 0; i < 10000; i += 2)
+			kv.delete(("key" + i).toCharArray());
+		expected.keySet().removeIf(k -> Integer.parseInt(k.substring(3)) % 2 == 0);
+		assertNull(kv.read("key0".toCharArray()));
+		kv.close();
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		Iterator<KVPair> it = kv.readRange("key".toCharArray(), "kez".toCharArray());
+		for (Map.Entry<String, String> e : expected.entrySet()) {
+			KVPair p = it.next();
+			assertEquals(e.getKey(), new String(p.element1));
+			assertEquals(e.getValue(), new String(p.element2));
+		}
+		assertFalse(it.hasNext());
+		assertArrayEquals("\ufdd2looks like a tombstone".toCharArray(), kv.read("tomb".toCharArray()));
+
+		kv.deleteRange("key".toCharArray(), "kez".toCharArray());
+		assertFalse(kv.readPrefix("key".toCharArray()).hasNext());
+		assertNotNull(kv.read("tomb".toCharArray()));
+		kv.close();
+	}
+
+	@Test
+	void testSnapshot() throws Exception {
+		SimpleKV kv = new SimpleKV().initAndMakeStore("", smallOptions());
+		TreeMap<String, String> expected = fill(kv);
+		try (Snapshot snap = kv.snapshot()) {
+			// replace every table the snapshot refers to
+			for (int i = 0; i < 10000; i++)
+				kv.write(("key" + i).toCharArray(), "newer".toCharArray());
+			kv.deleteRange("key".toCharArray(), "kez".toCharArray());
+			assertFalse(kv.readPrefix("key".toCharArray()).hasNext());
+
+			String first = expected.firstKey();
+			assertArrayEquals(expected.get(first).toCharArray(), snap.read(first.toCharArray()));
+			Iterator<KVPair> it = snap.readPrefix("key".toCharArray());
+			for (Map.Entry<String, String> e : expected.entrySet()) {
+				KVPair p = it.next();
+				assertEquals(e.getKey(), new String(p.element1));
+				assertEquals(e.getValue(), new String(p.element2));
+			}
+			assertFalse(it.hasNext());
+		}
+		kv.close();
+	}
+
+	@Test
+	void testFlightRecorderEvents() throws Exception {
+		String[] names = { "rarmanKV.Read", "rarmanKV.Write", "rarmanKV.Commit", "rarmanKV.Fsync", "rarmanKV.Flush",
+				"rarmanKV.Compaction" };
+		Path dump = Files.createTempFile("rkv-test", ".jfr");
+		try (Recording recording = new Recording()) {
+			for (String name : names)
+				recording.enable(name).withThreshold(Duration.ZERO);
+			recording.start();
+			SimpleKV kv = new SimpleKV().initAndMakeStore(Files.createTempDirectory("rkv-test").toString(),
+					smallOptions());
+			TreeMap<String, String> expected = fill(kv);
+			for (String k : expected.keySet())
+				kv.read(k.toCharArray());
+			kv.read("missing".toCharArray());
+			kv.commit();
+			kv.close();
+			recording.stop();
+			recording.dump(dump);
+		}
+
+		Map<String, List<RecordedEvent>> byName = new TreeMap<String, List<RecordedEvent>>();
+		for (RecordedEvent e : RecordingFile.readAllEvents(dump))
+			byName.computeIfAbsent(e.getEventType().getName(), n -> new ArrayList<RecordedEvent>()).add(e);
+		Files.delete(dump);
+		for (String name : names)
+			assertTrue(byName.containsKey(name), name + " not recorded");
+		assertEquals(50000, byName.get("rarmanKV.Write").size());
+		boolean miss = false;
+		for (RecordedEvent e : byName.get("rarmanKV.Read")) {
+			if (e.getInt("valueLength") == -1) {
+				assertFalse(e.getBoolean("cacheHit"));
+				miss = true;
+			}
+		}
+		assertTrue(miss);
+		for (RecordedEvent e : byName.get("rarmanKV.Flush")) {
+			assertTrue(e.getInt("entries") > 0);
+			assertTrue(e.getLong("size") > 0);
+		}
+		for (RecordedEvent e : byName.get("rarmanKV.Compaction"))
+			assertTrue(e.getInt("inputTables") > 0);
+		for (RecordedEvent e : byName.get("rarmanKV.Fsync"))
+			assertNotNull(e.getString("file"));
+	}
+
+	@Test
+	void testBatches() throws Exception {
+		StoreOptions o = smallOptions();
+		o.cacheEntries = 64;
+		o.largeValueChars = 1000;
+		char[] big = new char[5000];
+		Arrays.fill(big, 'b');
+		SimpleKV simple = new SimpleKV().initAndMakeStore(Files.createTempDirectory("rkv-test").toString(), o);
+		ShardedKV sharded = new ShardedKV(o).initAndMakeStore(Files.createTempDirectory("rkv-test").toString());
+		for (KeyValue kv : new KeyValue[] { simple, sharded }) {
+			TreeMap<String, String> expected = new TreeMap<String, String>();
+			for (int round = 0; round < 20; round++) {
+				KVPair[] pairs = new KVPair[500];
+				for (int i = 0; i < pairs.length; i++) {
+					String k = "key" + (round * 311 + i * 7) % 3000;
+					String v = i == 0 ? new String(big) : "value" + round + "." + i;
+					pairs[i] = new KVPair(k.toCharArray(), v.toCharArray());
+					expected.put(k, v);
+				}
+				kv.writeMany(pairs);
+			}
+			kv.delete("key7".toCharArray());
+			expected.remove("key7");
+
+			// unsorted, with duplicates, missing and deleted keys, some cached and most not
+			char[][] keys = new char[4000][];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = ("key" + (i * 13) % 3100).toCharArray();
+			char[][] values = kv.readMany(keys);
+			assertEquals(keys.length, values.length);
+			for (int i = 0; i < keys.length; i++) {
+				String v = expected.get(new String(keys[i]));
+				if (v == null)
+					assertNull(values[i], new String(keys[i]));
+				else
+					assertArrayEquals(v.toCharArray(), values[i], new String(keys[i]));
+			}
+			// every caller gets its own arrays
+			char[][] key0 = { "key0".toCharArray() };
+			kv.readMany(key0)[0][0] = 'x';
+			assertArrayEquals(expected.get("key0").toCharArray(), kv.readMany(key0)[0]);
+			assertEquals(0, kv.readMany(new char[0][]).length);
+		}
+		simple.close();
+		sharded.close();
+	}
+
+	@Test
+	void testMemtableScan() throws Exception {
+		SimpleKV kv = new SimpleKV().initAndMakeStore("", new StoreOptions());
+		for (int i = 0; i < 1000; i += 2)
+			kv.write(String.format("m%04d", i).toCharArray(), "old".toCharArray());
+		try (Snapshot snap = kv.snapshot()) {
+			// keys written after the snapshot fall between the ones it holds
+			for (int i = 1; i < 1000; i += 2)
+				kv.write(String.format("m%04d", i).toCharArray(), "new".toCharArray());
+			Iterator<KVPair> it = snap.readPrefix("m".toCharArray());
+			for (int i = 0; i < 1000; i += 2)
+				assertEquals(String.format("m%04d", i), new String(it.next().element1));
+			assertFalse(it.hasNext());
+		}
+		Iterator<KVPair> it = kv.readRange("m0500".toCharArray(), "m0510".toCharArray());
+		for (int i = 500; i < 510; i++) {
+			KVPair p = it.next();
+			assertEquals(String.format("m%04d", i), new String(p.element1));
+			assertEquals(i % 2 == 0 ? "old" : "new", new String(p.element2));
+		}
+		assertFalse(it.hasNext());
+		kv.close();
+	}
+
+	@Test
+	void testEngines() throws Exception {
+		for (StoreOptions.Engine engine : StoreOptions.Engine.values()) {
+			Path dir = Files.createTempDirectory("rkv-test");
+			StoreOptions o = smallOptions();
+			o.engine = engine;
+			o.garbageBytesPerSecond = 0;
+			SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+			TreeMap<String, String> expected = fill(kv);
+			for (int i = 0; i < 10000; i += 3)
+				kv.delete(("key" + i).toCharArray());
+			expected.keySet().removeIf(k -> Integer.parseInt(k.substring(3)) % 3 == 0);
+			try (Snapshot snap = kv.snapshot()) {
+				kv.deleteRange("key".toCharArray(), "kez".toCharArray());
+				Iterator<KVPair> it = snap.readPrefix("key".toCharArray());
+				for (String k : expected.keySet())
+					assertEquals(k, new String(it.next().element1), engine.name());
+				assertFalse(it.hasNext());
+			}
+			assertFalse(kv.readPrefix("key".toCharArray()).hasNext());
+			kv.write("a".toCharArray(), "b".toCharArray());
+			kv.close();
+
+			// reopening keeps the engine the store was created with
+			kv = new SimpleKV().initAndMakeStore(dir.toString(), smallOptions());
+			char[] a = kv.read("a".toCharArray());
+			if (engine == StoreOptions.Engine.MEMORY)
+				assertNull(a);
+			else
+				assertArrayEquals("b".toCharArray(), a, engine.name());
+			assertFalse(kv.readPrefix("key".toCharArray()).hasNext());
+			kv.close();
+		}
+	}
+
+	@Test
+	void testHashTornTail() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = new StoreOptions();
+		o.engine = StoreOptions.Engine.HASH;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		for (int i = 0; i < 1000; i++)
+			kv.write(("key" + i).toCharArray(), ("value" + i).toCharArray());
+		kv.close();
+
+		// the zeros of a preallocated tail, then a header claiming a huge record
+		List<Path> data = files(dir, ".data");
+		Path last = data.get(data.size() - 1);
+		byte[] clean = Files.readAllBytes(last);
+		ByteBuffer tail = ByteBuffer.allocate(64 + 12);
+		tail.position(64);
+		tail.putInt(Integer.MAX_VALUE).putInt(~Integer.MAX_VALUE).putInt(0);
+		Files.write(last, tail.array(), StandardOpenOption.APPEND);
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		for (int i = 0; i < 1000; i++)
+			assertArrayEquals(("value" + i).toCharArray(), kv.read(("key" + i).toCharArray()));
+		assertNull(kv.read("".toCharArray()));
+		int n = 0;
+		for (Iterator<KVPair> it = kv.readRange(new char[0], null); it.hasNext(); it.next())
+			n++;
+		assertEquals(1000, n);
+		kv.close();
+
+		// a damaged record ends its file, once there is no hint to go by
+		byte[] damaged = clean.clone();
+		damaged[damaged.length - 3] ^= 0x55;
+		Files.write(last, damaged);
+		Files.delete(Paths.get(last.toString().replace(".data", ".hint")));
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		assertNull(kv.read("key999".toCharArray()));
+		assertArrayEquals("value998".toCharArray(), kv.read("key998".toCharArray()));
+		kv.close();
+	}
+
+	@Test
+	void testHashHints() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		o.engine = StoreOptions.Engine.HASH;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		TreeMap<String, String> expected = fill(kv);
+		kv.close();
+		List<Path> data = files(dir, ".data");
+		assertTrue(data.size() >= 3);
+		for (Path p : data)
+			assertTrue(Files.exists(Paths.get(p.toString().replace(".data", ".hint"))), p.toString());
+
+		// damage a record in the middle of the first file: its hint still indexes the records after it
+		Path first = data.get(0);
+		byte[] bytes = Files.readAllBytes(first);
+		bytes[bytes.length / 2] ^= 0x55;
+		Files.write(first, bytes);
+		// and the hint of the second, so that its data is replayed
+		Path hint = Paths.get(data.get(1).toString().replace(".data", ".hint"));
+		byte[] h = Files.readAllBytes(hint);
+		h[h.length / 2] ^= 1;
+		Files.write(hint, h);
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		int found = 0;
+		for (Map.Entry<String, String> e : expected.entrySet()) {
+			char[] v = kv.read(e.getKey().toCharArray());
+			if (v != null) {
+				assertEquals(e.getValue(), new String(v));
+				found++;
+			}
+		}
+		// at most the damaged record is lost
+		assertTrue(found >= expected.size() - 1, found + " of " + expected.size());
+		kv.close();
+	}
+
+	@Test
+	void testBTree() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = smallOptions();
+		o.engine = StoreOptions.Engine.BTREE;
+		o.blockBytes = 512;
+		o.blockCacheBytes = 0;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		TreeMap<String, String> expected = fill(kv);
+		// values too big for a page go to overflow chains
+		char[] big = new char[100000];
+		Arrays.fill(big, 'x');
+		kv.write("key5".toCharArray(), big);
+		expected.put("key5", new String(big));
+		kv.close();
+
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		Iterator<KVPair> it = kv.readPrefix("key".toCharArray());
+		for (Map.Entry<String, String> e : expected.entrySet()) {
+			KVPair p = it.next();
+			assertEquals(e.getKey(), new String(p.element1));
+			assertEquals(e.getValue(), new String(p.element2));
+		}
+		assertFalse(it.hasNext());
+
+		// readers racing for the same pages of a pool much smaller than the tree
+		SimpleKV store = kv;
+		List<CompletableFuture<Void>> readers = new ArrayList<CompletableFuture<Void>>();
+		for (int t = 0; t < 4; t++) {
+			readers.add(CompletableFuture.runAsync(() -> {
+				for (Map.Entry<String, String> e : expected.entrySet())
+					assertArrayEquals(e.getValue().toCharArray(), store.read(e.getKey().toCharArray()));
+			}));
+		}
+		for (CompletableFuture<Void> r : readers)
+			r.get(1, TimeUnit.MINUTES);
+		kv.close();
+	}
+
+	@Test
+	void testBTreeMetaSlots() throws Exception {
+		Path dir = Files.createTempDirectory("rkv-test");
+		StoreOptions o = new StoreOptions();
+		o.engine = StoreOptions.Engine.BTREE;
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		kv.write("a".toCharArray(), "1".toCharArray());
+		kv.commit();
+		// a snapshot between two commits must not make them share a slot
+		kv.snapshot().close();
+		kv.write("b".toCharArray(), "2".toCharArray());
+		kv.commit();
+		kv.close();
+
+		// damage the newest of the two slots at offsets 0 and 256 of the file
+		Path file = dir.resolve("pages.db");
+		byte[] bytes = Files.readAllBytes(file);
+		ByteBuffer pages = ByteBuffer.wrap(bytes);
+		int newest = pages.getLong(8) > pages.getLong(256 + 8) ? 0 : 256;
+		bytes[newest + 20] ^= 0x55;
+		Files.write(file, bytes);
+
+		// the store opens as of the commit before
+		kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		assertArrayEquals("1".toCharArray(), kv.read("a".toCharArray()));
+		assertNull(kv.read("b".toCharArray()));
+		kv.close();
+	}
+}
@@ -0,0 +1,181 @@
+package rarmanKV;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import core.KVPair;
+import core.SimpleKV;
+import core.StoreOptions;
+import server.KVClient;
+import server.KVServer;
+import server.Replica;
+
+class ServerTest {
+
+	@Test
+	void testLoopback() throws Exception {
+		SimpleKV kv = new SimpleKV();
+		try (KVServer server = new KVServer(kv, 0); KVClient client = new KVClient(server.port())) {
+			client.ping();
+			client.write("a/1".toCharArray(), "x".toCharArray());
+			assertArrayEquals("x".toCharArray(), client.read("a/1".toCharArray()));
+			assertNull(client.read("missing".toCharArray()));
+
+			client.writeMany(new KVPair[] { new KVPair("a/2".toCharArray(), "y".toCharArray()),
+					new KVPair("b/1".toCharArray(), "z".toCharArray()) });
+			char[][] values = client.readMany(new char[][] { "a/2".toCharArray(), "nope".toCharArray() });
+			assertArrayEquals("y".toCharArray(), values[0]);
+			assertNull(values[1]);
+			assertEquals(2, client.readPrefix("a/".toCharArray()).size());
+			client.commit();
+		} finally {
+			kv.close();
+		}
+	}
+
+	@Test
+	void testMalformedRequests() throws Exception {
+		SimpleKV kv = new SimpleKV();
+		try (KVServer server = new KVServer(kv, 0); KVClient client = new KVClient(server.port())) {
+			// MGET and MPUT with a negative and a huge count, and an unknown opcode
+			int[][] frames = { { 4, -1 }, { 5, -7 }, { 4, Integer.MAX_VALUE }, { 5, 1 << 30 }, { 99, 0 } };
+			for (int[] frame : frames) {
+				try (Socket s = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+					s.setSoTimeout(10_000);
+					DataOutputStream out = new DataOutputStream(s.getOutputStream());
+					out.writeByte(frame[0]);
+					out.writeInt(frame[1]);
+					out.flush();
+					// dropped without an answer, rather than left out of step
+					assertEquals(-1, s.getInputStream().read(), "opcode " + frame[0] + " count " + frame[1]);
+				}
+			}
+			// the server and other connections are unaffected
+			client.ping();
+
+			// a prefix result larger than one chunk is streamed
+			KVPair[] pairs = new KVPair[3000];
+			for (int i = 0; i < pairs.length; i++)
+				pairs[i] = new KVPair(String.format("p/%05d", i).toCharArray(), ("v" + i).toCharArray());
+			client.writeMany(pairs);
+			List<KVPair> found = client.readPrefix("p/".toCharArray());
+			assertEquals(pairs.length, found.size());
+			for (int i = 0; i < pairs.length; i++)
+				assertArrayEquals(pairs[i].element1, found.get(i).element1);
+			assertEquals(0, client.readPrefix("q/".toCharArray()).size());
+		} finally {
+			kv.close();
+		}
+	}
+
+	@Test
+	void testStoreFailure() throws Exception {
+		StoreOptions o = new StoreOptions();
+		o.memtableBytes = 64 << 10;
+		Path dir = Files.createTempDirectory("rkv-test");
+		SimpleKV kv = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		// the first flush writes table 3, after logs 1 and 2; a directory in its way fails it
+		Files.createDirectory(dir.resolve("000003.sst"));
+		char[] value = new char[1000];
+		Arrays.fill(value, 'v');
+		try (KVServer server = new KVServer(kv, 0); KVClient client = new KVClient(server.port())) {
+			IOException failure = null;
+			for (int i = 0; i < 10000 && failure == null; i++) {
+				try {
+					client.write(("key" + i).toCharArray(), value);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			assertNotNull(failure, "writes kept succeeding");
+			assertThrows(IOException.class,
+					() -> client.writeMany(new KVPair[] { new KVPair("key0".toCharArray(), value) }));
+			// the connection stays in step
+			client.ping();
+			assertArrayEquals(value, client.read("key0".toCharArray()));
+		} finally {
+			kv.close();
+		}
+	}
+
+	@Test
+	void testPipeline() throws Exception {
+		SimpleKV kv = new SimpleKV();
+		try (KVServer server = new KVServer(kv, 0); KVClient client = new KVClient(server.port())) {
+			KVClient.Pipeline p = client.pipeline();
+			for (int i = 0; i < 1000; i++)
+				p.write(("k" + i).toCharArray(), ("v" + i).toCharArray());
+			for (int i = 0; i < 1000; i++)
+				p.read(("k" + i).toCharArray());
+			List<char[]> values = p.sync();
+			assertEquals(1000, values.size());
+			for (int i = 0; i < 1000; i++)
+				assertArrayEquals(("v" + i).toCharArray(), values.get(i));
+		} finally {
+			kv.close();
+		}
+	}
+
+	@Test
+	void testReplica() throws Exception {
+		StoreOptions o = new StoreOptions();
+		o.replicationLogBytes = 64 << 10;
+		SimpleKV leader = new SimpleKV().initAndMakeStore(Files.createTempDirectory("rkv-test").toString(), o);
+		SimpleKV follower = new SimpleKV().initAndMakeStore(Files.createTempDirectory("rkv-test").toString());
+		try (KVServer server = new KVServer(leader, 0); Replica replica = new Replica(follower, server.port())) {
+			follower.write("stale".toCharArray(), "x".toCharArray());
+			for (int i = 0; i < 1000; i++)
+				leader.write(("k" + i).toCharArray(), ("v" + i).toCharArray());
+			leader.delete("k1".toCharArray());
+			leader.commit();
+			assertTrue(replica.awaitApplied(leader.replicationLog().committed(), 10_000));
+			assertArrayEquals("v999".toCharArray(), follower.read("k999".toCharArray()));
+			assertNull(follower.read("k1".toCharArray()));
+			assertEquals(0, follower.metrics().getReplicationLag());
+
+			// more than the log keeps, so the follower may have to copy the store again
+			for (int i = 0; i < 5000; i++)
+				leader.write(("k" + i).toCharArray(), ("w" + i).toCharArray());
+			leader.commit();
+			assertTrue(replica.awaitApplied(leader.replicationLog().committed(), 10_000));
+			assertArrayEquals("w4999".toCharArray(), follower.read("k4999".toCharArray()));
+			assertArrayEquals("w1".toCharArray(), follower.read("k1".toCharArray()));
+		} finally {
+			leader.close();
+			follower.close();
+		}
+	}
+
+	@Test
+	void testReplicaFailure() throws Exception {
+		StoreOptions o = new StoreOptions();
+		o.replicationLogBytes = 1 << 20;
+		o.memtableBytes = 64 << 10;
+		SimpleKV leader = new SimpleKV().initAndMakeStore(Files.createTempDirectory("rkv-test").toString(), o);
+		Path dir = Files.createTempDirectory("rkv-test");
+		SimpleKV follower = new SimpleKV().initAndMakeStore(dir.toString(), o);
+		// the follower's first flush writes table 3, after logs 1 and 2; a directory in its way fails it
+		Files.createDirectory(dir.resolve("000003.sst"));
+		char[] value = new char[1000];
+		Arrays.fill(value, 'v');
+		try (KVServer server = new KVServer(leader, 0); Replica replica = new Replica(follower, server.port())) {
+			for (int i = 0; i < 1000; i++)
+				leader.write(("k" + i).toCharArray(), value);
+			leader.commit();
+			// writes the follower refused are not counted as applied
+			assertFalse(replica.awaitApplied(leader.replicationLog().committed(), 3_000));
+			assertTrue(replica.applied() < leader.replicationLog().committed());
+		} finally {
+			leader.close();
+			follower.close();
+		}
+	}
+}
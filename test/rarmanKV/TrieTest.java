@@ -0,0 +1,80 @@
+package rarmanKV;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import core.FrozenTrie;
+import core.MappedTrie;
+import core.Trie;
+
+class TrieTest {
+
+	private Trie<String> routes() {
+		Trie<String> t = new Trie<String>();
+		t.put("1", "US");
+		t.put("44", "UK");
+		t.put("4420", "London");
+		t.put("49", "DE");
+		return t;
+	}
+
+	@Test
+	void testLongestPrefix() {
+		Trie<String> t = routes();
+		char[] key = "x442071234".toCharArray();
+		assertEquals("London", t.longestPrefix(key, 1, key.length - 1));
+		assertEquals("UK", t.longestPrefix("4412".toCharArray(), 0, 4));
+		assertNull(t.longestPrefix("5".toCharArray(), 0, 1));
+	}
+
+	@Test
+	void testLookupDoesNotAllocate() {
+		Trie<String> t = routes();
+		// chars above 127 would be boxed to fresh Characters by a map lookup
+		t.put("\u65e5\u672c", "JP");
+		t.put("\u65e5\u672c\u6771", "Tokyo");
+		char[] key = "\u65e5\u672c\u6771\u4eac".toCharArray();
+		char[] miss = "\u4e2d\u56fd".toCharArray();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		String found = null;
+		for (int i = 0; i < 100000; i++)
+			found = t.longestPrefix(key, 0, key.length);
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < 100000; i++) {
+			found = t.longestPrefix(key, 0, key.length);
+			t.longestPrefix(miss, 0, miss.length);
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		assertEquals("Tokyo", found);
+		// a boxing lookup would allocate megabytes here
+		assertTrue(allocated < 10000, allocated + " bytes allocated");
+	}
+
+	@Test
+	void testFrozenBatch() {
+		FrozenTrie<String> f = routes().freeze();
+		char[][] keys = { "12125550".toCharArray(), "4420".toCharArray(), "442".toCharArray(), "7".toCharArray() };
+		String[] out = new String[keys.length];
+		assertEquals(3, f.longestPrefix(keys, out));
+		assertArrayEquals(new String[] { "US", "London", "UK", null }, out);
+	}
+
+	@Test
+	void testMappedRoundTrip() throws Exception {
+		Path file = Files.createTempFile("routes", ".trie");
+		try {
+			MappedTrie.write(routes().freeze(), file);
+			MappedTrie m = MappedTrie.open(file);
+			assertEquals(Files.size(file), m.offHeapBytes());
+			assertEquals("London", m.longestPrefix("44207".toCharArray(), 0, 5));
+			assertEquals("DE", m.longestPrefix("4930".toCharArray(), 0, 4));
+			assertEquals(-1, m.longestPrefixId("0".toCharArray(), 0, 1));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}